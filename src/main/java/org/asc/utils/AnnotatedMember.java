@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * A field or method found to have an annotation, see
+ * {@link TypeAnnotationScanner#findAnnotatedMembers(byte[], AnnotationQuery, java.util.List)}.
+ *
+ * @author Andy Clement
+ */
+public final class AnnotatedMember {
+
+	private final boolean method;
+	private final String name;
+	private final String descriptor;
+	private final int attribute;
+
+	AnnotatedMember(boolean method, String name, String descriptor, int attribute) {
+		this.method = method;
+		this.name = name;
+		this.descriptor = descriptor;
+		this.attribute = attribute;
+	}
+
+	/**
+	 * @return true for a method (including constructors), false for a field
+	 */
+	public boolean isMethod() {
+		return method;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the field or method descriptor (e.g. <tt>Ljava/lang/String;</tt> or <tt>(I)V</tt>)
+	 */
+	public String getDescriptor() {
+		return descriptor;
+	}
+
+	/**
+	 * @return {@link TypeAnnotationScanner#RUNTIME_VISIBLE} or {@link TypeAnnotationScanner#RUNTIME_INVISIBLE}
+	 * depending on which attribute the annotation was found in
+	 */
+	public int getAttribute() {
+		return attribute;
+	}
+
+	@Override
+	public String toString() {
+		return (method ? "method " : "field ") + name + descriptor;
+	}
+}
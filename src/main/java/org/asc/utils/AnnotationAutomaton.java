@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * A set of annotation descriptors compiled into a byte level trie, represented as a table driven automaton. A
+ * constant pool entry is checked against every descriptor at once by feeding its bytes through the automaton,
+ * which stops on the first byte that cannot lead to any of the descriptors. The cost of a check depends on the
+ * entry and not on how many descriptors there are.
+ * <p>
+ * To keep the transition table small the bytes are first mapped to character classes, only bytes that occur in
+ * some descriptor get a class of their own and every other byte maps to class 0 (which never has a transition).
+ *
+ * @author Andy Clement
+ */
+final class AnnotationAutomaton {
+
+	// State 0 is the dead state, state 1 the start state
+	private static final int DEAD = 0;
+	private static final int START = 1;
+
+	// Maps a byte (as an unsigned value) to its character class
+	private final int[] byteClasses;
+	private final int classCount;
+
+	// next[state * classCount + class] is the state to move to, or DEAD
+	private final int[] next;
+
+	// Query index+1 accepted by each state (0 if it is not accepting)
+	private final int[] accepts;
+
+	AnnotationAutomaton(AnnotationQuery[] queries) {
+		byteClasses = new int[256];
+		int classes = 1;
+		int maxStates = 2;
+		for (AnnotationQuery query : queries) {
+			for (byte b : query.bytes()) {
+				if (byteClasses[b & 0xff] == 0) {
+					byteClasses[b & 0xff] = classes++;
+				}
+			}
+			maxStates += query.length();
+		}
+		classCount = classes;
+		int[] transitions = new int[maxStates * classCount];
+		int[] accepting = new int[maxStates];
+		int states = 2;
+		for (int q = 0; q < queries.length; q++) {
+			int state = START;
+			for (byte b : queries[q].bytes()) {
+				int t = state * classCount + byteClasses[b & 0xff];
+				if (transitions[t] == DEAD) {
+					transitions[t] = states++;
+				}
+				state = transitions[t];
+			}
+			accepting[state] = q + 1;
+		}
+		// Trim to the states actually used, shared prefixes mean this is usually far fewer than the maximum
+		next = new int[states * classCount];
+		System.arraycopy(transitions, 0, next, 0, next.length);
+		accepts = new int[states];
+		System.arraycopy(accepting, 0, accepts, 0, states);
+	}
+
+	/**
+	 * Run some UTF8 data through the automaton.
+	 * @param data the class bytes
+	 * @param offset where the UTF8 data starts
+	 * @param length the length of the UTF8 data
+	 * @return the index of the matching query or -1 if there is no match
+	 */
+	int lookup(ClassBytes data, int offset, int length) {
+		int[] byteClasses = this.byteClasses;
+		int[] next = this.next;
+		int classCount = this.classCount;
+		int state = START;
+		for (int p = offset, max = offset + length; p < max; p++) {
+			state = next[state * classCount + byteClasses[data.u1(p)]];
+			if (state == DEAD) {
+				return -1;
+			}
+		}
+		return accepts[state] - 1;
+	}
+
+	/**
+	 * @return the number of states (including the dead state)
+	 */
+	int stateCount() {
+		return accepts.length;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+
+/**
+ * An annotation to search for, prepared once so it can be reused across any number of scans. The descriptor
+ * is held encoded in the same modified UTF-8 form that the class file uses, which means checking a constant
+ * pool entry against it is a simple comparison of byte ranges (no decoding, no allocation) and works for any
+ * characters in the annotation name.
+ * <p>
+ * If the retention of the annotation is known then only the attribute that would hold it
+ * (RuntimeVisibleAnnotations or RuntimeInvisibleAnnotations) is searched. If it is not known (for example when
+ * only the name of the annotation is available and loading it to discover the retention would be expensive or
+ * impossible) both attributes are searched in the same pass.
+ *
+ * @author Andy Clement
+ */
+public final class AnnotationQuery {
+
+	private static final ClassValue<AnnotationQuery> classQueries = new ClassValue<AnnotationQuery>() {
+		@Override
+		protected AnnotationQuery computeValue(Class<?> annotationClass) {
+			Retention retention = annotationClass.getAnnotation(Retention.class);
+			// No @Retention means the default of CLASS retention
+			boolean visible = retention != null && retention.value() == RetentionPolicy.RUNTIME;
+			return of("L" + annotationClass.getName().replace('.', '/') + ";", visible);
+		}
+	};
+
+	private final String descriptor;
+	private final byte[] bytes;
+	private final int hash;
+	// Which of TypeAnnotationScanner.RUNTIME_VISIBLE/RUNTIME_INVISIBLE to search
+	private final int attributes;
+
+	private AnnotationQuery(String descriptor, int attributes) {
+		this.descriptor = descriptor;
+		this.bytes = encode(descriptor);
+		this.hash = hash(bytes, 0, bytes.length);
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Create a query for the specified annotation type.
+	 * @param descriptor the type name of the annotation (form: <tt>Lorg/example/Foo;</tt>)
+	 * @param hasRuntimeRetention true if the annotation has runtime retention
+	 * @return the query
+	 */
+	public static AnnotationQuery of(String descriptor, boolean hasRuntimeRetention) {
+		return new AnnotationQuery(descriptor,
+				hasRuntimeRetention ? TypeAnnotationScanner.RUNTIME_VISIBLE : TypeAnnotationScanner.RUNTIME_INVISIBLE);
+	}
+
+	/**
+	 * Create a query for the specified annotation type where the retention is not known. Both the visible and
+	 * invisible annotation attributes will be searched, in the same pass.
+	 * @param descriptor the type name of the annotation (form: <tt>Lorg/example/Foo;</tt>)
+	 * @return the query
+	 */
+	public static AnnotationQuery of(String descriptor) {
+		return new AnnotationQuery(descriptor,
+				TypeAnnotationScanner.RUNTIME_VISIBLE | TypeAnnotationScanner.RUNTIME_INVISIBLE);
+	}
+
+	/**
+	 * Create a query for the specified annotation type, the retention is determined from the <tt>@Retention</tt>
+	 * on the annotation. Queries are cached against the class so repeatedly calling this is cheap.
+	 * @param annotationClass the annotation type
+	 * @return the query
+	 */
+	public static AnnotationQuery of(Class<?> annotationClass) {
+		return classQueries.get(annotationClass);
+	}
+
+	/**
+	 * @return the annotation type descriptor (form: <tt>Lorg/example/Foo;</tt>)
+	 */
+	public String getDescriptor() {
+		return descriptor;
+	}
+
+	/**
+	 * @return true if the annotation is known to have runtime retention, so only RuntimeVisibleAnnotations is searched
+	 */
+	public boolean hasRuntimeRetention() {
+		return attributes == TypeAnnotationScanner.RUNTIME_VISIBLE;
+	}
+
+	/**
+	 * @return true if the retention of the annotation is not known, so both annotation attributes are searched
+	 */
+	public boolean isRetentionAgnostic() {
+		return attributes == (TypeAnnotationScanner.RUNTIME_VISIBLE | TypeAnnotationScanner.RUNTIME_INVISIBLE);
+	}
+
+	/**
+	 * @return which of {@link TypeAnnotationScanner#RUNTIME_VISIBLE} and {@link TypeAnnotationScanner#RUNTIME_INVISIBLE}
+	 * annotation attributes are searched
+	 */
+	int attributes() {
+		return attributes;
+	}
+
+	/**
+	 * @return the length in bytes of the modified UTF-8 encoded descriptor
+	 */
+	int length() {
+		return bytes.length;
+	}
+
+	/**
+	 * @return the modified UTF-8 encoded descriptor, must not be modified
+	 */
+	byte[] bytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the {@link #hash(byte[], int, int)} of the encoded descriptor
+	 */
+	int hash() {
+		return hash;
+	}
+
+	/**
+	 * A deliberately cheap hash of some UTF8 data, it only looks at the length and a few bytes so can be computed
+	 * in constant time for a constant pool entry. Descriptors typically share long package prefixes and all end
+	 * with ';' so the bytes sampled are those before the ';' and in the middle.
+	 *
+	 * @param bytes the data
+	 * @param offset where the UTF8 data starts
+	 * @param length the length of the UTF8 data
+	 * @return the hash
+	 */
+	static int hash(byte[] bytes, int offset, int length) {
+		int h = length;
+		if (length > 2) {
+			h = h * 31 + (bytes[offset + length - 2] & 0xff);
+			h = h * 31 + (bytes[offset + length - 3] & 0xff);
+			h = h * 31 + (bytes[offset + (length >>> 1)] & 0xff);
+		}
+		return h;
+	}
+
+	/**
+	 * As {@link #hash(byte[], int, int)} but for UTF8 data in some class bytes.
+	 */
+	static int hash(ClassBytes data, int offset, int length) {
+		int h = length;
+		if (length > 2) {
+			h = h * 31 + data.u1(offset + length - 2);
+			h = h * 31 + data.u1(offset + length - 3);
+			h = h * 31 + data.u1(offset + (length >>> 1));
+		}
+		return h;
+	}
+
+	/**
+	 * Encode a string in the modified UTF-8 form used by class files (the null char is encoded in two bytes
+	 * and supplementary characters are encoded as their surrogate pairs).
+	 * @param s the string to encode
+	 * @return the encoded bytes
+	 */
+	static byte[] encode(String s) {
+		int len = s.length();
+		byte[] encoded = new byte[len * 3];
+		int p = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007f) {
+				encoded[p++] = (byte) c;
+			} else if (c <= 0x07ff) { // includes \u0000
+				encoded[p++] = (byte) (0xc0 | (c >> 6));
+				encoded[p++] = (byte) (0x80 | (c & 0x3f));
+			} else {
+				encoded[p++] = (byte) (0xe0 | (c >> 12));
+				encoded[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				encoded[p++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return p == encoded.length ? encoded : Arrays.copyOf(encoded, p);
+	}
+
+	/**
+	 * Decode some modified UTF-8 data, the reverse of {@link #encode(String)}.
+	 * @param bytes holds the data
+	 * @param offset where the data starts
+	 * @param length the length of the data
+	 * @return the decoded string
+	 */
+	static String decode(byte[] bytes, int offset, int length) {
+		char[] chars = new char[length];
+		int c = 0;
+		for (int p = offset, max = offset + length; p < max;) {
+			int b = bytes[p++] & 0xff;
+			if (b < 0x80) {
+				chars[c++] = (char) b;
+			} else if (b < 0xe0) {
+				chars[c++] = (char) (((b & 0x1f) << 6) | (bytes[p++] & 0x3f));
+			} else {
+				chars[c++] = (char) (((b & 0x0f) << 12) | ((bytes[p++] & 0x3f) << 6) | (bytes[p++] & 0x3f));
+			}
+		}
+		return new String(chars, 0, c);
+	}
+
+	@Override
+	public String toString() {
+		return "AnnotationQuery[" + descriptor + (isRetentionAgnostic() ? ",any" : hasRuntimeRetention() ? ",visible" : ",invisible") + "]";
+	}
+}
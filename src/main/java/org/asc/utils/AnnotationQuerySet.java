@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A number of annotations to search for in a single pass over a class. Each query is identified by its position
+ * in the set and results of a scan are reported as a bit mask (or {@link java.util.BitSet} for sets of more than
+ * 64 queries) with the bit for each query found set.
+ * <p>
+ * Whilst walking the constant pool each Utf8 entry needs checking against the set. To keep that cost flat as the
+ * set grows the queries are held in a hash table keyed on {@link AnnotationQuery#hash()}, which can be computed
+ * in constant time for an entry. Entries with a length no query has are dismissed without even computing that.
+ * <p>
+ * Sets of more than {@link #AUTOMATON_THRESHOLD} queries (for example every annotation known to a framework)
+ * are instead compiled into an {@link AnnotationAutomaton}, a byte level trie that entries are fed through once,
+ * stopping on the first byte that cannot lead to any of the descriptors.
+ *
+ * @author Andy Clement
+ */
+public final class AnnotationQuerySet {
+
+	/**
+	 * Sets with more queries than this are matched using an automaton rather than a hash table.
+	 */
+	public static final int AUTOMATON_THRESHOLD = 64;
+
+	private final AnnotationQuery[] queries;
+
+	// Indexed by length, true if some query has that length
+	private final boolean[] lengths;
+
+	// Open addressed hash table, each slot holds a query index+1 (0 is empty)
+	private final int[] table;
+	private final int tableMask;
+
+	// Only built for large sets
+	private final AnnotationAutomaton automaton;
+
+	private final boolean anyRuntimeRetention;
+	private final boolean anyClassRetention;
+
+	private AnnotationQuerySet(AnnotationQuery[] queries) {
+		this.queries = queries;
+		int maxLength = 0;
+		boolean visible = false, invisible = false;
+		for (AnnotationQuery query : queries) {
+			maxLength = Math.max(maxLength, query.length());
+			visible |= (query.attributes() & TypeAnnotationScanner.RUNTIME_VISIBLE) != 0;
+			invisible |= (query.attributes() & TypeAnnotationScanner.RUNTIME_INVISIBLE) != 0;
+		}
+		this.anyRuntimeRetention = visible;
+		this.anyClassRetention = invisible;
+		this.lengths = new boolean[maxLength + 1];
+		int tableSize = Integer.highestOneBit(Math.max(queries.length, 1) * 4 - 1) << 1;
+		this.table = new int[tableSize];
+		this.tableMask = tableSize - 1;
+		for (int q = 0; q < queries.length; q++) {
+			AnnotationQuery query = queries[q];
+			lengths[query.length()] = true;
+			int slot = query.hash() & tableMask;
+			while (table[slot] != 0) {
+				if (Arrays.equals(queries[table[slot] - 1].bytes(), query.bytes())) {
+					throw new IllegalArgumentException("Annotation type included more than once: " + query.getDescriptor());
+				}
+				slot = (slot + 1) & tableMask;
+			}
+			table[slot] = q + 1;
+		}
+		this.automaton = queries.length > AUTOMATON_THRESHOLD ? new AnnotationAutomaton(queries) : null;
+	}
+
+	/**
+	 * Create a set of queries, the position of each query in the arguments is the bit used to report it.
+	 * @param queries the queries
+	 * @return the query set
+	 */
+	public static AnnotationQuerySet of(AnnotationQuery... queries) {
+		return new AnnotationQuerySet(queries.clone());
+	}
+
+	/**
+	 * Create a set of queries, the iteration order of the collection determines the bit used to report each query.
+	 * @param queries the queries
+	 * @return the query set
+	 */
+	public static AnnotationQuerySet of(Collection<AnnotationQuery> queries) {
+		return new AnnotationQuerySet(queries.toArray(new AnnotationQuery[queries.size()]));
+	}
+
+	/**
+	 * @return the number of queries in the set
+	 */
+	public int size() {
+		return queries.length;
+	}
+
+	/**
+	 * @param index the position of the query in the set
+	 * @return the query at that position
+	 */
+	public AnnotationQuery get(int index) {
+		return queries[index];
+	}
+
+	/**
+	 * @param query a query
+	 * @return the position of the query (or one for the same annotation type) in the set, or -1 if it is not in it
+	 */
+	int indexOf(AnnotationQuery query) {
+		// Sets built from predicates are small and hold the same query objects, so try identity first
+		for (int q = 0; q < queries.length; q++) {
+			if (queries[q] == query) {
+				return q;
+			}
+		}
+		for (int q = 0; q < queries.length; q++) {
+			if (Arrays.equals(queries[q].bytes(), query.bytes())) {
+				return q;
+			}
+		}
+		return -1;
+	}
+
+	boolean anyRuntimeRetention() {
+		return anyRuntimeRetention;
+	}
+
+	boolean anyClassRetention() {
+		return anyClassRetention;
+	}
+
+	/**
+	 * Determine if some UTF8 data is the descriptor of one of the queries.
+	 * @param data the class bytes
+	 * @param offset where the UTF8 data starts
+	 * @param length the length of the UTF8 data
+	 * @return the index of the matching query or -1 if there is no match
+	 */
+	int lookup(ClassBytes data, int offset, int length) {
+		if (length >= lengths.length || !lengths[length]) {
+			return -1;
+		}
+		if (automaton != null) {
+			return automaton.lookup(data, offset, length);
+		}
+		int slot = AnnotationQuery.hash(data, offset, length) & tableMask;
+		int entry;
+		while ((entry = table[slot]) != 0) {
+			byte[] candidate = queries[entry - 1].bytes();
+			if (candidate.length == length && data.regionEquals(offset, candidate)) {
+				return entry - 1;
+			}
+			slot = (slot + 1) & tableMask;
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return "AnnotationQuerySet" + Arrays.toString(queries);
+	}
+}
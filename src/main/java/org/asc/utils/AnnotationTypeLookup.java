@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.io.InputStream;
+
+/**
+ * Supplies the bytes of annotation types, so that a {@link MetaAnnotationResolver} can find the annotations on
+ * them.
+ *
+ * @author Andy Clement
+ */
+public interface AnnotationTypeLookup {
+
+	/**
+	 * @param internalName the internal name of the annotation type (e.g. <tt>org/example/Service</tt>)
+	 * @return the bytecode for the annotation type, or null if it cannot be found
+	 */
+	byte[] lookup(String internalName);
+
+	/**
+	 * @param classLoader the class loader to load the annotation types (as resources) from
+	 * @return a lookup that finds the annotation types as <tt>.class</tt> resources of the class loader
+	 */
+	static AnnotationTypeLookup of(final ClassLoader classLoader) {
+		return new AnnotationTypeLookup() {
+			@Override
+			public byte[] lookup(String internalName) {
+				InputStream stream = classLoader.getResourceAsStream(internalName + ".class");
+				return stream == null ? null : TypeAnnotationScanner.loadBytes(stream);
+			}
+		};
+	}
+}
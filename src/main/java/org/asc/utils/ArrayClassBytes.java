@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * Class bytes held in (a window of) a byte array, these are read by {@link ClassBytes} itself.
+ *
+ * @author Andy Clement
+ */
+final class ArrayClassBytes extends ClassBytes {
+
+	ArrayClassBytes reset(byte[] bytes, int offset, int length) {
+		this.array = bytes;
+		this.base = offset;
+		this.length = length;
+		return this;
+	}
+
+	@Override
+	int readU1(int offset) {
+		throw cleared();
+	}
+
+	@Override
+	int readU2(int offset) {
+		throw cleared();
+	}
+
+	@Override
+	int readU4(int offset) {
+		throw cleared();
+	}
+
+	@Override
+	boolean readRegionEquals(int offset, byte[] expected) {
+		throw cleared();
+	}
+
+	@Override
+	void clear() {
+		array = null;
+	}
+
+	private static IllegalStateException cleared() {
+		// Only reached when there is no array, which is once the scan is over
+		return new IllegalStateException("No class bytes, the scan is over");
+	}
+}
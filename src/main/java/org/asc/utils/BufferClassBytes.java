@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Class bytes held in the window between the position and limit of a ByteBuffer. Only absolute reads are used so
+ * the position of the buffer is never changed, and the bytes are read in place, which for a direct or memory
+ * mapped buffer means they are never copied onto the heap.
+ *
+ * @author Andy Clement
+ */
+final class BufferClassBytes extends ClassBytes {
+
+	private ByteBuffer buffer;
+
+	BufferClassBytes reset(ByteBuffer buffer) {
+		this.base = buffer.position();
+		this.length = buffer.remaining();
+		// Multi byte reads rely on the class file (big endian) byte order, a duplicate is always big endian
+		this.buffer = buffer.order() == ByteOrder.BIG_ENDIAN ? buffer : buffer.duplicate();
+		return this;
+	}
+
+	/**
+	 * @param buffer the buffer holding the class, regardless of its position and limit
+	 * @param offset the offset of the class within the buffer
+	 * @param length the length of the class
+	 */
+	BufferClassBytes reset(ByteBuffer buffer, int offset, int length) {
+		this.base = offset;
+		this.length = length;
+		this.buffer = buffer.order() == ByteOrder.BIG_ENDIAN ? buffer : buffer.duplicate();
+		return this;
+	}
+
+	@Override
+	int readU1(int offset) {
+		return buffer.get(base + offset) & 0xff;
+	}
+
+	@Override
+	int readU2(int offset) {
+		return buffer.getShort(base + offset) & 0xffff;
+	}
+
+	@Override
+	int readU4(int offset) {
+		return buffer.getInt(base + offset);
+	}
+
+	@Override
+	boolean readRegionEquals(int offset, byte[] expected) {
+		ByteBuffer buffer = this.buffer;
+		int p = base + offset;
+		for (int i = expected.length - 1; i >= 0; i--) {
+			if (buffer.get(p + i) != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	void clear() {
+		buffer = null;
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * Comparison of a range of a byte array against some expected bytes. This is the Java 8 version, a simple loop. The
+ * multi-release jar has a Java 9 version of this class that uses the (intrinsified, vectorized) range comparison
+ * methods added to {@link java.util.Arrays} in Java 9.
+ *
+ * @author Andy Clement
+ */
+final class ByteRanges {
+
+	private ByteRanges() {
+	}
+
+	/**
+	 * Compare a range of a byte array against some expected bytes. The comparison runs from the end of the range as
+	 * that is typically where descriptors sharing long package prefixes differ.
+	 * @param bytes the bytes containing the range
+	 * @param offset where the range starts
+	 * @param expected the expected bytes, the length of which is the length of the range
+	 * @return true if the range holds exactly the expected bytes
+	 */
+	static boolean equals(byte[] bytes, int offset, byte[] expected) {
+		for (int i = expected.length - 1; i >= 0; i--) {
+			if (bytes[offset + i] != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
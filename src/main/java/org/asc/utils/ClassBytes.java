@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * The bytes of a class file, wherever they happen to be held. The scanner parses classes through this so the same
+ * parsing logic works whether the bytes are in a byte array, a (possibly direct or memory mapped) ByteBuffer or
+ * elsewhere. All offsets are relative to the start of the class file and multi byte values are big endian, as in
+ * the class file format. Implementations are reset with new data rather than recreated, so scanning does not
+ * need to allocate.
+ * <p>
+ * Bytes held in a byte array (by far the most common case) are read by the final methods here rather than by
+ * overridden ones. Once a scanner has been used with several kinds of class bytes (say arrays, mapped jar entries
+ * and memory segments) calls to overridden methods can no longer be inlined by the JIT, every byte read would be a
+ * virtual call, so only bytes held elsewhere pay for that.
+ *
+ * @author Andy Clement
+ */
+abstract class ClassBytes {
+
+	// The array holding the bytes (from base) or null if they are held elsewhere
+	byte[] array;
+	int base;
+
+	int length;
+
+	/**
+	 * @return the number of bytes available
+	 */
+	final int length() {
+		return length;
+	}
+
+	/**
+	 * @param offset the offset of the byte
+	 * @return the unsigned byte at the specified offset
+	 */
+	final int u1(int offset) {
+		byte[] array = this.array;
+		if (array != null) {
+			return array[base + offset] & 0xff;
+		}
+		return readU1(offset);
+	}
+
+	/**
+	 * @param offset the offset of the first of the two bytes
+	 * @return the unsigned short at the specified offset
+	 */
+	final int u2(int offset) {
+		byte[] array = this.array;
+		if (array != null) {
+			int p = base + offset;
+			return ((array[p] & 0xff) << 8) + (array[p + 1] & 0xff);
+		}
+		return readU2(offset);
+	}
+
+	/**
+	 * @param offset the offset of the first of the four bytes
+	 * @return the int at the specified offset
+	 */
+	final int u4(int offset) {
+		byte[] array = this.array;
+		if (array != null) {
+			int p = base + offset;
+			return ((array[p] & 0xFF) << 24) + ((array[p + 1] & 0xFF) << 16) + ((array[p + 2] & 0xFF) << 8)
+					+ (array[p + 3] & 0xFF);
+		}
+		return readU4(offset);
+	}
+
+	/**
+	 * Compare a range of the bytes with some expected bytes. The comparison runs from the end of the range as
+	 * that is typically where descriptors sharing long package prefixes differ.
+	 * @param offset where the range starts
+	 * @param expected the expected bytes, the length of which is the length of the range
+	 * @return true if the range holds exactly the expected bytes
+	 */
+	final boolean regionEquals(int offset, byte[] expected) {
+		byte[] array = this.array;
+		if (array != null) {
+			return ByteRanges.equals(array, base + offset, expected);
+		}
+		return readRegionEquals(offset, expected);
+	}
+
+	/**
+	 * As {@link #u1(int)}, for bytes not held in an array.
+	 */
+	abstract int readU1(int offset);
+
+	/**
+	 * As {@link #u2(int)}, for bytes not held in an array.
+	 */
+	abstract int readU2(int offset);
+
+	/**
+	 * As {@link #u4(int)}, for bytes not held in an array.
+	 */
+	abstract int readU4(int offset);
+
+	/**
+	 * As {@link #regionEquals(int, byte[])}, for bytes not held in an array.
+	 */
+	abstract boolean readRegionEquals(int offset, byte[] expected);
+
+	/**
+	 * Drop any reference to the underlying data.
+	 */
+	abstract void clear();
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * A reusable buffer that classes are read into, one at a time, so that loading many classes (for example every
+ * class in a jar) allocates nothing once the buffer has grown to fit the largest. Classes can also be read from
+ * a {@link MappedJar}, in which case deflated entries are inflated straight into the buffer. The class read is held at the
+ * start of the buffer and can be scanned in place with
+ * {@link TypeAnnotationScanner#scan(byte[], int, int, AnnotationQuery)}:
+ * 
+ * <pre>
+ * ClassBytesBuffer buffer = ClassBytesBuffer.forCurrentThread();
+ * buffer.read(zipFile, entry);
+ * boolean found = scanner.scan(buffer.array(), 0, buffer.length(), query);
+ * </pre>
+ * 
+ * When the size of the class is known up front (from the zip entry or the file) the buffer is grown to fit it in
+ * one step and the bytes are read straight into it. If not, or if the size turns out to be wrong, the buffer
+ * grows as needed. After reading an unusually large class the buffer is not kept at that size.
+ * <p>
+ * Instances are not thread safe, {@link #forCurrentThread()} provides one for use by the calling thread.
+ *
+ * @author Andy Clement
+ */
+public final class ClassBytesBuffer {
+
+	private static final int INITIAL_SIZE = 8192;
+
+	// A buffer grown beyond this for one class is replaced by a smaller one when the next class is read
+	private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+	// The largest array size that can be reliably allocated
+	private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+	private static final ThreadLocal<ClassBytesBuffer> threadBuffer = new ThreadLocal<ClassBytesBuffer>() {
+		@Override
+		protected ClassBytesBuffer initialValue() {
+			return new ClassBytesBuffer();
+		}
+	};
+
+	private byte[] buffer;
+
+	private int length;
+
+	public ClassBytesBuffer() {
+		this(INITIAL_SIZE);
+	}
+
+	/**
+	 * @param initialSize the initial capacity of the buffer
+	 */
+	public ClassBytesBuffer(int initialSize) {
+		buffer = new byte[initialSize];
+	}
+
+	/**
+	 * @return a buffer for exclusive use by the calling thread
+	 */
+	public static ClassBytesBuffer forCurrentThread() {
+		return threadBuffer.get();
+	}
+
+	/**
+	 * Read the whole of the stream into the buffer, replacing what was there. The stream is closed on return.
+	 * 
+	 * @param stream the stream containing the bytecode for the class
+	 * @return the number of bytes read
+	 * @throws UncheckedIOException if reading the stream fails
+	 */
+	public int read(InputStream stream) {
+		return read(stream, -1);
+	}
+
+	/**
+	 * Read the whole of the stream, which is expected to contain the specified number of bytes, into the buffer,
+	 * replacing what was there. The stream is closed on return.
+	 * 
+	 * @param stream the stream containing the bytecode for the class
+	 * @param size the expected number of bytes, or -1 if not known
+	 * @return the number of bytes read
+	 * @throws UncheckedIOException if reading the stream fails
+	 */
+	public int read(InputStream stream, long size) {
+		if (size > MAX_SIZE) {
+			throw new IllegalArgumentException("Too large to read into a buffer: " + size);
+		}
+		reserve(size < 0 ? INITIAL_SIZE : (int) size);
+		readFully(stream);
+		return length;
+	}
+
+	/**
+	 * Read an entry of a mapped jar into the buffer, replacing what was there. A stored entry is copied from the
+	 * mapping, a deflated one is inflated straight into the buffer (using an inflater kept for the calling thread).
+	 * 
+	 * @param jar the jar
+	 * @param entry the index of the entry
+	 * @return the number of bytes read
+	 * @throws UncheckedIOException if the entry cannot be read
+	 */
+	public int read(MappedJar jar, int entry) {
+		try {
+			switch (jar.getMethod(entry)) {
+			case MappedJar.STORED:
+				int size = jar.getCompressedSize(entry);
+				ByteBuffer view = jar.classMapping().duplicate();
+				((Buffer) view).position(jar.getDataOffset(entry));
+				view.get(reserve(size), 0, size);
+				length = size;
+				return length;
+			case MappedJar.DEFLATED:
+				return EntryInflater.forCurrentThread().inflate(jar, entry, this);
+			default:
+				throw new ZipException("Unsupported compression method " + jar.getMethod(entry) + " for entry " + jar.getName(entry));
+			}
+		} catch (ZipException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Read an entry of a zip (or jar) file into the buffer, replacing what was there. The size recorded for the
+	 * entry is used to size the buffer.
+	 * 
+	 * @param zipFile the zip file
+	 * @param entry the entry to read
+	 * @return the number of bytes read
+	 * @throws UncheckedIOException if reading the entry fails
+	 */
+	public int read(ZipFile zipFile, ZipEntry entry) {
+		try {
+			return read(zipFile.getInputStream(entry), entry.getSize());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Read a file into the buffer, replacing what was there.
+	 * 
+	 * @param file the file
+	 * @return the number of bytes read
+	 * @throws UncheckedIOException if reading the file fails
+	 */
+	public int read(Path file) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return read(channel, channel.size());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Read from a channel into the buffer, replacing what was there. When the size is known exactly that many bytes
+	 * are read (fewer if the channel ends first), which saves a read to find the end when the size comes from the
+	 * file itself, otherwise the rest of the channel is read. The channel is not closed.
+	 * 
+	 * @param channel the channel containing the bytecode for the class
+	 * @param size the number of bytes to read, or -1 to read to the end of the channel
+	 * @return the number of bytes read
+	 * @throws IOException if reading the channel fails
+	 */
+	public int read(ReadableByteChannel channel, long size) throws IOException {
+		if (size > MAX_SIZE) {
+			throw new IllegalArgumentException("Too large to read into a buffer: " + size);
+		}
+		if (size >= 0) {
+			byte[] bytes = reserve((int) size);
+			length = Math.max(0, readFully(channel, ByteBuffer.wrap(bytes, 0, (int) size)));
+			return length;
+		}
+		byte[] bytes = reserve(INITIAL_SIZE);
+		int n = 0;
+		while (true) {
+			if (n == bytes.length) {
+				bytes = grow();
+			}
+			int read = readFully(channel, ByteBuffer.wrap(bytes, n, bytes.length - n));
+			if (read < 0) {
+				break;
+			}
+			n += read;
+			length = n;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of bytes read into the buffer (until full), or -1 if the channel ended first with nothing read
+	 */
+	private static int readFully(ReadableByteChannel channel, ByteBuffer target) throws IOException {
+		int start = target.position();
+		while (target.hasRemaining()) {
+			if (channel.read(target) < 0) {
+				break;
+			}
+		}
+		int n = target.position() - start;
+		return n == 0 ? -1 : n;
+	}
+
+	/**
+	 * @return the array holding the bytes read, which start at offset 0. The array is reused by the next read.
+	 */
+	public byte[] array() {
+		return buffer;
+	}
+
+	/**
+	 * @return the number of bytes read
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return a copy of the bytes read
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, length);
+	}
+
+	/**
+	 * Make sure the buffer can hold the specified number of bytes, and empty it.
+	 * @return the array to fill
+	 */
+	byte[] reserve(int capacity) {
+		if (buffer.length > MAX_RETAINED_SIZE && capacity <= MAX_RETAINED_SIZE) {
+			buffer = new byte[Math.max(capacity, INITIAL_SIZE)];
+		} else if (buffer.length < capacity) {
+			buffer = new byte[capacity];
+		}
+		length = 0;
+		return buffer;
+	}
+
+	/**
+	 * Grow the buffer, keeping its contents.
+	 * @return the (new) array
+	 */
+	byte[] grow() {
+		buffer = Arrays.copyOf(buffer, grow(buffer.length));
+		return buffer;
+	}
+
+	void setLength(int length) {
+		this.length = length;
+	}
+
+	/**
+	 * Load the whole of a stream into a byte array of exactly the right size. If the expected size is right the
+	 * bytes are read straight into the array that is returned. The stream is closed on return.
+	 */
+	static byte[] load(InputStream stream, long size) {
+		if (size > MAX_SIZE) {
+			throw new IllegalArgumentException("Too large to read into a byte array: " + size);
+		}
+		ClassBytesBuffer result = new ClassBytesBuffer(size < 0 ? INITIAL_SIZE : (int) size);
+		result.readFully(stream);
+		return result.buffer.length == result.length ? result.buffer : result.toByteArray();
+	}
+
+	/**
+	 * Read the stream to its end into the buffer, growing it as necessary.
+	 * @param stream the stream to read (closed on return)
+	 */
+	private void readFully(InputStream stream) {
+		byte[] bytes = buffer;
+		int n = 0;
+		try {
+			while (true) {
+				if (n == bytes.length) {
+					// Either the size was not known or it was wrong, check for the end before growing
+					int b = stream.read();
+					if (b < 0) {
+						break;
+					}
+					bytes = Arrays.copyOf(bytes, grow(n));
+					bytes[n++] = (byte) b;
+				}
+				int read = stream.read(bytes, n, bytes.length - n);
+				if (read < 0) {
+					break;
+				}
+				n += read;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Problem loading bytes from input stream", e);
+		} finally {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// Everything needed has been read
+			}
+		}
+		buffer = bytes;
+		length = n;
+	}
+
+	private static int grow(int size) {
+		if (size == MAX_SIZE) {
+			throw new OutOfMemoryError("Class too large to read into a byte array");
+		}
+		return (int) Math.min((long) size + Math.max(size, INITIAL_SIZE), MAX_SIZE);
+	}
+}
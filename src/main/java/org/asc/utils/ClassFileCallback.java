@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+/**
+ * Receives the results of a {@link DirectoryScanner}. Methods are called on the threads doing the scanning, so
+ * implementations must be thread safe. Within a call the scanner that produced the result is
+ * {@link TypeAnnotationScanner#forCurrentThread()}, so for an {@link ScanResult#UNPARSEABLE} class
+ * {@link TypeAnnotationScanner#getFailure()} on it says why.
+ *
+ * @author Andy Clement
+ */
+public interface ClassFileCallback {
+
+	/**
+	 * @param file the class file
+	 * @param result whether the class has the annotation
+	 */
+	void scanned(Path file, ScanResult result);
+
+	/**
+	 * Called when a class file or directory cannot be read. By default this stops the scan by throwing.
+	 * 
+	 * @param path the class file or directory
+	 * @param e the problem reading it
+	 */
+	default void failed(Path path, IOException e) {
+		throw new UncheckedIOException("Problem reading " + path, e);
+	}
+}
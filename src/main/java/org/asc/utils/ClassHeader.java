@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * The header of a class: its version, access flags and the names of the class and its superclass. Reading just
+ * the header stops right after the super_class entry, so no fields, methods or attributes are looked at and (when
+ * reading from a stream) nothing beyond the header is read. The names are only decoded if asked for, so filters
+ * on the version or access flags do not pay for them.
+ *
+ * @author Andy Clement
+ * @see TypeAnnotationScanner#readHeader(byte[])
+ */
+public final class ClassHeader {
+
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_INTERFACE = 0x0200;
+	public static final int ACC_ABSTRACT = 0x0400;
+	public static final int ACC_SYNTHETIC = 0x1000;
+	public static final int ACC_ANNOTATION = 0x2000;
+	public static final int ACC_ENUM = 0x4000;
+	public static final int ACC_MODULE = 0x8000;
+
+	private final byte[] bytes;
+	private final int minorVersion;
+	private final int majorVersion;
+	private final int accessFlags;
+	// Offsets of the Utf8 entries (their length) for the class and superclass names, 0 if there is no superclass
+	private final int classNameOffset;
+	private final int superClassNameOffset;
+
+	ClassHeader(byte[] bytes, int minorVersion, int majorVersion, int accessFlags, int classNameOffset,
+			int superClassNameOffset) {
+		this.bytes = bytes;
+		this.minorVersion = minorVersion;
+		this.majorVersion = majorVersion;
+		this.accessFlags = accessFlags;
+		this.classNameOffset = classNameOffset;
+		this.superClassNameOffset = superClassNameOffset;
+	}
+
+	public int getMinorVersion() {
+		return minorVersion;
+	}
+
+	/**
+	 * @return the major version of the class file format (e.g. 52 for Java 8, 65 for Java 21)
+	 */
+	public int getMajorVersion() {
+		return majorVersion;
+	}
+
+	/**
+	 * @return the Java version the class file format version corresponds to (e.g. 8 for major version 52),
+	 * only meaningful for classes compiled for Java 5 or later
+	 */
+	public int getJavaVersion() {
+		return majorVersion - 44;
+	}
+
+	/**
+	 * @return the access flags of the class (see the <tt>ACC_</tt> constants)
+	 */
+	public int getAccessFlags() {
+		return accessFlags;
+	}
+
+	public boolean isPublic() {
+		return (accessFlags & ACC_PUBLIC) != 0;
+	}
+
+	public boolean isFinal() {
+		return (accessFlags & ACC_FINAL) != 0;
+	}
+
+	/**
+	 * @return true for interfaces (which includes annotation types)
+	 */
+	public boolean isInterface() {
+		return (accessFlags & ACC_INTERFACE) != 0;
+	}
+
+	public boolean isAbstract() {
+		return (accessFlags & ACC_ABSTRACT) != 0;
+	}
+
+	public boolean isSynthetic() {
+		return (accessFlags & ACC_SYNTHETIC) != 0;
+	}
+
+	public boolean isAnnotation() {
+		return (accessFlags & ACC_ANNOTATION) != 0;
+	}
+
+	public boolean isEnum() {
+		return (accessFlags & ACC_ENUM) != 0;
+	}
+
+	public boolean isModule() {
+		return (accessFlags & ACC_MODULE) != 0;
+	}
+
+	/**
+	 * @return the name of the class, in internal form (e.g. <tt>java/lang/String</tt>)
+	 */
+	public String getClassName() {
+		return decode(classNameOffset);
+	}
+
+	/**
+	 * @return the name of the superclass, in internal form (e.g. <tt>java/lang/Object</tt>), or null if there is
+	 * no superclass (<tt>java/lang/Object</tt> itself and <tt>module-info</tt>)
+	 */
+	public String getSuperClassName() {
+		return superClassNameOffset == 0 ? null : decode(superClassNameOffset);
+	}
+
+	private String decode(int offset) {
+		int length = ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+		return AnnotationQuery.decode(bytes, offset + 2, length);
+	}
+
+	@Override
+	public String toString() {
+		return "ClassHeader[" + getClassName() + ",version=" + majorVersion + "." + minorVersion + ",access=0x"
+				+ Integer.toHexString(accessFlags) + "]";
+	}
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A question about a class, built up from annotation presence, access flags, the class name and the superclass
+ * combined with and/or/not. For example "a public concrete class annotated with @Entity but not @Embeddable":
+ * <pre>
+ * ClassPredicate.hasAccess(ClassHeader.ACC_PUBLIC)
+ *     .and(ClassPredicate.hasAccess(ClassHeader.ACC_ABSTRACT | ClassHeader.ACC_INTERFACE).negate())
+ *     .and(ClassPredicate.annotatedWith(entity))
+ *     .and(ClassPredicate.annotatedWith(embeddable).negate())
+ * </pre>
+ * A predicate is evaluated in a single pass over the class by
+ * {@link TypeAnnotationScanner#evaluate(byte[], ClassPredicate)}, cheapest checks first. When the constant pool
+ * has been walked the header checks (access flags and names) are made, along with which of the annotations
+ * could possibly be present. Only if that does not decide the outcome are the class attributes walked and
+ * that stops as soon as the outcome is decided. All the annotations in a predicate are searched for together,
+ * as an {@link AnnotationQuerySet}.
+ * <p>
+ * Predicates are immutable and can be shared between threads.
+ *
+ * @author Andy Clement
+ */
+public abstract class ClassPredicate {
+
+	// Outcomes of evaluating a predicate part way through a scan
+	static final int FALSE = 0;
+	static final int TRUE = 1;
+	static final int UNKNOWN = 2;
+
+	// Relative costs, used to order the operands of and/or
+	static final int HEADER_COST = 0;
+	static final int ANNOTATION_COST = 1;
+
+	// The annotations involved, worked out on first use
+	private volatile AnnotationQuerySet querySet;
+
+	ClassPredicate() {
+	}
+
+	/**
+	 * @param query the annotation
+	 * @return a predicate that is true for classes with the annotation at the type level
+	 */
+	public static ClassPredicate annotatedWith(AnnotationQuery query) {
+		return new Annotated(query);
+	}
+
+	/**
+	 * @param annotationClass the annotation type
+	 * @return a predicate that is true for classes with the annotation at the type level
+	 */
+	public static ClassPredicate annotatedWith(Class<?> annotationClass) {
+		return new Annotated(AnnotationQuery.of(annotationClass));
+	}
+
+	/**
+	 * @param flags some access flags (see the <tt>ACC_</tt> constants in {@link ClassHeader})
+	 * @return a predicate that is true for classes with all of the access flags set
+	 */
+	public static ClassPredicate hasAccess(int flags) {
+		return new Access(flags);
+	}
+
+	/**
+	 * @param prefix the start of a class name, in internal form (e.g. <tt>org/example/</tt>)
+	 * @return a predicate that is true for classes whose name starts with the prefix
+	 */
+	public static ClassPredicate nameStartsWith(String prefix) {
+		return new NamePrefix(prefix);
+	}
+
+	/**
+	 * @param superClassName the name of a class, in internal form (e.g. <tt>java/lang/Enum</tt>)
+	 * @return a predicate that is true for classes that directly extend that class
+	 */
+	public static ClassPredicate extendsClass(String superClassName) {
+		return new SuperClass(superClassName);
+	}
+
+	/**
+	 * @return a predicate that is true when all of the predicates are true
+	 */
+	public static ClassPredicate and(ClassPredicate... predicates) {
+		return new And(predicates);
+	}
+
+	/**
+	 * @return a predicate that is true when any of the predicates are true
+	 */
+	public static ClassPredicate or(ClassPredicate... predicates) {
+		return new Or(predicates);
+	}
+
+	/**
+	 * @return a predicate that is true when the predicate is false
+	 */
+	public static ClassPredicate not(ClassPredicate predicate) {
+		return new Not(predicate);
+	}
+
+	public ClassPredicate and(ClassPredicate other) {
+		return and(this, other);
+	}
+
+	public ClassPredicate or(ClassPredicate other) {
+		return or(this, other);
+	}
+
+	public ClassPredicate negate() {
+		return not(this);
+	}
+
+	/**
+	 * @param scanner the scanner part way through a class, which provides the header and annotation state
+	 * @return {@link #TRUE}, {@link #FALSE} or {@link #UNKNOWN} if it depends on annotations not yet resolved
+	 */
+	abstract int evaluate(TypeAnnotationScanner scanner);
+
+	/**
+	 * @return the relative cost of evaluating this predicate, {@link #HEADER_COST} or {@link #ANNOTATION_COST}
+	 */
+	abstract int cost();
+
+	abstract void collectQueries(List<AnnotationQuery> queries);
+
+	/**
+	 * @return the annotations this predicate involves, to search for in a single pass
+	 */
+	AnnotationQuerySet querySet() {
+		AnnotationQuerySet result = querySet;
+		if (result == null) {
+			List<AnnotationQuery> queries = new ArrayList<AnnotationQuery>();
+			collectQueries(queries);
+			querySet = result = AnnotationQuerySet.of(queries);
+		}
+		return result;
+	}
+
+	private static final class Annotated extends ClassPredicate {
+
+		private final AnnotationQuery query;
+
+		Annotated(AnnotationQuery query) {
+			this.query = query;
+		}
+
+		@Override
+		int evaluate(TypeAnnotationScanner scanner) {
+			return scanner.annotationState(query);
+		}
+
+		@Override
+		int cost() {
+			return ANNOTATION_COST;
+		}
+
+		@Override
+		void collectQueries(List<AnnotationQuery> queries) {
+			for (AnnotationQuery existing : queries) {
+				if (existing == query) {
+					return;
+				}
+				if (Arrays.equals(existing.bytes(), query.bytes())) {
+					if (existing.attributes() != query.attributes()) {
+						throw new IllegalArgumentException("Annotation type used with different retentions: " + query.getDescriptor());
+					}
+					return;
+				}
+			}
+			queries.add(query);
+		}
+
+		@Override
+		public String toString() {
+			return "@" + query.getDescriptor();
+		}
+	}
+
+	private static abstract class HeaderPredicate extends ClassPredicate {
+
+		@Override
+		int cost() {
+			return HEADER_COST;
+		}
+
+		@Override
+		void collectQueries(List<AnnotationQuery> queries) {
+		}
+	}
+
+	private static final class Access extends HeaderPredicate {
+
+		private final int flags;
+
+		Access(int flags) {
+			this.flags = flags;
+		}
+
+		@Override
+		int evaluate(TypeAnnotationScanner scanner) {
+			return (scanner.accessFlags() & flags) == flags ? TRUE : FALSE;
+		}
+
+		@Override
+		public String toString() {
+			return "access(0x" + Integer.toHexString(flags) + ")";
+		}
+	}
+
+	private static final class NamePrefix extends HeaderPredicate {
+
+		private final String prefix;
+		private final byte[] bytes;
+
+		NamePrefix(String prefix) {
+			this.prefix = prefix;
+			this.bytes = AnnotationQuery.encode(prefix);
+		}
+
+		@Override
+		int evaluate(TypeAnnotationScanner scanner) {
+			return scanner.classNameStartsWith(bytes) ? TRUE : FALSE;
+		}
+
+		@Override
+		public String toString() {
+			return "name(" + prefix + "*)";
+		}
+	}
+
+	private static final class SuperClass extends HeaderPredicate {
+
+		private final String superClassName;
+		private final byte[] bytes;
+
+		SuperClass(String superClassName) {
+			this.superClassName = superClassName;
+			this.bytes = AnnotationQuery.encode(superClassName);
+		}
+
+		@Override
+		int evaluate(TypeAnnotationScanner scanner) {
+			return scanner.superClassIs(bytes) ? TRUE : FALSE;
+		}
+
+		@Override
+		public String toString() {
+			return "extends(" + superClassName + ")";
+		}
+	}
+
+	private static final class Not extends ClassPredicate {
+
+		private final ClassPredicate predicate;
+
+		Not(ClassPredicate predicate) {
+			this.predicate = predicate;
+		}
+
+		@Override
+		int evaluate(TypeAnnotationScanner scanner) {
+			int value = predicate.evaluate(scanner);
+			return value == UNKNOWN ? UNKNOWN : value == TRUE ? FALSE : TRUE;
+		}
+
+		@Override
+		int cost() {
+			return predicate.cost();
+		}
+
+		@Override
+		void collectQueries(List<AnnotationQuery> queries) {
+			predicate.collectQueries(queries);
+		}
+
+		@Override
+		public String toString() {
+			return "!" + predicate;
+		}
+	}
+
+	private static final Comparator<ClassPredicate> byCost = new Comparator<ClassPredicate>() {
+		@Override
+		public int compare(ClassPredicate p1, ClassPredicate p2) {
+			return p1.cost() - p2.cost();
+		}
+	};
+
+	/**
+	 * And/or, the operands are held cheapest first (a stable sort, so otherwise in the order given) so that
+	 * checks needing the annotations are only made if the cheaper checks do not decide the outcome.
+	 */
+	private static abstract class Junction extends ClassPredicate {
+
+		final ClassPredicate[] predicates;
+		private final int cost;
+
+		Junction(ClassPredicate[] predicates) {
+			this.predicates = predicates.clone();
+			Arrays.sort(this.predicates, byCost);
+			int cost = HEADER_COST;
+			for (ClassPredicate predicate : predicates) {
+				cost = Math.max(cost, predicate.cost());
+			}
+			this.cost = cost;
+		}
+
+		/**
+		 * @param decisive the outcome of an operand that decides the outcome of the junction
+		 */
+		int evaluate(TypeAnnotationScanner scanner, int decisive) {
+			int result = decisive == TRUE ? FALSE : TRUE;
+			for (ClassPredicate predicate : predicates) {
+				int value = predicate.evaluate(scanner);
+				if (value == decisive) {
+					return decisive;
+				}
+				if (value == UNKNOWN) {
+					result = UNKNOWN;
+				}
+			}
+			return result;
+		}
+
+		@Override
+		int cost() {
+			return cost;
+		}
+
+		@Override
+		void collectQueries(List<AnnotationQuery> queries) {
+			for (ClassPredicate predicate : predicates) {
+				predicate.collectQueries(queries);
+			}
+		}
+
+		String toString(String operator) {
+			StringBuilder s = new StringBuilder("(");
+			for (int i = 0; i < predicates.length; i++) {
+				if (i > 0) {
+					s.append(operator);
+				}
+				s.append(predicates[i]);
+			}
+			return s.append(')').toString();
+		}
+	}
+
+	private static final class And extends Junction {
+
+		And(ClassPredicate[] predicates) {
+			super(predicates);
+		}
+
+		@Override
+		int evaluate(TypeAnnotationScanner scanner) {
+			return evaluate(scanner, FALSE);
+		}
+
+		@Override
+		public String toString() {
+			return toString(" && ");
+		}
+	}
+
+	private static final class Or extends Junction {
+
+		Or(ClassPredicate[] predicates) {
+			super(predicates);
+		}
+
+		@Override
+		int evaluate(TypeAnnotationScanner scanner) {
+			return evaluate(scanner, TRUE);
+		}
+
+		@Override
+		public String toString() {
+			return toString(" || ");
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * The structure of a class, worked out once so that any number of later queries against the same class bytes
+ * do not need to walk the constant pool, fields and methods again. It holds the offset of each Utf8 constant
+ * pool entry, the offsets of the fields, methods and class attributes sections and, for each of the annotation
+ * attributes, the constant pool indices of the type level annotation types. A query against the skeleton only
+ * compares the annotation types, so it costs time proportional to the number of type level annotations.
+ * <p>
+ * A skeleton is immutable (and so can be cached and shared between threads) as long as the class bytes it was
+ * created from are not modified.
+ *
+ * @author Andy Clement
+ */
+public final class ClassSkeleton {
+
+	private static final int[] NO_ANNOTATIONS = new int[0];
+
+	private final byte[] bytes;
+
+	// The offset of each Utf8 entry (its length field) indexed by constant pool index, 0 for other entries
+	private final int[] constantPool;
+
+	private final int fieldsOffset;
+	private final int methodsOffset;
+	private final int attributesOffset;
+
+	// Offset of each annotation attribute (its attribute_name_index), -1 if the class does not have it
+	private final int visibleAnnotationsOffset;
+	private final int invisibleAnnotationsOffset;
+
+	// Constant pool indices of the annotation types in each annotation attribute
+	private final int[] visibleAnnotationTypes;
+	private final int[] invisibleAnnotationTypes;
+
+	ClassSkeleton(byte[] bytes, int[] constantPool, int fieldsOffset, int methodsOffset, int attributesOffset,
+			int visibleAnnotationsOffset, int[] visibleAnnotationTypes, int invisibleAnnotationsOffset,
+			int[] invisibleAnnotationTypes) {
+		this.bytes = bytes;
+		this.constantPool = constantPool;
+		this.fieldsOffset = fieldsOffset;
+		this.methodsOffset = methodsOffset;
+		this.attributesOffset = attributesOffset;
+		this.visibleAnnotationsOffset = visibleAnnotationsOffset;
+		this.visibleAnnotationTypes = visibleAnnotationTypes == null ? NO_ANNOTATIONS : visibleAnnotationTypes;
+		this.invisibleAnnotationsOffset = invisibleAnnotationsOffset;
+		this.invisibleAnnotationTypes = invisibleAnnotationTypes == null ? NO_ANNOTATIONS : invisibleAnnotationTypes;
+	}
+
+	/**
+	 * Work out the skeleton of the class stored in the specified bytes. The bytes are retained (not copied) by
+	 * the skeleton and must not be modified afterwards.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @return the skeleton
+	 * @throws IllegalStateException if the class cannot be parsed
+	 */
+	public static ClassSkeleton of(byte[] classfilebytes) {
+		return TypeAnnotationScanner.forCurrentThread().skeleton(classfilebytes);
+	}
+
+	/**
+	 * @param query the annotation to search for
+	 * @return true if the annotation is a type level annotation on the class
+	 */
+	public boolean hasAnnotation(AnnotationQuery query) {
+		return findAnnotation(query) != 0;
+	}
+
+	/**
+	 * @param query the annotation to search for
+	 * @return {@link TypeAnnotationScanner#RUNTIME_VISIBLE} or {@link TypeAnnotationScanner#RUNTIME_INVISIBLE}
+	 * depending on which attribute the annotation was found in, or 0 if it is not a type level annotation
+	 */
+	public int findAnnotation(AnnotationQuery query) {
+		int attributes = query.attributes();
+		byte[] annotationType = query.bytes();
+		if ((attributes & TypeAnnotationScanner.RUNTIME_VISIBLE) != 0 && contains(visibleAnnotationTypes, annotationType)) {
+			return TypeAnnotationScanner.RUNTIME_VISIBLE;
+		}
+		if ((attributes & TypeAnnotationScanner.RUNTIME_INVISIBLE) != 0 && contains(invisibleAnnotationTypes, annotationType)) {
+			return TypeAnnotationScanner.RUNTIME_INVISIBLE;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param querySet the annotations to search for (at most 64)
+	 * @return a mask with bit <tt>n</tt> set if the query at position <tt>n</tt> in the set is a type level
+	 * annotation on the class
+	 */
+	public long findAnnotations(AnnotationQuerySet querySet) {
+		if (querySet.size() > 64) {
+			throw new IllegalArgumentException("Query set too large for a long result");
+		}
+		ClassBytes data = new ArrayClassBytes().reset(bytes, 0, bytes.length);
+		return lookup(querySet, data, visibleAnnotationTypes, TypeAnnotationScanner.RUNTIME_VISIBLE)
+				| lookup(querySet, data, invisibleAnnotationTypes, TypeAnnotationScanner.RUNTIME_INVISIBLE);
+	}
+
+	private long lookup(AnnotationQuerySet querySet, ClassBytes data, int[] annotationTypes, int attribute) {
+		long found = 0;
+		for (int typeIndex : annotationTypes) {
+			int p = constantPool[typeIndex];
+			if (p == 0) {
+				continue;
+			}
+			int q = querySet.lookup(data, p + 2, data.u2(p));
+			if (q >= 0 && (querySet.get(q).attributes() & attribute) != 0) {
+				found |= 1L << q;
+			}
+		}
+		return found;
+	}
+
+	private boolean contains(int[] annotationTypes, byte[] annotationType) {
+		for (int typeIndex : annotationTypes) {
+			int p = constantPool[typeIndex];
+			if (p != 0 && (((bytes[p] & 0xff) << 8) | (bytes[p + 1] & 0xff)) == annotationType.length
+					&& ByteRanges.equals(bytes, p + 2, annotationType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of type level annotations (in either annotation attribute)
+	 */
+	public int getAnnotationCount() {
+		return visibleAnnotationTypes.length + invisibleAnnotationTypes.length;
+	}
+
+	byte[] bytes() {
+		return bytes;
+	}
+
+	/**
+	 * @param index a constant pool index
+	 * @return the offset of the Utf8 entry at that index (pointing at its length), 0 if it is not a Utf8 entry
+	 */
+	int utf8Offset(int index) {
+		return constantPool[index];
+	}
+
+	int fieldsOffset() {
+		return fieldsOffset;
+	}
+
+	int methodsOffset() {
+		return methodsOffset;
+	}
+
+	int attributesOffset() {
+		return attributesOffset;
+	}
+
+	int visibleAnnotationsOffset() {
+		return visibleAnnotationsOffset;
+	}
+
+	int invisibleAnnotationsOffset() {
+		return invisibleAnnotationsOffset;
+	}
+}
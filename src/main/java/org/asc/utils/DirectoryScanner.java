@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans the class files in a directory tree (such as the <tt>target/classes</tt> directory of a build) in
+ * parallel. Each directory is listed by its own task, subdirectories are walked in parallel and the class files of
+ * a directory are scanned in batches, each batch by one task on one thread so the opens and reads of a batch
+ * follow each other without the overhead of a task per file.
+ * <p>
+ * The work is tuned for many small files:
+ * <ul>
+ * <li>Entries whose names end <tt>.class</tt> are taken to be class files without checking, so each costs an
+ * open, a size check of the open file and a read (there is no separate stat of the path), other entries are
+ * checked to find the subdirectories. A directory with a name ending <tt>.class</tt> is therefore not walked, it
+ * is reported to {@link ClassFileCallback#failed(Path, IOException)}. Symbolic links to directories are not
+ * followed.
+ * <li>A class file is read with a {@link FileChannel} into the reusable {@link ClassBytesBuffer} of the thread
+ * doing the scanning and scanned in place by its {@link TypeAnnotationScanner#forCurrentThread() scanner}, so no
+ * memory is allocated per class. Files of {@link #MAP_THRESHOLD} bytes or more are mapped rather than read.
+ * <li>Each thread reads one file at a time, so the number of reads in flight (and of files open) is bounded by the
+ * parallelism of the pool.
+ * </ul>
+ * Instances are thread safe.
+ *
+ * @author Andy Clement
+ */
+public final class DirectoryScanner {
+
+	/**
+	 * Class files of at least this many bytes are mapped rather than read into a buffer.
+	 */
+	public static final int MAP_THRESHOLD = 1024 * 1024;
+
+	// The number of class files scanned by one task
+	private static final int BATCH_SIZE = 32;
+
+	private static final String CLASS_SUFFIX = ".class";
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Create a scanner that uses the common pool.
+	 */
+	public DirectoryScanner() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param pool the pool to run the scans in, its parallelism decides how many class files are read at once
+	 */
+	public DirectoryScanner(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Scan every class file in the directory tree for the annotation described by the query. This returns when
+	 * all of them have been scanned and reported to the callback.
+	 * 
+	 * @param root the directory at the root of the tree
+	 * @param query the annotation to search for
+	 * @param callback receives the result for each class file (on the threads doing the scanning)
+	 * @return the number of class files scanned
+	 */
+	public int scan(Path root, AnnotationQuery query, ClassFileCallback callback) {
+		Walk walk = new Walk(query, callback);
+		pool.invoke(walk.new DirectoryTask(root));
+		return walk.scanned.get();
+	}
+
+	/**
+	 * Find the class files in the directory tree that have the annotation described by the query. Class files that
+	 * cannot be parsed are not included.
+	 * 
+	 * @param root the directory at the root of the tree
+	 * @param query the annotation to search for
+	 * @return the class files with the annotation, in sorted order
+	 * @throws java.io.UncheckedIOException if a class file or directory cannot be read
+	 */
+	public List<Path> findAnnotated(Path root, AnnotationQuery query) {
+		final ConcurrentLinkedQueue<Path> found = new ConcurrentLinkedQueue<Path>();
+		scan(root, query, new ClassFileCallback() {
+			@Override
+			public void scanned(Path file, ScanResult result) {
+				if (result == ScanResult.MATCH) {
+					found.add(file);
+				}
+			}
+		});
+		List<Path> result = new ArrayList<Path>(found);
+		Collections.sort(result);
+		return result;
+	}
+
+	private static boolean isClassFile(Path path) {
+		Path name = path.getFileName();
+		return name != null && name.toString().endsWith(CLASS_SUFFIX);
+	}
+
+	/**
+	 * The state of one call to {@link DirectoryScanner#scan(Path, AnnotationQuery, ClassFileCallback)}.
+	 */
+	private static class Walk {
+
+		final AnnotationQuery query;
+
+		final ClassFileCallback callback;
+
+		final AtomicInteger scanned = new AtomicInteger();
+
+		Walk(AnnotationQuery query, ClassFileCallback callback) {
+			this.query = query;
+			this.callback = callback;
+		}
+
+		/**
+		 * Lists a directory, then walks its subdirectories and scans its class files in parallel.
+		 */
+		@SuppressWarnings("serial")
+		class DirectoryTask extends RecursiveAction {
+
+			private final Path directory;
+
+			DirectoryTask(Path directory) {
+				this.directory = directory;
+			}
+
+			@Override
+			protected void compute() {
+				List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+				List<Path> classFiles = new ArrayList<Path>();
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+					for (Path entry : entries) {
+						if (isClassFile(entry)) {
+							classFiles.add(entry);
+						} else if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+							tasks.add(new DirectoryTask(entry));
+						}
+					}
+				} catch (IOException e) {
+					callback.failed(directory, e);
+					return;
+				}
+				for (int i = 0; i < classFiles.size(); i += BATCH_SIZE) {
+					tasks.add(new BatchTask(classFiles, i, Math.min(i + BATCH_SIZE, classFiles.size())));
+				}
+				invokeAll(tasks);
+			}
+		}
+
+		/**
+		 * Scans some of the class files of a directory, one after another.
+		 */
+		@SuppressWarnings("serial")
+		class BatchTask extends RecursiveAction {
+
+			private final List<Path> classFiles;
+
+			private final int from;
+
+			private final int to;
+
+			BatchTask(List<Path> classFiles, int from, int to) {
+				this.classFiles = classFiles;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				TypeAnnotationScanner scanner = TypeAnnotationScanner.forCurrentThread();
+				ClassBytesBuffer buffer = ClassBytesBuffer.forCurrentThread();
+				for (int i = from; i < to; i++) {
+					Path file = classFiles.get(i);
+					ScanResult result;
+					try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+						long size = channel.size();
+						if (size >= MAP_THRESHOLD) {
+							result = scanner.evaluate(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), query);
+						} else {
+							int length = buffer.read(channel, size);
+							result = scanner.evaluate(buffer.array(), 0, length, query);
+						}
+					} catch (IOException e) {
+						callback.failed(file, e);
+						continue;
+					}
+					scanned.incrementAndGet();
+					callback.scanned(file, result);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates deflated entries of a {@link MappedJar}, one per thread: the Inflater and its buffers are reused for
+ * every entry rather than created per entry (as <tt>ZipFile.getInputStream</tt> does). An entry can be inflated
+ * whole, straight into a {@link ClassBytesBuffer} sized from the uncompressed size recorded in the central
+ * directory, a chunk at a time into an {@link IncrementalAnnotationScanner}, stopping as soon as the scanner
+ * has decided, or as a stream (see {@link MappedJar#getInputStream(int)}).
+ *
+ * @author Andy Clement
+ */
+final class EntryInflater {
+
+	// The compressed bytes are copied from the mapping this many at a time (Inflater has no ByteBuffer input
+	// before Java 11)
+	private static final int CHUNK_SIZE = 4096;
+
+	// When scanning this many bytes are inflated at a time, small so that little is inflated past the point
+	// where the scanner decides
+	private static final int SCAN_CHUNK_SIZE = 1024;
+
+	private static final byte[] DUMMY = new byte[1];
+
+	private static final ThreadLocal<EntryInflater> threadInflater = new ThreadLocal<EntryInflater>() {
+		@Override
+		protected EntryInflater initialValue() {
+			return new EntryInflater();
+		}
+	};
+
+	private final Inflater inflater = new Inflater(true);
+
+	private final byte[] input = new byte[CHUNK_SIZE];
+
+	private final byte[] output = new byte[SCAN_CHUNK_SIZE];
+
+	// The jar being read from, and a private view of its mapping for bulk copies out of it
+	private MappedJar jar;
+	private ByteBuffer view;
+
+	// The compressed bytes of the entry being inflated, still to be given to the inflater
+	private int inputPosition;
+	private int inputEnd;
+	private boolean inputEnded;
+
+	// Set while a stream is inflating with this instance, the stream may be read from another thread
+	private volatile boolean streaming;
+
+	/**
+	 * @return the inflater of the current thread, or a new one if a stream opened on this thread is still using
+	 * it
+	 */
+	static EntryInflater forCurrentThread() {
+		EntryInflater inflater = threadInflater.get();
+		return inflater.streaming ? new EntryInflater() : inflater;
+	}
+
+	/**
+	 * Inflate a deflated entry into the buffer, replacing what was there.
+	 * @return the number of bytes inflated
+	 * @throws UncheckedIOException if the entry is corrupt
+	 */
+	int inflate(MappedJar jar, int entry, ClassBytesBuffer buffer) {
+		start(jar, entry);
+		int size = jar.getSize(entry);
+		// One spare byte so that the inflater is seen to finish without growing the buffer
+		byte[] bytes = buffer.reserve(size < 0 ? CHUNK_SIZE : size + 1);
+		int n = 0;
+		try {
+			while (!inflater.finished()) {
+				if (n == bytes.length) {
+					// The recorded size was wrong (or unknown)
+					bytes = buffer.grow();
+				}
+				n += inflate(bytes, n, bytes.length - n);
+			}
+		} finally {
+			buffer.setLength(n);
+			release();
+		}
+		return n;
+	}
+
+	/**
+	 * Inflate a deflated entry a chunk at a time into the scanner (which must have been reset), until it has
+	 * decided or the entry ends.
+	 * @throws UncheckedIOException if the entry is corrupt
+	 */
+	void scan(MappedJar jar, int entry, IncrementalAnnotationScanner scanner) {
+		start(jar, entry);
+		try {
+			while (!inflater.finished()) {
+				int n = inflate(output, 0, output.length);
+				if (scanner.feed(output, 0, n)) {
+					return;
+				}
+			}
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Open a stream of the inflated contents of a deflated entry. This instance is used by the stream until it
+	 * is closed or reaches the end of the entry.
+	 */
+	InputStream stream(MappedJar jar, int entry) {
+		start(jar, entry);
+		streaming = true;
+		return new EntryStream(jar.getSize(entry));
+	}
+
+	/**
+	 * @return the number of compressed bytes the inflater consumed for the last entry inflated or scanned
+	 */
+	long bytesRead() {
+		return inflater.getBytesRead();
+	}
+
+	private void start(MappedJar jar, int entry) {
+		int offset;
+		try {
+			offset = jar.getDataOffset(entry);
+		} catch (ZipException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.jar = jar;
+		this.view = jar.classMapping().duplicate();
+		inputPosition = offset;
+		inputEnd = offset + jar.getCompressedSize(entry);
+		inputEnded = false;
+		inflater.reset();
+	}
+
+	/**
+	 * Stop referring to the jar, this is held by a thread local and should not keep the mapping alive.
+	 */
+	private void release() {
+		jar = null;
+		view = null;
+	}
+
+	/**
+	 * Inflate up to the specified number of bytes, supplying the inflater with input as it needs it.
+	 * @return the number of bytes inflated, 0 only if the inflater has finished
+	 */
+	private int inflate(byte[] bytes, int offset, int length) {
+		try {
+			int n;
+			while ((n = inflater.inflate(bytes, offset, length)) == 0) {
+				if (inflater.finished()) {
+					return 0;
+				}
+				if (inflater.needsDictionary() || !inflater.needsInput()) {
+					throw new DataFormatException("Unable to make progress");
+				}
+				if (inputPosition < inputEnd) {
+					int len = Math.min(input.length, inputEnd - inputPosition);
+					((Buffer) view).position(inputPosition);
+					view.get(input, 0, len);
+					inputPosition += len;
+					inflater.setInput(input, 0, len);
+				} else if (!inputEnded) {
+					// A raw inflater needs an extra byte to be sure it has reached the end
+					inputEnded = true;
+					inflater.setInput(DUMMY, 0, 1);
+				} else {
+					throw new DataFormatException("Unexpected end of deflated data");
+				}
+			}
+			return n;
+		} catch (DataFormatException e) {
+			throw new UncheckedIOException(new ZipException("Corrupt entry in " + jar.getPath() + ": " + e.getMessage()));
+		}
+	}
+	/**
+	 * The inflated bytes of an entry, inflated as they are read.
+	 */
+	private final class EntryStream extends InputStream {
+
+		private final int size;
+		private final byte[] single = new byte[1];
+		private boolean closed;
+
+		EntryStream(int size) {
+			this.size = size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (off < 0 || len < 0 || len > b.length - off) {
+				throw new IndexOutOfBoundsException();
+			}
+			if (closed) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			int n;
+			try {
+				n = inflate(b, off, len);
+			} catch (UncheckedIOException e) {
+				close();
+				throw e.getCause();
+			}
+			if (n == 0) {
+				close();
+				return -1;
+			}
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return closed ? 0 : size < 0 ? 1 : size - (int) inflater.getBytesWritten();
+		}
+
+		@Override
+		public void close() {
+			// Once closed the inflater is free for other entries, which must not be disturbed by this stream
+			if (!closed) {
+				closed = true;
+				release();
+				streaming = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,727 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.asc.utils.TypeAnnotationScanner.*;
+
+/**
+ * Scans a class file for a particular annotation at the type level, where the class bytes are pushed in as
+ * they arrive (for example as they are read from a non-blocking channel) rather than being supplied all at
+ * once. The chunks can be any size, down to a single byte, and nothing is buffered beyond the few bytes of a
+ * structure that spans two chunks. Instead of remembering where each constant pool entry is (there is no
+ * complete class to go back to) the Utf8 entries are compared against the annotation type and attribute names
+ * as they stream past, and just the outcome of that is recorded for each constant pool index.
+ * <p>
+ * The result is known the moment enough of the class has been seen to decide it, often at the end of the
+ * constant pool, and {@link #feed(byte[], int, int)} returns true at that point so the caller can stop reading.
+ * <pre>
+ * scanner.reset(query);
+ * while (!scanner.feed(chunk, 0, read(chunk))) { ... }
+ * boolean found = scanner.isMatch();
+ * </pre>
+ * Instances can be reused for any number of scans (see {@link #reset(AnnotationQuery)}) but are not thread safe.
+ *
+ * @author Andy Clement
+ */
+public class IncrementalAnnotationScanner {
+
+	// Each state is waiting for the fixed size structure in the comment (except CONSTANT_UTF8_BYTES)
+	private static final int HEADER = 0;                // u4 magic, u2 minor, u2 major, u2 constant_pool_count
+	private static final int CONSTANT_TAG = 1;          // u1 tag
+	private static final int CONSTANT_UTF8_LENGTH = 2;  // u2 length
+	private static final int CONSTANT_UTF8_BYTES = 3;   // u1 bytes[length], compared as they arrive
+	private static final int CLASS_INFO = 4;            // u2 access_flags, u2 this_class, u2 super_class, u2 interfaces_count
+	private static final int MEMBERS_COUNT = 5;         // u2 fields_count or methods_count
+	private static final int MEMBER = 6;                // u2 access_flags, u2 name_index, u2 descriptor_index, u2 attributes_count
+	private static final int MEMBER_ATTRIBUTE = 7;      // u2 attribute_name_index, u4 attribute_length
+	private static final int ATTRIBUTES_COUNT = 8;      // u2 attributes_count
+	private static final int ATTRIBUTE = 9;             // u2 attribute_name_index, u4 attribute_length
+	private static final int ANNOTATIONS_COUNT = 10;    // u2 num_annotations
+	private static final int ANNOTATION = 11;           // u2 type_index, u2 num_element_value_pairs
+	private static final int ELEMENT_VALUE_PAIR = 12;   // u2 element_name_index, u1 tag
+	private static final int ELEMENT_VALUE = 13;        // u1 tag
+	private static final int NESTED_ANNOTATION = 14;    // u2 type_index, u2 num_element_value_pairs
+	private static final int ARRAY_VALUE = 15;          // u2 num_values
+	private static final int DONE = 16;
+
+	// What each constant pool Utf8 entry turned out to be
+	private static final byte ANNOTATION_TYPE = 0x01;
+	private static final byte VISIBLE_ANNOTATIONS = 0x02;
+	private static final byte INVISIBLE_ANNOTATIONS = 0x04;
+	// Set for every Utf8 entry, so that references to other kinds of entry can be rejected
+	private static final byte UTF8 = 0x08;
+
+	private AnnotationQuery query;
+
+	private int state;
+	// Size of the structure the current state is waiting for
+	private int need;
+	// Bytes to pass over before continuing in the current state
+	private long skip;
+	// Holds a structure that is split across chunks
+	private final byte[] partial = new byte[10];
+	private int partialLength;
+
+	// Indexed by constant pool index, UTF8 if the entry at that index is a Utf8 entry along with which of
+	// ANNOTATION_TYPE/VISIBLE_ANNOTATIONS/INVISIBLE_ANNOTATIONS it is. Reused across scans, only growing if necessary.
+	private byte[] constantPool = new byte[256];
+	private int constantPoolCount;
+	private int constantIndex;
+	// Which of the flags are seen anywhere in the constant pool
+	private int constantPoolFlags;
+
+	// The Utf8 entry currently being compared, the flags it could still match and how far through it we are
+	private int utf8Candidates;
+	private int utf8Length;
+	private int utf8Position;
+
+	private int membersRemaining;
+	private boolean methods;
+	private int memberAttributesRemaining;
+	private int attributesRemaining;
+	// Which of RUNTIME_VISIBLE/RUNTIME_INVISIBLE attributes remain to be searched
+	private int attributesToSearch;
+	private int annotationsRemaining;
+
+	// The element values remaining at each level of nesting within an annotation, and whether
+	// each level is element_value_pairs (a name then a value) or an array (just values)
+	private int[] elementsRemaining = new int[8];
+	private boolean[] elementPairs = new boolean[8];
+	private int depth;
+
+	private boolean match;
+	private ScanFailure failure;
+	private int consumed;
+
+	// Used when feeding from a stream or a buffer without an accessible array
+	private byte[] transfer;
+
+	// Collects the bytes of a class header read from a stream
+	private byte[] header;
+
+	// Set if the end of the constant pool proved the class could not contain the annotation
+	private boolean rejectedByConstantPool;
+
+	/**
+	 * Prepare to scan a new class for the annotation described by the query, any previous scan is abandoned.
+	 * @param query the annotation to search for
+	 */
+	public void reset(AnnotationQuery query) {
+		if (query == null) {
+			throw new IllegalArgumentException("A query is required");
+		}
+		start(query);
+	}
+
+	/**
+	 * @param query the annotation to search for, or null to stop at the end of the class header
+	 */
+	private void start(AnnotationQuery query) {
+		this.query = query;
+		this.state = HEADER;
+		this.need = 10;
+		this.skip = 0;
+		this.partialLength = 0;
+		this.constantPoolFlags = 0;
+		this.attributesToSearch = query == null ? 0 : query.attributes();
+		this.depth = 0;
+		this.match = false;
+		this.failure = null;
+		this.rejectedByConstantPool = false;
+	}
+
+	/**
+	 * Supply the next chunk of the class bytes.
+	 * @param chunk holds the bytes
+	 * @param offset where the bytes start in the chunk
+	 * @param length how many bytes there are
+	 * @return true if the result is now known, no further bytes are required (and any supplied are ignored)
+	 */
+	public boolean feed(byte[] chunk, int offset, int length) {
+		int p = offset;
+		int max = offset + length;
+		while (state != DONE && p < max) {
+			if (skip != 0) {
+				int n = (int) Math.min(skip, max - p);
+				skip -= n;
+				p += n;
+			} else if (state == CONSTANT_UTF8_BYTES) {
+				p = compareUtf8(chunk, p, max);
+			} else if (partialLength == 0 && max - p >= need) {
+				// The common case, the whole structure is in this chunk
+				int at = p;
+				p += need;
+				process(chunk, at);
+			} else {
+				int n = Math.min(need - partialLength, max - p);
+				System.arraycopy(chunk, p, partial, partialLength, n);
+				partialLength += n;
+				p += n;
+				if (partialLength == need) {
+					partialLength = 0;
+					process(partial, 0);
+				}
+			}
+		}
+		consumed = p - offset;
+		return state == DONE;
+	}
+
+	/**
+	 * Supply the next chunk of the class bytes, those between the position and limit of the buffer. The position
+	 * is advanced past the bytes used, which is all of them unless the result became known part way through.
+	 * @param chunk holds the bytes
+	 * @return true if the result is now known, no further bytes are required
+	 */
+	public boolean feed(ByteBuffer chunk) {
+		if (chunk.hasArray()) {
+			boolean done = feed(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+			((Buffer) chunk).position(chunk.position() + consumed);
+			return done;
+		}
+		byte[] transfer = transfer();
+		while (chunk.hasRemaining()) {
+			int n = Math.min(transfer.length, chunk.remaining());
+			int position = chunk.position();
+			chunk.get(transfer, 0, n);
+			if (feed(transfer, 0, n)) {
+				((Buffer) chunk).position(position + consumed);
+				return true;
+			}
+		}
+		return state == DONE;
+	}
+
+	/**
+	 * Scan the class read from the stream for the annotation described by the query. The stream is read a
+	 * chunk at a time and only until the result is known, if the constant pool shows the class cannot have the
+	 * annotation then nothing after the constant pool is read (or, for a stream from a jar, inflated). Either way
+	 * the stream is closed on return.
+	 * 
+	 * @param stream the stream containing the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found as a type level annotation on the class
+	 * @throws IllegalStateException if the stream ends before the result is known
+	 */
+	public boolean scan(InputStream stream, AnnotationQuery query) {
+		read(stream, query);
+		return finish();
+	}
+
+	/**
+	 * As {@link #scan(InputStream, AnnotationQuery)} but does not throw if the class cannot be parsed, it is
+	 * reported as {@link ScanResult#UNPARSEABLE} and {@link #getFailure()} says why.
+	 * 
+	 * @param stream the stream containing the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return whether the annotation is found as a type level annotation on the class
+	 */
+	public ScanResult evaluate(InputStream stream, AnnotationQuery query) {
+		read(stream, query);
+		return end();
+	}
+
+	private void read(InputStream stream, AnnotationQuery query) {
+		reset(query);
+		byte[] transfer = transfer();
+		try {
+			try {
+				int read;
+				while ((read = stream.read(transfer)) != -1) {
+					if (feed(transfer, 0, read)) {
+						break;
+					}
+				}
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Problem reading bytes from input stream", e);
+		}
+	}
+
+	/**
+	 * Read from the stream just the bytes up to the end of the class header (the super_class entry) and close it.
+	 * @param stream the stream containing the bytecode for the class
+	 * @return the header bytes, or null if the class cannot be parsed
+	 */
+	byte[] readHeaderBytes(InputStream stream) {
+		start(null);
+		byte[] transfer = transfer();
+		if (header == null) {
+			header = new byte[transfer.length];
+		}
+		int length = 0;
+		try {
+			try {
+				int read;
+				while ((read = stream.read(transfer)) != -1) {
+					boolean done = feed(transfer, 0, read);
+					if (header.length < length + consumed) {
+						header = Arrays.copyOf(header, Math.max(header.length * 2, length + consumed));
+					}
+					System.arraycopy(transfer, 0, header, length, consumed);
+					length += consumed;
+					if (done) {
+						break;
+					}
+				}
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Problem reading bytes from input stream", e);
+		}
+		return end() == ScanResult.UNPARSEABLE ? null : Arrays.copyOf(header, length);
+	}
+
+	private byte[] transfer() {
+		if (transfer == null) {
+			transfer = new byte[4096];
+		}
+		return transfer;
+	}
+
+	/**
+	 * @return true if enough of the class has been supplied to know the result
+	 */
+	public boolean isDecided() {
+		return state == DONE;
+	}
+
+	/**
+	 * @return true if the annotation has been found as a type level annotation (only meaningful once
+	 * {@link #isDecided()}, and false if the class could not be parsed)
+	 */
+	public boolean isMatch() {
+		return match;
+	}
+
+	/**
+	 * @return why the class could not be parsed, or null if it has not (yet) failed to parse
+	 */
+	public ScanFailure getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Call once all the bytes of the class have been supplied.
+	 * @return whether the annotation was found as a type level annotation, {@link ScanResult#UNPARSEABLE} if
+	 * the class was malformed or ended before the result could be decided
+	 */
+	public ScanResult end() {
+		if (state != DONE) {
+			fail(ScanFailure.TRUNCATED);
+		}
+		return failure != null ? ScanResult.UNPARSEABLE : match ? ScanResult.MATCH : ScanResult.NO_MATCH;
+	}
+
+	/**
+	 * Call once all the bytes of the class have been supplied.
+	 * @return true if the annotation was found as a type level annotation
+	 * @throws IllegalStateException if the class was malformed or incomplete, so the result could not be decided
+	 */
+	public boolean finish() {
+		if (end() == ScanResult.UNPARSEABLE) {
+			throw new IllegalStateException("Unable to parse class: " + failure);
+		}
+		return match;
+	}
+
+	/**
+	 * @return the number of bytes used from the chunk passed to the most recent feed, fewer than supplied if
+	 * the result became known part way through it
+	 */
+	int consumed() {
+		return consumed;
+	}
+
+	/**
+	 * @return true if the result was decided at the end of the constant pool, without looking at the rest of the class
+	 */
+	boolean isRejectedByConstantPool() {
+		return rejectedByConstantPool;
+	}
+
+	/**
+	 * Act on a complete fixed size structure, the one the current state is waiting for.
+	 * @param b holds the structure
+	 * @param p where the structure starts
+	 */
+	private void process(byte[] b, int p) {
+		switch (state) {
+		case HEADER:
+			if (u4(b, p) != (MAGIC & 0xffffffffL)) {
+				fail(ScanFailure.BAD_MAGIC);
+				return;
+			}
+			constantPoolCount = u2(b, p + 8);
+			if (constantPool.length < constantPoolCount) {
+				constantPool = new byte[constantPoolCount];
+			}
+			constantIndex = 1;
+			nextConstant();
+			break;
+		case CONSTANT_TAG:
+			int tag = b[p];
+			switch (tag) {
+			case CONSTANT_Utf8:
+				expect(CONSTANT_UTF8_LENGTH, 2);
+				return;
+			case CONSTANT_Class:
+			case CONSTANT_String:
+			case CONSTANT_MethodType:
+			case CONSTANT_Module:
+			case CONSTANT_Package:
+				skip = 2;
+				break;
+			case CONSTANT_Integer:
+			case CONSTANT_Float:
+			case CONSTANT_Fieldref:
+			case CONSTANT_Methodref:
+			case CONSTANT_InterfaceMethodref:
+			case CONSTANT_NameAndType:
+			case CONSTANT_Dynamic:
+			case CONSTANT_InvokeDynamic:
+				skip = 4;
+				break;
+			case CONSTANT_Long:
+			case CONSTANT_Double:
+				if (constantIndex + 1 >= constantPoolCount) {
+					// Takes two entries but there is only room for one
+					fail(ScanFailure.BAD_CONSTANT_POOL_INDEX);
+					return;
+				}
+				skip = 8;
+				constantPool[constantIndex++] = 0; // double size
+				break;
+			case CONSTANT_MethodHandle:
+				skip = 3;
+				break;
+			default:
+				fail(ScanFailure.UNKNOWN_CONSTANT_POOL_TAG);
+				return;
+			}
+			constantPool[constantIndex++] = 0;
+			nextConstant();
+			break;
+		case CONSTANT_UTF8_LENGTH:
+			utf8Length = u2(b, p);
+			utf8Position = 0;
+			utf8Candidates = candidates(utf8Length);
+			if (utf8Candidates == 0 || utf8Length == 0) {
+				skip = utf8Length;
+				constantPool[constantIndex++] = (byte) (UTF8 | utf8Candidates);
+				constantPoolFlags |= utf8Candidates;
+				nextConstant();
+			} else {
+				state = CONSTANT_UTF8_BYTES;
+			}
+			break;
+		case CLASS_INFO:
+			if (query == null) {
+				decide(false);
+				return;
+			}
+			skip = 2L * u2(b, p + 6);
+			methods = false;
+			expect(MEMBERS_COUNT, 2);
+			break;
+		case MEMBERS_COUNT:
+			membersRemaining = u2(b, p);
+			nextMember();
+			break;
+		case MEMBER:
+			memberAttributesRemaining = u2(b, p + 6);
+			nextMemberAttribute();
+			break;
+		case MEMBER_ATTRIBUTE:
+			skip = u4(b, p + 2);
+			nextMemberAttribute();
+			break;
+		case ATTRIBUTES_COUNT:
+			attributesRemaining = u2(b, p);
+			nextAttribute();
+			break;
+		case ATTRIBUTE:
+			int flags = constantPool(u2(b, p));
+			if (failure != null) {
+				return;
+			}
+			if ((attributesToSearch & RUNTIME_VISIBLE) != 0 && (flags & VISIBLE_ANNOTATIONS) != 0) {
+				attributesToSearch &= ~RUNTIME_VISIBLE;
+				expect(ANNOTATIONS_COUNT, 2);
+			} else if ((attributesToSearch & RUNTIME_INVISIBLE) != 0 && (flags & INVISIBLE_ANNOTATIONS) != 0) {
+				attributesToSearch &= ~RUNTIME_INVISIBLE;
+				expect(ANNOTATIONS_COUNT, 2);
+			} else {
+				skip = u4(b, p + 2);
+				nextAttribute();
+			}
+			break;
+		case ANNOTATIONS_COUNT:
+			annotationsRemaining = u2(b, p);
+			nextAnnotation();
+			break;
+		case ANNOTATION:
+			int typeFlags = constantPool(u2(b, p));
+			if (failure != null) {
+				return;
+			}
+			if ((typeFlags & ANNOTATION_TYPE) != 0) {
+				decide(true);
+				return;
+			}
+			pushElements(u2(b, p + 2), true);
+			nextElement();
+			break;
+		case ELEMENT_VALUE_PAIR:
+			consumeElementValue(b[p + 2]);
+			break;
+		case ELEMENT_VALUE:
+			consumeElementValue(b[p]);
+			break;
+		case NESTED_ANNOTATION:
+			pushElements(u2(b, p + 2), true);
+			nextElement();
+			break;
+		case ARRAY_VALUE:
+			pushElements(u2(b, p), false);
+			nextElement();
+			break;
+		default:
+			throw new IllegalStateException("Unexpected state " + state);
+		}
+	}
+
+	/**
+	 * Compare the bytes of a Utf8 entry, as far as they are available, against the names it might be.
+	 * @return the position in the chunk reached
+	 */
+	private int compareUtf8(byte[] chunk, int p, int max) {
+		int candidates = utf8Candidates;
+		int position = utf8Position;
+		int end = p + Math.min(utf8Length - position, max - p);
+		for (; p < end && candidates != 0; p++, position++) {
+			byte b = chunk[p];
+			if ((candidates & ANNOTATION_TYPE) != 0 && query.bytes()[position] != b) {
+				candidates &= ~ANNOTATION_TYPE;
+			}
+			if ((candidates & VISIBLE_ANNOTATIONS) != 0 && RuntimeVisibleAnnotations[position] != b) {
+				candidates &= ~VISIBLE_ANNOTATIONS;
+			}
+			if ((candidates & INVISIBLE_ANNOTATIONS) != 0 && RuntimeInvisibleAnnotations[position] != b) {
+				candidates &= ~INVISIBLE_ANNOTATIONS;
+			}
+		}
+		utf8Candidates = candidates;
+		utf8Position = position;
+		if (candidates == 0) {
+			// No longer of interest, pass over the rest of it
+			skip = utf8Length - position;
+		} else if (position < utf8Length) {
+			return p;
+		}
+		constantPool[constantIndex++] = (byte) (UTF8 | candidates);
+		constantPoolFlags |= candidates;
+		nextConstant();
+		return p;
+	}
+
+	/**
+	 * @param length the length of a Utf8 entry
+	 * @return the flags for the names it could be, based on its length
+	 */
+	private int candidates(int length) {
+		int candidates = 0;
+		if (query != null && length == query.length()) {
+			candidates |= ANNOTATION_TYPE;
+		}
+		if (length == RuntimeVisibleAnnotations.length && (attributesToSearch & RUNTIME_VISIBLE) != 0) {
+			candidates |= VISIBLE_ANNOTATIONS;
+		}
+		if (length == RuntimeInvisibleAnnotations.length && (attributesToSearch & RUNTIME_INVISIBLE) != 0) {
+			candidates |= INVISIBLE_ANNOTATIONS;
+		}
+		return candidates;
+	}
+
+	private void nextConstant() {
+		if (constantIndex < constantPoolCount) {
+			expect(CONSTANT_TAG, 1);
+			return;
+		}
+		if (query == null) {
+			// Only reading the header
+			expect(CLASS_INFO, 8);
+			return;
+		}
+		// End of the constant pool, can the class have the annotation at all?
+		if ((constantPoolFlags & ANNOTATION_TYPE) == 0
+				|| ((attributesToSearch & RUNTIME_VISIBLE) == 0 || (constantPoolFlags & VISIBLE_ANNOTATIONS) == 0)
+						&& ((attributesToSearch & RUNTIME_INVISIBLE) == 0 || (constantPoolFlags & INVISIBLE_ANNOTATIONS) == 0)) {
+			rejectedByConstantPool = true;
+			decide(false);
+			return;
+		}
+		expect(CLASS_INFO, 8);
+	}
+
+	private void nextMember() {
+		if (membersRemaining > 0) {
+			membersRemaining--;
+			expect(MEMBER, 8);
+		} else if (!methods) {
+			methods = true;
+			expect(MEMBERS_COUNT, 2);
+		} else {
+			expect(ATTRIBUTES_COUNT, 2);
+		}
+	}
+
+	private void nextMemberAttribute() {
+		if (memberAttributesRemaining > 0) {
+			memberAttributesRemaining--;
+			expect(MEMBER_ATTRIBUTE, 6);
+		} else {
+			nextMember();
+		}
+	}
+
+	private void nextAttribute() {
+		if (attributesRemaining > 0) {
+			attributesRemaining--;
+			expect(ATTRIBUTE, 6);
+		} else {
+			decide(false);
+		}
+	}
+
+	private void nextAnnotation() {
+		if (annotationsRemaining > 0) {
+			annotationsRemaining--;
+			expect(ANNOTATION, 4);
+		} else if (attributesToSearch == 0) {
+			decide(false);
+		} else {
+			nextAttribute();
+		}
+	}
+
+	private void pushElements(int count, boolean pairs) {
+		if (depth == elementsRemaining.length) {
+			elementsRemaining = Arrays.copyOf(elementsRemaining, depth * 2);
+			elementPairs = Arrays.copyOf(elementPairs, depth * 2);
+		}
+		elementsRemaining[depth] = count;
+		elementPairs[depth] = pairs;
+		depth++;
+	}
+
+	/**
+	 * Move on to the next element value within the current annotation, unwinding any nesting that is complete.
+	 */
+	private void nextElement() {
+		while (depth > 0 && elementsRemaining[depth - 1] == 0) {
+			depth--;
+		}
+		if (depth == 0) {
+			nextAnnotation();
+			return;
+		}
+		elementsRemaining[depth - 1]--;
+		if (elementPairs[depth - 1]) {
+			expect(ELEMENT_VALUE_PAIR, 3);
+		} else {
+			expect(ELEMENT_VALUE, 1);
+		}
+	}
+
+	private void consumeElementValue(int tag) {
+		switch (tag) {
+		case 's':// String
+		case 'c':// Class
+		case 'B':
+		case 'C':
+		case 'D':
+		case 'F':
+		case 'I':
+		case 'J':
+		case 'S':
+		case 'Z':
+			skip = 2;
+			nextElement();
+			break;
+		case 'e':// Enum
+			skip = 4;
+			nextElement();
+			break;
+		case '@':// AnnotationType
+			expect(NESTED_ANNOTATION, 4);
+			break;
+		case '[':// Array
+			expect(ARRAY_VALUE, 2);
+			break;
+		default:
+			fail(ScanFailure.UNKNOWN_ELEMENT_VALUE_TAG);
+			break;
+		}
+	}
+
+	private void expect(int state, int need) {
+		this.state = state;
+		this.need = need;
+	}
+
+	private void decide(boolean match) {
+		this.match = match;
+		this.state = DONE;
+		this.skip = 0;
+	}
+
+	private void fail(ScanFailure failure) {
+		this.failure = failure;
+		decide(false);
+	}
+
+	/**
+	 * @param index the constant pool index of a name
+	 * @return the flags recorded for the Utf8 entry at that index, or 0 with the failure recorded if there is no
+	 * such entry (or it is not a Utf8 entry)
+	 */
+	private int constantPool(int index) {
+		if (index != 0 && index < constantPoolCount && (constantPool[index] & UTF8) != 0) {
+			return constantPool[index];
+		}
+		fail(ScanFailure.BAD_CONSTANT_POOL_INDEX);
+		return 0;
+	}
+
+	private static int u2(byte[] b, int p) {
+		return ((b[p] & 0xff) << 8) | (b[p + 1] & 0xff);
+	}
+
+	private static long u4(byte[] b, int p) {
+		return ((long) u2(b, p) << 16) | u2(b, p + 2);
+	}
+}
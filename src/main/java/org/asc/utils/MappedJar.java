@@ -0,0 +1,439 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.ZipException;
+
+/**
+ * A jar (or any zip) file mapped into memory, for scanning many of its entries quickly. Opening the file maps it
+ * and parses the central directory into a few arrays of primitives (no object per entry), after which each entry
+ * is described by its position in the mapping: the offset and length of its data and its compression method.
+ * Entries that are {@link #STORED} can be scanned in place, those that are {@link #DEFLATED} need inflating,
+ * see {@link TypeAnnotationScanner#scan(MappedJar, int, AnnotationQuery)}.
+ * <p>
+ * Entries are identified by their index (from 0 to {@link #size()}-1), in central directory order, and names are
+ * only decoded if asked for: {@link #isClass(int)} checks the name in place. The offset of an entry's data is
+ * worked out from its local header the first time it is asked for.
+ * <p>
+ * Only reads (absolute ones) are made of the mapping, so instances are thread safe. There is no way to unmap a
+ * file before Java 9 so the file channel is closed once the file is mapped and the mapping is released when the
+ * instance (and any buffers obtained from it) are garbage collected. Files over 2GB are not supported.
+ *
+ * @author Andy Clement
+ */
+public final class MappedJar {
+
+	/**
+	 * Compression method of an entry that is not compressed.
+	 */
+	public static final int STORED = 0;
+
+	/**
+	 * Compression method of an entry that is compressed with deflate.
+	 */
+	public static final int DEFLATED = 8;
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_SIZE = 22;
+	private static final int ZIP64_END_SIZE = 56;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int MAX_COMMENT_SIZE = 0xffff;
+	private static final long ZIP64_MAGIC = 0xffffffffL;
+
+	private static final byte[] CLASS_SUFFIX = AnnotationQuery.encode(".class");
+
+	private final Path path;
+
+	// The whole file, little endian for reading the zip structures and big endian for reading classes
+	private final ByteBuffer mapping;
+	private final ByteBuffer classMapping;
+
+	private final int size;
+
+	// For each entry: the offset and length of its name (in the central directory), compression method, sizes,
+	// the offset of its local header and (worked out on first use, 0 until then) the offset of its data
+	private final int[] nameOffsets;
+	private final int[] nameLengths;
+	private final int[] methods;
+	private final int[] compressedSizes;
+	private final int[] sizes;
+	private final int[] localHeaderOffsets;
+	private final int[] dataOffsets;
+
+	private MappedJar(Path path, ByteBuffer mapping) throws ZipException {
+		this.path = path;
+		this.mapping = mapping;
+		this.classMapping = mapping.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int end = findEnd();
+		long count = u2(end + 10);
+		long directorySize = u4(end + 12);
+		long directoryOffset = u4(end + 16);
+		if (count == 0xffff || directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC) {
+			// zip64_end_of_central_dir_locator { u4 signature; u4 disk; u8 zip64_end_offset; u4 total_disks; }
+			int locator = end - ZIP64_LOCATOR_SIZE;
+			if (locator >= 0 && mapping.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+				int zip64End = offset(mapping.getLong(locator + 8));
+				if (zip64End > mapping.capacity() - ZIP64_END_SIZE || mapping.getInt(zip64End) != ZIP64_END_SIGNATURE) {
+					throw new ZipException("Bad zip64 end of central directory in " + path);
+				}
+				count = mapping.getLong(zip64End + 32);
+				directorySize = mapping.getLong(zip64End + 40);
+				directoryOffset = mapping.getLong(zip64End + 48);
+			}
+		}
+		// The zip64 values are unsigned, so may be negative here
+		if (count < 0 || count > Integer.MAX_VALUE || directorySize < 0 || directoryOffset < 0
+				|| directoryOffset > mapping.capacity() - directorySize) {
+			throw new ZipException("Bad central directory in " + path);
+		}
+		size = (int) count;
+		nameOffsets = new int[size];
+		nameLengths = new int[size];
+		methods = new int[size];
+		compressedSizes = new int[size];
+		sizes = new int[size];
+		localHeaderOffsets = new int[size];
+		dataOffsets = new int[size];
+		parseCentralDirectory((int) directoryOffset, (int) (directoryOffset + directorySize));
+	}
+
+	/**
+	 * Map the jar (or zip) file into memory and parse its central directory.
+	 * 
+	 * @param path the jar file
+	 * @return the mapped jar
+	 * @throws ZipException if the file is not a zip file, or is a zip file over 2GB
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public static MappedJar open(Path path) throws IOException {
+		ByteBuffer mapping;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long length = channel.size();
+			if (length > Integer.MAX_VALUE) {
+				throw new ZipException("Too large to map (over 2GB): " + path);
+			}
+			mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		}
+		return new MappedJar(path, mapping.order(ByteOrder.LITTLE_ENDIAN));
+	}
+
+	/**
+	 * Find the end of central directory record, searching back from the end of the file (it is followed by a
+	 * comment of up to 64K).
+	 */
+	private int findEnd() throws ZipException {
+		int limit = Math.max(0, mapping.capacity() - END_SIZE - MAX_COMMENT_SIZE);
+		for (int p = mapping.capacity() - END_SIZE; p >= limit; p--) {
+			if (mapping.getInt(p) == END_SIGNATURE && p + END_SIZE + u2(p + 20) == mapping.capacity()) {
+				return p;
+			}
+		}
+		throw new ZipException("Not a zip file (no end of central directory): " + path);
+	}
+
+	/**
+	 * @param p the offset of the central directory
+	 * @param end the offset of the end of the central directory, all the entries must lie before it
+	 */
+	private void parseCentralDirectory(int p, int end) throws ZipException {
+		// central_file_header {
+		//  u4 signature; u2 version_made_by; u2 version_needed; u2 flags; u2 method; u2 time; u2 date; u4 crc32;
+		//  u4 compressed_size; u4 uncompressed_size; u2 name_length; u2 extra_length; u2 comment_length;
+		//  u2 disk_start; u2 internal_attributes; u4 external_attributes; u4 local_header_offset;
+		//  u1 name[name_length]; u1 extra[extra_length]; u1 comment[comment_length];
+		// }
+		for (int i = 0; i < size; i++) {
+			if (p > end - CENTRAL_HEADER_SIZE || mapping.getInt(p) != CENTRAL_HEADER_SIGNATURE) {
+				throw new ZipException("Bad central directory entry " + i + " in " + path);
+			}
+			methods[i] = u2(p + 10);
+			long compressedSize = u4(p + 20);
+			long uncompressedSize = u4(p + 24);
+			int nameLength = u2(p + 28);
+			int extraLength = u2(p + 30);
+			int commentLength = u2(p + 32);
+			long localHeaderOffset = u4(p + 42);
+			int next = p + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+			if (next > end) {
+				throw new ZipException("Bad central directory entry " + i + " in " + path);
+			}
+			nameOffsets[i] = p + CENTRAL_HEADER_SIZE;
+			nameLengths[i] = nameLength;
+			if (uncompressedSize == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+				// The real values are in the zip64 extra field, only those that did not fit, in this order
+				int extra = findExtra(p + CENTRAL_HEADER_SIZE + nameLength, extraLength, ZIP64_EXTRA_ID);
+				if (extra < 0) {
+					throw new ZipException("Missing zip64 extra field for entry " + i + " in " + path);
+				}
+				int needed = (uncompressedSize == ZIP64_MAGIC ? 8 : 0) + (compressedSize == ZIP64_MAGIC ? 8 : 0)
+						+ (localHeaderOffset == ZIP64_MAGIC ? 8 : 0);
+				if (u2(extra - 2) < needed) {
+					throw new ZipException("Short zip64 extra field for entry " + i + " in " + path);
+				}
+				if (uncompressedSize == ZIP64_MAGIC) {
+					uncompressedSize = mapping.getLong(extra);
+					extra += 8;
+				}
+				if (compressedSize == ZIP64_MAGIC) {
+					compressedSize = mapping.getLong(extra);
+					extra += 8;
+				}
+				if (localHeaderOffset == ZIP64_MAGIC) {
+					localHeaderOffset = mapping.getLong(extra);
+				}
+			}
+			compressedSizes[i] = offset(compressedSize);
+			sizes[i] = uncompressedSize > Integer.MAX_VALUE ? -1 : (int) uncompressedSize;
+			localHeaderOffsets[i] = offset(localHeaderOffset);
+			p = next;
+		}
+	}
+
+	/**
+	 * @return the offset of the data of the extra field with the specified id (its data size is the u2 before
+	 * it), or -1 if there is not one
+	 * @throws ZipException if the field (or one before it) runs past the end of the extra fields
+	 */
+	private int findExtra(int p, int length, int id) throws ZipException {
+		int end = p + length;
+		while (p + 4 <= end) {
+			int dataSize = u2(p + 2);
+			if (p + 4 + dataSize > end) {
+				throw new ZipException("Bad extra field in " + path);
+			}
+			if (u2(p) == id) {
+				return p + 4;
+			}
+			p += 4 + dataSize;
+		}
+		return -1;
+	}
+
+	private int offset(long value) throws ZipException {
+		if (value < 0 || value > mapping.capacity()) {
+			throw new ZipException("Bad offset or size " + value + " in " + path);
+		}
+		return (int) value;
+	}
+
+	private int u2(int offset) {
+		return mapping.getShort(offset) & 0xffff;
+	}
+
+	private long u4(int offset) {
+		return mapping.getInt(offset) & 0xffffffffL;
+	}
+
+	/**
+	 * @return the path of the jar file
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param entry the index of the entry
+	 * @return the name of the entry
+	 */
+	public String getName(int entry) {
+		byte[] name = new byte[nameLengths[entry]];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = mapping.get(nameOffsets[entry] + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param entry the index of the entry
+	 * @return true if the name of the entry ends with <tt>.class</tt> (checked without decoding the name)
+	 */
+	public boolean isClass(int entry) {
+		int length = nameLengths[entry];
+		if (length < CLASS_SUFFIX.length) {
+			return false;
+		}
+		int p = nameOffsets[entry] + length - CLASS_SUFFIX.length;
+		for (int i = CLASS_SUFFIX.length - 1; i >= 0; i--) {
+			if (mapping.get(p + i) != CLASS_SUFFIX[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param entry the index of the entry
+	 * @return the compression method of the entry, {@link #STORED} or {@link #DEFLATED} (or some other method
+	 * that this library cannot read)
+	 */
+	public int getMethod(int entry) {
+		return methods[entry];
+	}
+
+	/**
+	 * @param entry the index of the entry
+	 * @return the size of the entry (uncompressed), or -1 if over 2GB
+	 */
+	public int getSize(int entry) {
+		return sizes[entry];
+	}
+
+	/**
+	 * @param entry the index of the entry
+	 * @return the size of the data of the entry in the jar file (the compressed size)
+	 */
+	public int getCompressedSize(int entry) {
+		return compressedSizes[entry];
+	}
+
+	/**
+	 * @param entry the index of the entry
+	 * @return the offset in the {@link #getBuffer() mapping} of the data of the entry
+	 * @throws ZipException if the local header of the entry is bad
+	 */
+	public int getDataOffset(int entry) throws ZipException {
+		int offset = dataOffsets[entry];
+		if (offset == 0) {
+			// local_file_header {
+			//  u4 signature; u2 version_needed; u2 flags; u2 method; u2 time; u2 date; u4 crc32;
+			//  u4 compressed_size; u4 uncompressed_size; u2 name_length; u2 extra_length;
+			//  u1 name[name_length]; u1 extra[extra_length];
+			// }
+			int p = localHeaderOffsets[entry];
+			if (p > mapping.capacity() - LOCAL_HEADER_SIZE || mapping.getInt(p) != LOCAL_HEADER_SIGNATURE) {
+				throw new ZipException("Bad local header for entry " + getName(entry) + " in " + path);
+			}
+			// The name and extra field lengths can differ from those in the central directory
+			offset = p + LOCAL_HEADER_SIZE + u2(p + 26) + u2(p + 28);
+			if (offset > mapping.capacity() - compressedSizes[entry]) {
+				throw new ZipException("Truncated entry " + getName(entry) + " in " + path);
+			}
+			// Racing threads will work out the same value
+			dataOffsets[entry] = offset;
+		}
+		return offset;
+	}
+
+	/**
+	 * Open a stream of the (uncompressed) contents of an entry. A deflated entry is inflated as it is read, using
+	 * the inflater of the current thread until the stream is closed or reaches the end of the entry.
+	 * 
+	 * @param entry the index of the entry
+	 * @return a stream of the contents of the entry, read from the mapping
+	 * @throws ZipException if the local header of the entry is bad or it is compressed with a method other than
+	 * {@link #STORED} or {@link #DEFLATED}
+	 */
+	public InputStream getInputStream(int entry) throws ZipException {
+		switch (methods[entry]) {
+		case STORED:
+			return new EntryInputStream(classMapping, getDataOffset(entry), compressedSizes[entry]);
+		case DEFLATED:
+			// A bad local header is reported here, as a ZipException, rather than by the inflater
+			getDataOffset(entry);
+			return EntryInflater.forCurrentThread().stream(this, entry);
+		default:
+			throw new ZipException("Unsupported compression method " + methods[entry] + " for entry " + getName(entry));
+		}
+	}
+
+	/**
+	 * @return the whole mapped file, big endian, for reading classes in place (only absolute reads may be made)
+	 */
+	ByteBuffer classMapping() {
+		return classMapping;
+	}
+
+	/**
+	 * @return a (read only, big endian) view of the whole mapped file, the data of entries is found with
+	 * {@link #getDataOffset(int)} and {@link #getCompressedSize(int)}
+	 */
+	public ByteBuffer getBuffer() {
+		return mapping.asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN);
+	}
+
+	@Override
+	public String toString() {
+		return "MappedJar(" + path + ", " + size + " entries)";
+	}
+
+	/**
+	 * A stream of the bytes of an entry, read straight from (a private view of) the mapping.
+	 */
+	private static class EntryInputStream extends InputStream {
+
+		private final ByteBuffer mapping;
+		private int position;
+		private final int end;
+
+		EntryInputStream(ByteBuffer mapping, int offset, int length) {
+			this.mapping = mapping.duplicate();
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		@Override
+		public int read() {
+			return position < end ? mapping.get(position++) & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= end) {
+				return len == 0 ? 0 : -1;
+			}
+			int n = Math.min(len, end - position);
+			((Buffer) mapping).position(position);
+			mapping.get(b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return end - position;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * Access to class bytes held in a <tt>java.lang.foreign.MemorySegment</tt>. That API only exists on Java 22 and
+ * later, so this version (used on earlier releases) reports it is unavailable. The multi-release jar carries a
+ * replacement for this class in its Java 22 layer that provides the real implementation.
+ *
+ * @author Andy Clement
+ */
+final class MemorySegmentSupport {
+
+	private MemorySegmentSupport() {
+	}
+
+	/**
+	 * @return true if memory segments can be scanned on this JVM
+	 */
+	static boolean isAvailable() {
+		return false;
+	}
+
+	/**
+	 * Prepare to read class bytes from a window of a memory segment.
+	 * @param reusable class bytes previously returned by this method (to be reset with the new segment), or null
+	 * @param segment the memory segment
+	 * @param offset the offset of the class within the segment
+	 * @param length the length of the class
+	 * @return class bytes reading from the segment
+	 */
+	static ClassBytes wrap(ClassBytes reusable, Object segment, long offset, long length) {
+		throw new UnsupportedOperationException("Scanning a MemorySegment requires Java 22 or later");
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Determines whether classes are annotated with an annotation either directly or via meta-annotations, for
+ * example a class annotated with <tt>@Service</tt> is (meta-)annotated with <tt>@Component</tt> if
+ * <tt>@Service</tt> is itself annotated with <tt>@Component</tt> (or with some annotation that is).
+ * <p>
+ * The annotation types are found through an {@link AnnotationTypeLookup} and each is parsed at most once: the
+ * answer to whether an annotation type implies the target annotation is cached, so once the stereotypes in use
+ * have been seen checking a class costs a walk of its type level annotations and a cache lookup for each. The
+ * cache is shared by all threads using the resolver (two threads meeting the same new annotation type at the
+ * same moment may both parse it, they will reach the same answer). Cycles (such as <tt>@Documented</tt> being
+ * annotated with itself) are handled, every annotation type in a cycle is given the same answer.
+ * <p>
+ * Instances are thread safe. Parsing is done with scanners owned by the resolver (one per thread) so that a
+ * scanner the caller is part way through using is not disturbed by a lookup.
+ *
+ * @author Andy Clement
+ */
+public final class MetaAnnotationResolver {
+
+	private final AnnotationQuery target;
+
+	private final AnnotationTypeLookup lookup;
+
+	// Whether each annotation type (by descriptor) is, or is meta-annotated with, the target
+	private final ConcurrentHashMap<String, Boolean> implies = new ConcurrentHashMap<String, Boolean>();
+
+	private final ThreadLocal<Resolution> resolutions = new ThreadLocal<Resolution>() {
+		@Override
+		protected Resolution initialValue() {
+			return new Resolution();
+		}
+	};
+
+	/**
+	 * @param target the annotation to search for, its retention also decides which annotations of the annotation
+	 * types are followed
+	 * @param lookup supplies the bytes of the annotation types
+	 */
+	public MetaAnnotationResolver(AnnotationQuery target, AnnotationTypeLookup lookup) {
+		this.target = target;
+		this.lookup = lookup;
+		this.implies.put(target.getDescriptor(), Boolean.TRUE);
+	}
+
+	/**
+	 * @param classfilebytes the bytecode for the class
+	 * @return true if the class is annotated with the target annotation, directly or via meta-annotations
+	 * @throws IllegalStateException if the class cannot be parsed
+	 */
+	public boolean isAnnotated(byte[] classfilebytes) {
+		ScanResult result = evaluate(classfilebytes);
+		if (result == ScanResult.UNPARSEABLE) {
+			throw new IllegalStateException("Unable to parse class: " + resolutions.get().scanner.getFailure());
+		}
+		return result == ScanResult.MATCH;
+	}
+
+	/**
+	 * As {@link #isAnnotated(byte[])} but does not throw if the class cannot be parsed. Annotation types that
+	 * cannot be found or parsed are taken to not imply the target annotation.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @return whether the class is annotated with the target annotation, directly or via meta-annotations
+	 */
+	public ScanResult evaluate(byte[] classfilebytes) {
+		Resolution resolution = resolutions.get();
+		List<String> types = resolution.types;
+		types.clear();
+		if (!resolution.scanner.collectAnnotationTypes(classfilebytes, target.attributes(), types)) {
+			return ScanResult.UNPARSEABLE;
+		}
+		// Check the cached answers first, then resolve any annotation types not seen before
+		boolean unresolved = false;
+		for (int i = 0; i < types.size(); i++) {
+			Boolean cached = implies.get(types.get(i));
+			if (cached == null) {
+				unresolved = true;
+			} else if (cached) {
+				return ScanResult.MATCH;
+			}
+		}
+		if (unresolved) {
+			for (int i = 0; i < types.size(); i++) {
+				if (resolveType(types.get(i), resolution)) {
+					return ScanResult.MATCH;
+				}
+			}
+		}
+		return ScanResult.NO_MATCH;
+	}
+
+	/**
+	 * @param descriptor an annotation type descriptor (e.g. <tt>Lorg/example/Service;</tt>)
+	 * @return true if it is the target annotation or is meta-annotated with it
+	 */
+	public boolean implies(String descriptor) {
+		Boolean cached = implies.get(descriptor);
+		return cached != null ? cached : resolveType(descriptor, resolutions.get());
+	}
+
+	/**
+	 * @return the annotation being searched for
+	 */
+	public AnnotationQuery getTarget() {
+		return target;
+	}
+
+	private boolean resolveType(String descriptor, Resolution resolution) {
+		try {
+			return resolve(descriptor, resolution);
+		} catch (RuntimeException e) {
+			// From the lookup, nothing learned can be trusted
+			resolution.clear();
+			throw e;
+		}
+	}
+
+	/**
+	 * Work out (and cache) whether an annotation type implies the target, following its annotations depth first.
+	 * When a cycle is found the annotation type that closes it is still being resolved further up, so it is taken
+	 * to not imply the target for now. An annotation type whose negative answer relied on that is in the same
+	 * cycle as (so has the same answer as) the one further up, its answer is held back until that one is resolved.
+	 */
+	private boolean resolve(String descriptor, Resolution resolution) {
+		Boolean cached = implies.get(descriptor);
+		if (cached != null) {
+			return cached;
+		}
+		Integer inProgress = resolution.inProgress.get(descriptor);
+		if (inProgress != null) {
+			resolution.low = Math.min(resolution.low, inProgress);
+			return false;
+		}
+		int depth = resolution.inProgress.size();
+		resolution.inProgress.put(descriptor, depth);
+		int outerLow = resolution.low;
+		resolution.low = Integer.MAX_VALUE;
+		boolean found = false;
+		List<String> types = new ArrayList<String>();
+		byte[] bytes = null;
+		if (descriptor.length() > 2 && descriptor.charAt(0) == 'L' && descriptor.charAt(descriptor.length() - 1) == ';') {
+			bytes = lookup.lookup(descriptor.substring(1, descriptor.length() - 1));
+		}
+		if (bytes != null && resolution.scanner.collectAnnotationTypes(bytes, target.attributes(), types)) {
+			for (int i = 0; i < types.size() && !found; i++) {
+				found = resolve(types.get(i), resolution);
+			}
+		}
+		resolution.inProgress.remove(descriptor);
+		int low = resolution.low;
+		// Held back answers waiting on this annotation type (or ones resolved within it) are at the end
+		List<String> pending = resolution.pending;
+		int p = pending.size();
+		while (p > 0 && resolution.pendingLow.get(p - 1) >= depth) {
+			p--;
+		}
+		if (found || low >= depth) {
+			implies.put(descriptor, found);
+			for (int i = p; i < pending.size(); i++) {
+				implies.put(pending.get(i), found);
+			}
+			pending.subList(p, pending.size()).clear();
+			resolution.pendingLow.subList(p, resolution.pendingLow.size()).clear();
+			low = Integer.MAX_VALUE;
+		} else {
+			// Part of a cycle through an annotation type further up, these now wait on that one
+			for (int i = p; i < pending.size(); i++) {
+				resolution.pendingLow.set(i, low);
+			}
+			pending.add(descriptor);
+			resolution.pendingLow.add(low);
+		}
+		resolution.low = Math.min(outerLow, low);
+		return found;
+	}
+
+	/**
+	 * The state of a resolution on one thread.
+	 */
+	private static class Resolution {
+
+		final TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+
+		// The annotation types of the class being checked
+		final List<String> types = new ArrayList<String>();
+
+		// The annotation types being resolved, with their depth
+		final Map<String, Integer> inProgress = new HashMap<String, Integer>();
+
+		// The annotation types whose (negative) answers are held back, with the depth of the annotation type
+		// being resolved that they wait on
+		final List<String> pending = new ArrayList<String>();
+		final List<Integer> pendingLow = new ArrayList<Integer>();
+
+		// The lowest depth of an annotation type being resolved that a cycle has been found back to
+		int low = Integer.MAX_VALUE;
+
+		void clear() {
+			inProgress.clear();
+			pending.clear();
+			pendingLow.clear();
+			low = Integer.MAX_VALUE;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * Why a class could not be parsed, see {@link ScanResult#UNPARSEABLE}.
+ *
+ * @author Andy Clement
+ */
+public enum ScanFailure {
+
+	/**
+	 * The bytes do not start with the class file magic number (<tt>0xCAFEBABE</tt>).
+	 */
+	BAD_MAGIC,
+
+	/**
+	 * The constant pool contains an entry with a tag that is not defined by the class file format.
+	 */
+	UNKNOWN_CONSTANT_POOL_TAG,
+
+	/**
+	 * The class refers to a constant pool entry that does not exist (or is not of the kind expected), or the last
+	 * entry is a long or double that there is no room for.
+	 */
+	BAD_CONSTANT_POOL_INDEX,
+
+	/**
+	 * An annotation contains an element value with a tag that is not defined by the class file format.
+	 */
+	UNKNOWN_ELEMENT_VALUE_TAG,
+
+	/**
+	 * A type annotation has a target type that is not defined by the class file format.
+	 */
+	UNKNOWN_TYPE_ANNOTATION_TARGET,
+
+	/**
+	 * The class is in an archive entry compressed with a method other than stored or deflated.
+	 */
+	UNSUPPORTED_COMPRESSION_METHOD,
+
+	/**
+	 * The bytes end before the class does.
+	 */
+	TRUNCATED;
+}
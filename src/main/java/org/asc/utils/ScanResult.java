@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * The outcome of scanning a class. Scans that report one of these never throw for a malformed class, instead
+ * the class is reported as {@link #UNPARSEABLE} and the scanner can be asked for the {@link ScanFailure} (so
+ * scanning huge numbers of classes, some of which may be broken, does not pay for building exceptions).
+ *
+ * @author Andy Clement
+ */
+public enum ScanResult {
+
+	/**
+	 * The class has the annotation (or satisfies the {@link ClassPredicate}).
+	 */
+	MATCH,
+
+	/**
+	 * The class does not have the annotation (or does not satisfy the {@link ClassPredicate}).
+	 */
+	NO_MATCH,
+
+	/**
+	 * The class could not be parsed far enough to know whether it has the annotation.
+	 */
+	UNPARSEABLE;
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+/**
+ * Simple counters describing what happened across a number of scans. In particular this tracks how many
+ * classes could be rejected purely from the constant pool, without walking fields, methods and attributes.
+ * Instances are not thread safe, use one per thread and {@link #add(ScanStatistics)} them together at the end.
+ *
+ * @author Andy Clement
+ */
+public class ScanStatistics {
+
+	private long classesScanned;
+	private long rejectedByConstantPool;
+	private long matched;
+
+	void record(boolean found, boolean rejectedByConstantPool) {
+		classesScanned++;
+		if (found) {
+			matched++;
+		} else if (rejectedByConstantPool) {
+			this.rejectedByConstantPool++;
+		}
+	}
+
+	/**
+	 * @return the number of classes scanned
+	 */
+	public long getClassesScanned() {
+		return classesScanned;
+	}
+
+	/**
+	 * @return the number of classes rejected after only walking the constant pool
+	 */
+	public long getRejectedByConstantPool() {
+		return rejectedByConstantPool;
+	}
+
+	/**
+	 * @return the number of classes found to have the annotation
+	 */
+	public long getMatched() {
+		return matched;
+	}
+
+	/**
+	 * @return the fraction (0.0-1.0) of scanned classes rejected after only walking the constant pool
+	 */
+	public double getRejectRate() {
+		return classesScanned == 0 ? 0d : (double) rejectedByConstantPool / classesScanned;
+	}
+
+	/**
+	 * Accumulate the counts from another set of statistics into this one.
+	 * @param other the statistics to add
+	 */
+	public void add(ScanStatistics other) {
+		classesScanned += other.classesScanned;
+		rejectedByConstantPool += other.rejectedByConstantPool;
+		matched += other.matched;
+	}
+
+	/**
+	 * Set all the counts back to zero, so the statistics can be reused.
+	 */
+	public void reset() {
+		classesScanned = 0;
+		rejectedByConstantPool = 0;
+		matched = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "ScanStatistics[scanned=" + classesScanned + ",matched=" + matched + ",rejectedByConstantPool="
+				+ rejectedByConstantPool + ",rejectRate=" + String.format("%.2f%%", getRejectRate() * 100) + "]";
+	}
+}
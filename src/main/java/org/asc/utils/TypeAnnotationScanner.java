@@ -15,51 +15,1110 @@
  */
 package org.asc.utils;
 
-import java.io.BufferedInputStream;
-import java.io.IOException;
 import java.io.InputStream;
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.ZipException;
 
 /**
  * Scans a class file for a particular annotation at the type level. It unpacks the minimum it can get away
  * with to discover the annotations. Being passed in the annotation up front allows it to make decisions that
- * something is/isnt a match very early, even as the UTF8 strings are being unpacked character by character
- * from the constant pool entries.
+ * something is/isnt a match very early, the encoded constant pool entries are compared directly against the
+ * encoded form of the annotation name without ever being unpacked.
+ * <p>
+ * Instances can be reused for any number of scans, the constant pool offset table is retained and only grows
+ * when a class with a bigger constant pool is encountered, so once warmed up scanning allocates nothing.
+ * Instances are not thread safe, {@link #forCurrentThread()} provides one for use by the calling thread.
+ * <p>
+ * The class bytes can be supplied as a byte array or as a ByteBuffer. A buffer is read in place (between its
+ * position and limit) using absolute reads, so scanning classes held in direct or memory mapped buffers involves
+ * no copying onto the heap. On Java 22 and later the bytes can also be in a <tt>java.lang.foreign.MemorySegment</tt>,
+ * for example held off-heap in a native arena, and are read in place from there.
  * 
  * @author Andy Clement
  */
 public class TypeAnnotationScanner {
 
 	// Types of thing that can be found in the Constant Pool
-	private final static byte CONSTANT_Utf8 = 1;
-	private final static byte CONSTANT_Integer = 3;
-	private final static byte CONSTANT_Float = 4;
-	private final static byte CONSTANT_Long = 5;
-	private final static byte CONSTANT_Double = 6;
-	private final static byte CONSTANT_Class = 7;
-	private final static byte CONSTANT_String = 8;
-	private final static byte CONSTANT_Fieldref = 9;
-	private final static byte CONSTANT_Methodref = 10;
-	private final static byte CONSTANT_InterfaceMethodref = 11;
-	private final static byte CONSTANT_NameAndType = 12;
-	private final static byte CONSTANT_MethodHandle = 15;
-	private final static byte CONSTANT_MethodType = 16;
-	private final static byte CONSTANT_InvokeDynamic = 18;
+	final static byte CONSTANT_Utf8 = 1;
+	final static byte CONSTANT_Integer = 3;
+	final static byte CONSTANT_Float = 4;
+	final static byte CONSTANT_Long = 5;
+	final static byte CONSTANT_Double = 6;
+	final static byte CONSTANT_Class = 7;
+	final static byte CONSTANT_String = 8;
+	final static byte CONSTANT_Fieldref = 9;
+	final static byte CONSTANT_Methodref = 10;
+	final static byte CONSTANT_InterfaceMethodref = 11;
+	final static byte CONSTANT_NameAndType = 12;
+	final static byte CONSTANT_MethodHandle = 15;
+	final static byte CONSTANT_MethodType = 16;
+	final static byte CONSTANT_Dynamic = 17;
+	final static byte CONSTANT_InvokeDynamic = 18;
+	final static byte CONSTANT_Module = 19;
+	final static byte CONSTANT_Package = 20;
 
+	final static int MAGIC = 0xCAFEBABE;
+
+	/**
+	 * Indicates an annotation was found in the RuntimeVisibleAnnotations attribute.
+	 */
+	public final static int RUNTIME_VISIBLE = 0x01;
+
+	/**
+	 * Indicates an annotation was found in the RuntimeInvisibleAnnotations attribute.
+	 */
+	public final static int RUNTIME_INVISIBLE = 0x02;
+
+	final static byte[] RuntimeVisibleAnnotations = AnnotationQuery.encode("RuntimeVisibleAnnotations");
+	final static byte[] RuntimeInvisibleAnnotations = AnnotationQuery.encode("RuntimeInvisibleAnnotations");
+	final static byte[] RuntimeVisibleParameterAnnotations = AnnotationQuery.encode("RuntimeVisibleParameterAnnotations");
+	final static byte[] RuntimeInvisibleParameterAnnotations = AnnotationQuery.encode("RuntimeInvisibleParameterAnnotations");
+	final static byte[] RuntimeVisibleTypeAnnotations = AnnotationQuery.encode("RuntimeVisibleTypeAnnotations");
+	final static byte[] RuntimeInvisibleTypeAnnotations = AnnotationQuery.encode("RuntimeInvisibleTypeAnnotations");
+	final static byte[] Code = AnnotationQuery.encode("Code");
+
+	// The size of the target_info of a type annotation, indexed by target_type. -1 for undefined target types and
+	// LOCALVAR_TARGET for those whose target_info is a (variable length) localvar_target.
+	private final static int LOCALVAR_TARGET = -2;
+	private final static byte[] targetInfoSizes = new byte[256];
+
+	static {
+		Arrays.fill(targetInfoSizes, (byte) -1);
+		targetInfoSizes[0x00] = 1; // type_parameter_target (class/interface)
+		targetInfoSizes[0x01] = 1; // type_parameter_target (method)
+		targetInfoSizes[0x10] = 2; // supertype_target
+		targetInfoSizes[0x11] = 2; // type_parameter_bound_target (class/interface)
+		targetInfoSizes[0x12] = 2; // type_parameter_bound_target (method)
+		targetInfoSizes[0x13] = 0; // empty_target (field)
+		targetInfoSizes[0x14] = 0; // empty_target (method return)
+		targetInfoSizes[0x15] = 0; // empty_target (receiver)
+		targetInfoSizes[0x16] = 1; // formal_parameter_target
+		targetInfoSizes[0x17] = 2; // throws_target
+		targetInfoSizes[0x40] = LOCALVAR_TARGET; // localvar_target (local variable)
+		targetInfoSizes[0x41] = LOCALVAR_TARGET; // localvar_target (resource variable)
+		targetInfoSizes[0x42] = 2; // catch_target
+		for (int t = 0x43; t <= 0x46; t++) {
+			targetInfoSizes[t] = 2; // offset_target (instanceof, new, method references)
+		}
+		for (int t = 0x47; t <= 0x4B; t++) {
+			targetInfoSizes[t] = 3; // type_argument_target (casts, invocation type arguments)
+		}
+	}
+
+	// Offsets of the Utf8 and Class entries of the constant pool (0 for other entries), only the first
+	// constantPoolCount are for the class being scanned, the array is reused and may be longer
 	private int[] constantPool;
-	private byte[] bytes;
+	private int constantPoolCount;
+	private ClassBytes data;
 	private int ptr;
 
-	private TypeAnnotationScanner(byte[] bytes) {
-		this.bytes = bytes;
-		this.ptr = 0;		
+	// Reused to hold whatever bytes are being scanned
+	private final ArrayClassBytes arrayData = new ArrayClassBytes();
+	private final BufferClassBytes bufferData = new BufferClassBytes();
+	private ClassBytes segmentData;
+
+	// Created on first use, for scanning classes read from streams
+	private IncrementalAnnotationScanner streamScanner;
+
+	// What is being searched for, during a scan exactly one of these is set
+	private AnnotationQuery query;
+	private AnnotationQuerySet querySet;
+
+	// Set if the constant pool walk proved the class could not contain the annotation
+	private boolean rejectedByConstantPool;
+
+	// Set if the class could not be parsed, recorded rather than thrown so that scanning many (possibly broken)
+	// classes never pays for building exceptions
+	private ScanFailure failure;
+
+	// Constant pool indices of the Utf8 entries for the annotation type and the attribute names that would
+	// hold it. Whilst these are unique (which javac always ensures) a name can be checked with a simple int
+	// comparison against these rather than by comparing the UTF8 data.
+	private int annotationTypeIndex;
+	private int visibleAnnotationsIndex;
+	private int invisibleAnnotationsIndex;
+	private boolean matchByIndex;
+
+	// What is being searched for: annotations, method parameter annotations or type annotations. For the latter
+	// two the names of those attributes are looked for in the constant pool (rather than those of the annotation
+	// attributes). When searching type annotations in method bodies the Code attribute name is also looked for.
+	private final static int ANNOTATIONS = 0;
+	private final static int PARAMETER_ANNOTATIONS = 1;
+	private final static int TYPE_ANNOTATIONS = 2;
+	private int searching = ANNOTATIONS;
+	private boolean searchCode;
+	private int visibleParameterAnnotationsIndex;
+	private int invisibleParameterAnnotationsIndex;
+	private int visibleTypeAnnotationsIndex;
+	private int invisibleTypeAnnotationsIndex;
+	private int codeIndex;
+
+	// When scanning with a query set: for each Utf8 constant pool entry the index+1 of the query it matches
+	// (or 0). Then the queries present in the constant pool and those found as type annotations, as bit sets.
+	private int[] constantPoolQueries = new int[0];
+	private long[] candidateQueries = new long[1];
+	private long[] foundQueries = new long[1];
+	private int unresolvedCandidates;
+
+	// When evaluating a predicate: the header of the class, and whether the annotations found so far are all
+	// there are to find
+	private int accessFlags;
+	private int classNameOffset;
+	private int superClassNameOffset;
+	private boolean annotationsResolved;
+
+	private static final ThreadLocal<TypeAnnotationScanner> threadScanner = new ThreadLocal<TypeAnnotationScanner>() {
+		@Override
+		protected TypeAnnotationScanner initialValue() {
+			return new TypeAnnotationScanner();
+		}
+	};
+
+	/**
+	 * Create a scanner that can be reused for scanning many classes (but only by one thread at a time).
+	 */
+	public TypeAnnotationScanner() {
+		this.constantPool = new int[256];
+	}
+
+	/**
+	 * @return a scanner for exclusive use by the calling thread
+	 */
+	public static TypeAnnotationScanner forCurrentThread() {
+		return threadScanner.get();
+	}
+
+	/**
+	 * Scan the class stored in the specified bytes for the annotation described by the query.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public boolean scan(byte[] classfilebytes, AnnotationQuery query) {
+		return findAnnotation(classfilebytes, query) != 0;
+	}
+
+	/**
+	 * Scan the class stored in the buffer (between its position and limit) for the annotation described by the
+	 * query. The position of the buffer is not changed.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public boolean scan(ByteBuffer classfilebytes, AnnotationQuery query) {
+		return findAnnotation(classfilebytes, query) != 0;
+	}
+
+	/**
+	 * Scan the class stored in the specified bytes for the annotation described by the query, reporting which
+	 * annotation attribute it was found in. This is most useful with a query created by
+	 * {@link AnnotationQuery#of(String)} where the retention of the annotation is not known and both attributes
+	 * are searched.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return {@link #RUNTIME_VISIBLE} or {@link #RUNTIME_INVISIBLE} depending on which attribute the annotation
+	 * was found in, or 0 if it was not found as a type level annotation
+	 */
+	public int findAnnotation(byte[] classfilebytes, AnnotationQuery query) {
+		return checkParsed(findAnnotation(arrayData.reset(classfilebytes, 0, classfilebytes.length), query));
+	}
+
+	/**
+	 * As {@link #findAnnotation(byte[], AnnotationQuery)} but for a class stored in a buffer (between its position
+	 * and limit). The position of the buffer is not changed.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return {@link #RUNTIME_VISIBLE} or {@link #RUNTIME_INVISIBLE} depending on which attribute the annotation
+	 * was found in, or 0 if it was not found as a type level annotation
+	 */
+	public int findAnnotation(ByteBuffer classfilebytes, AnnotationQuery query) {
+		return checkParsed(findAnnotation(wrap(classfilebytes), query));
+	}
+
+	/**
+	 * Scan the class stored in the specified bytes for the annotation described by the query. Unlike
+	 * {@link #scan(byte[], AnnotationQuery)} this does not throw if the class cannot be parsed, it is reported as
+	 * {@link ScanResult#UNPARSEABLE} and {@link #getFailure()} says why.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return whether the annotation is found as a type level annotation on the supplied class
+	 */
+	public ScanResult evaluate(byte[] classfilebytes, AnnotationQuery query) {
+		return result(findAnnotation(arrayData.reset(classfilebytes, 0, classfilebytes.length), query) != 0);
+	}
+
+	/**
+	 * As {@link #evaluate(byte[], AnnotationQuery)} but for a class stored in a buffer (between its position and
+	 * limit). The position of the buffer is not changed.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return whether the annotation is found as a type level annotation on the supplied class
+	 */
+	public ScanResult evaluate(ByteBuffer classfilebytes, AnnotationQuery query) {
+		return result(findAnnotation(wrap(classfilebytes), query) != 0);
+	}
+
+	/**
+	 * Scan the class stored in a window of a byte array for the annotation described by the query. This allows a
+	 * class to be scanned in place in a buffer that is reused for many classes, see {@link ClassBytesBuffer}.
+	 * 
+	 * @param bytes the array containing the bytecode for the class
+	 * @param offset the offset of the class within the array
+	 * @param length the length of the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public boolean scan(byte[] bytes, int offset, int length, AnnotationQuery query) {
+		return checkParsed(findAnnotation(window(bytes, offset, length), query)) != 0;
+	}
+
+	/**
+	 * As {@link #scan(byte[], int, int, AnnotationQuery)} but records the outcome of the scan (including whether
+	 * the constant pool alone was enough to reject the class) in the supplied statistics.
+	 * 
+	 * @param bytes the array containing the bytecode for the class
+	 * @param offset the offset of the class within the array
+	 * @param length the length of the class
+	 * @param query the annotation to search for
+	 * @param statistics where to record the outcome of the scan
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public boolean scan(byte[] bytes, int offset, int length, AnnotationQuery query, ScanStatistics statistics) {
+		boolean found = scan(bytes, offset, length, query);
+		statistics.record(found, rejectedByConstantPool);
+		return found;
+	}
+
+	/**
+	 * As {@link #scan(byte[], int, int, AnnotationQuery)} but does not throw if the class cannot be parsed, it is
+	 * reported as {@link ScanResult#UNPARSEABLE} and {@link #getFailure()} says why.
+	 * 
+	 * @param bytes the array containing the bytecode for the class
+	 * @param offset the offset of the class within the array
+	 * @param length the length of the class
+	 * @param query the annotation to search for
+	 * @return whether the annotation is found as a type level annotation on the supplied class
+	 */
+	public ScanResult evaluate(byte[] bytes, int offset, int length, AnnotationQuery query) {
+		return result(findAnnotation(window(bytes, offset, length), query) != 0);
+	}
+
+	/**
+	 * As {@link #scanForAnnotations(byte[], AnnotationQuerySet)} but for a class stored in a window of a byte array.
+	 * 
+	 * @param bytes the array containing the bytecode for the class
+	 * @param offset the offset of the class within the array
+	 * @param length the length of the class
+	 * @param querySet the annotations to search for (at most 64)
+	 * @return a mask indicating which of the annotations were found as type level annotations
+	 */
+	public long scanForAnnotations(byte[] bytes, int offset, int length, AnnotationQuerySet querySet) {
+		if (querySet.size() > 64) {
+			throw new IllegalArgumentException("Query set too large for a long result, use a BitSet");
+		}
+		scanQuerySet(window(bytes, offset, length), querySet);
+		checkParsed(0);
+		return foundQueries[0];
+	}
+
+	private ClassBytes window(byte[] bytes, int offset, int length) {
+		if (offset < 0 || length < 0 || offset > bytes.length - length) {
+			throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length + " array length=" + bytes.length);
+		}
+		return arrayData.reset(bytes, offset, length);
+	}
+
+	/**
+	 * @return why the class in the most recent scan could not be parsed, or null if it was parsed
+	 */
+	public ScanFailure getFailure() {
+		return failure;
+	}
+
+	private ScanResult result(boolean found) {
+		return failure != null ? ScanResult.UNPARSEABLE : found ? ScanResult.MATCH : ScanResult.NO_MATCH;
+	}
+
+	/**
+	 * For the APIs that cannot report a class as unparseable, throw if the most recent scan failed.
+	 */
+	private int checkParsed(int found) {
+		if (failure != null) {
+			throw new IllegalStateException("Unable to parse class: " + failure);
+		}
+		return found;
+	}
+
+	int findAnnotation(ClassBytes classBytes, AnnotationQuery query) {
+		reset(classBytes);
+		this.query = query;
+		try {
+			return consumeClass(query);
+		} catch (IndexOutOfBoundsException e) {
+			// Some structure claimed to extend beyond the end of the bytes
+			truncated();
+			return 0;
+		} finally {
+			this.data.clear();
+			this.query = null;
+		}
+	}
+
+	/**
+	 * As {@link #scan(byte[], AnnotationQuery)} but records the outcome of the scan (including whether the
+	 * constant pool alone was enough to reject the class) in the supplied statistics.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @param statistics where to record the outcome of the scan
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public boolean scan(byte[] classfilebytes, AnnotationQuery query, ScanStatistics statistics) {
+		boolean found = scan(classfilebytes, query);
+		statistics.record(found, rejectedByConstantPool);
+		return found;
+	}
+
+	/**
+	 * As {@link #scan(ByteBuffer, AnnotationQuery)} but records the outcome of the scan (including whether the
+	 * constant pool alone was enough to reject the class) in the supplied statistics.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @param statistics where to record the outcome of the scan
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public boolean scan(ByteBuffer classfilebytes, AnnotationQuery query, ScanStatistics statistics) {
+		boolean found = scan(classfilebytes, query);
+		statistics.record(found, rejectedByConstantPool);
+		return found;
+	}
+
+	/**
+	 * Scan the class read from the stream for the annotation described by the query. Rather than loading the
+	 * whole class first, the stream is parsed as it is read and reading stops as soon as the result is known. In
+	 * particular if the constant pool shows the class cannot have the annotation (the common case when scanning
+	 * a jar) the rest of the class is never read or inflated. The stream is closed on return.
+	 * 
+	 * @param stream the stream containing the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found as a type level annotation on the class
+	 * @see IncrementalAnnotationScanner
+	 */
+	public boolean scan(InputStream stream, AnnotationQuery query) {
+		return streamScanner().scan(stream, query);
+	}
+
+	/**
+	 * Scan a class held in an entry of a memory mapped jar for the annotation described by the query. An entry
+	 * that is stored (not compressed) is contiguous in the mapping and is scanned in place, with no copying. A
+	 * deflated entry is inflated as it is scanned, stopping as soon as the result is known (often after just
+	 * the constant pool). Inflating uses an inflater kept for the calling thread, rather than one per entry.
+	 * 
+	 * @param jar the jar
+	 * @param entry the index of the entry in the jar
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found as a type level annotation on the class
+	 * @throws UncheckedIOException if the entry cannot be read from the jar
+	 */
+	public boolean scan(MappedJar jar, int entry, AnnotationQuery query) {
+		ScanResult result = evaluate(jar, entry, query);
+		checkParsed(0);
+		return result == ScanResult.MATCH;
+	}
+
+	/**
+	 * As {@link #scan(MappedJar, int, AnnotationQuery)} but does not throw if the class cannot be parsed, it is
+	 * reported as {@link ScanResult#UNPARSEABLE} and {@link #getFailure()} says why.
+	 * 
+	 * @param jar the jar
+	 * @param entry the index of the entry in the jar
+	 * @param query the annotation to search for
+	 * @return whether the annotation is found as a type level annotation on the class
+	 * @throws UncheckedIOException if the entry cannot be read from the jar
+	 */
+	public ScanResult evaluate(MappedJar jar, int entry, AnnotationQuery query) {
+		try {
+			switch (jar.getMethod(entry)) {
+			case MappedJar.STORED:
+				BufferClassBytes classBytes = bufferData.reset(jar.classMapping(), jar.getDataOffset(entry), jar.getCompressedSize(entry));
+				return result(findAnnotation(classBytes, query) != 0);
+			case MappedJar.DEFLATED:
+				IncrementalAnnotationScanner streamScanner = streamScanner();
+				streamScanner.reset(query);
+				EntryInflater.forCurrentThread().scan(jar, entry, streamScanner);
+				ScanResult result = streamScanner.end();
+				failure = streamScanner.getFailure();
+				return result;
+			default:
+				rejectedByConstantPool = false;
+				failure = ScanFailure.UNSUPPORTED_COMPRESSION_METHOD;
+				return ScanResult.UNPARSEABLE;
+			}
+		} catch (ZipException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private IncrementalAnnotationScanner streamScanner() {
+		if (streamScanner == null) {
+			streamScanner = new IncrementalAnnotationScanner();
+		}
+		return streamScanner;
+	}
+
+	/**
+	 * As {@link #scan(InputStream, AnnotationQuery)} but does not throw if the class cannot be parsed, it is
+	 * reported as {@link ScanResult#UNPARSEABLE} and {@link #getFailure()} says why.
+	 * 
+	 * @param stream the stream containing the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return whether the annotation is found as a type level annotation on the class
+	 */
+	public ScanResult evaluate(InputStream stream, AnnotationQuery query) {
+		ScanResult result = streamScanner().evaluate(stream, query);
+		failure = streamScanner.getFailure();
+		return result;
+	}
+
+	/**
+	 * As {@link #scan(InputStream, AnnotationQuery)} but records the outcome of the scan (including whether the
+	 * constant pool alone was enough to reject the class) in the supplied statistics.
+	 * 
+	 * @param stream the stream containing the bytecode for the class
+	 * @param query the annotation to search for
+	 * @param statistics where to record the outcome of the scan
+	 * @return true if the annotation is found as a type level annotation on the class
+	 */
+	public boolean scan(InputStream stream, AnnotationQuery query, ScanStatistics statistics) {
+		boolean found = scan(stream, query);
+		statistics.record(found, streamScanner.isRejectedByConstantPool());
+		return found;
+	}
+
+	/**
+	 * Scan the class stored in the specified bytes for all the annotations in the query set in a single pass.
+	 * The result has bit <tt>n</tt> set if the query at position <tt>n</tt> in the set is found, so this
+	 * can only be used for sets of up to 64 queries.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param querySet the annotations to search for (at most 64)
+	 * @return a mask indicating which of the annotations were found as type level annotations
+	 */
+	public long scanForAnnotations(byte[] classfilebytes, AnnotationQuerySet querySet) {
+		if (querySet.size() > 64) {
+			throw new IllegalArgumentException("Query set too large for a long result, use a BitSet");
+		}
+		scanQuerySet(arrayData.reset(classfilebytes, 0, classfilebytes.length), querySet);
+		checkParsed(0);
+		return foundQueries[0];
+	}
+
+	/**
+	 * As {@link #scanForAnnotations(byte[], AnnotationQuerySet)} but for a class stored in a buffer (between its
+	 * position and limit). The position of the buffer is not changed.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param querySet the annotations to search for (at most 64)
+	 * @return a mask indicating which of the annotations were found as type level annotations
+	 */
+	public long scanForAnnotations(ByteBuffer classfilebytes, AnnotationQuerySet querySet) {
+		if (querySet.size() > 64) {
+			throw new IllegalArgumentException("Query set too large for a long result, use a BitSet");
+		}
+		scanQuerySet(wrap(classfilebytes), querySet);
+		checkParsed(0);
+		return foundQueries[0];
+	}
+
+	/**
+	 * Scan the class stored in the specified bytes for all the annotations in the query set in a single pass.
+	 * On return the result has bit <tt>n</tt> set if the query at position <tt>n</tt> in the set was found.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param querySet the annotations to search for
+	 * @param result cleared and then filled in with the positions of the annotations found
+	 * @return true if any of the annotations were found
+	 */
+	public boolean scanForAnnotations(byte[] classfilebytes, AnnotationQuerySet querySet, BitSet result) {
+		scanQuerySet(arrayData.reset(classfilebytes, 0, classfilebytes.length), querySet);
+		checkParsed(0);
+		return copyFoundQueries(querySet, result);
+	}
+
+	/**
+	 * As {@link #scanForAnnotations(byte[], AnnotationQuerySet, BitSet)} but does not throw if the class cannot
+	 * be parsed, it is reported as {@link ScanResult#UNPARSEABLE} and {@link #getFailure()} says why.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param querySet the annotations to search for
+	 * @param result cleared and then filled in with the positions of the annotations found
+	 * @return {@link ScanResult#MATCH} if any of the annotations were found
+	 */
+	public ScanResult evaluate(byte[] classfilebytes, AnnotationQuerySet querySet, BitSet result) {
+		scanQuerySet(arrayData.reset(classfilebytes, 0, classfilebytes.length), querySet);
+		if (failure != null) {
+			result.clear();
+			return ScanResult.UNPARSEABLE;
+		}
+		return result(copyFoundQueries(querySet, result));
+	}
+
+	/**
+	 * As {@link #scanForAnnotations(byte[], AnnotationQuerySet, BitSet)} but for a class stored in a buffer
+	 * (between its position and limit). The position of the buffer is not changed.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param querySet the annotations to search for
+	 * @param result cleared and then filled in with the positions of the annotations found
+	 * @return true if any of the annotations were found
+	 */
+	public boolean scanForAnnotations(ByteBuffer classfilebytes, AnnotationQuerySet querySet, BitSet result) {
+		scanQuerySet(wrap(classfilebytes), querySet);
+		checkParsed(0);
+		return copyFoundQueries(querySet, result);
+	}
+
+	private boolean copyFoundQueries(AnnotationQuerySet querySet, BitSet result) {
+		result.clear();
+		boolean any = false;
+		for (int w = 0, max = words(querySet); w < max; w++) {
+			long word = foundQueries[w];
+			while (word != 0) {
+				result.set(w * 64 + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+				any = true;
+			}
+		}
+		return any;
+	}
+
+	void scanQuerySet(ClassBytes classBytes, AnnotationQuerySet querySet) {
+		reset(classBytes);
+		prepare(querySet);
+		try {
+			consumeClass(querySet);
+		} catch (IndexOutOfBoundsException e) {
+			truncated();
+		} finally {
+			this.data.clear();
+			this.querySet = null;
+		}
+	}
+
+	private void prepare(AnnotationQuerySet querySet) {
+		this.querySet = querySet;
+		int words = words(querySet);
+		if (foundQueries.length < words) {
+			foundQueries = new long[words];
+			candidateQueries = new long[words];
+		}
+		for (int w = 0; w < words; w++) {
+			foundQueries[w] = 0;
+			candidateQueries[w] = 0;
+		}
+		unresolvedCandidates = 0;
+	}
+
+	/**
+	 * Determine whether the class stored in the specified bytes satisfies the predicate, in a single pass that
+	 * stops as soon as the outcome is known. Checks on the header are made before any that need the annotation
+	 * attributes to be walked.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param predicate the predicate to evaluate
+	 * @return {@link ScanResult#MATCH} if the class satisfies the predicate
+	 */
+	public ScanResult evaluate(byte[] classfilebytes, ClassPredicate predicate) {
+		return evaluate(arrayData.reset(classfilebytes, 0, classfilebytes.length), predicate);
+	}
+
+	/**
+	 * As {@link #evaluate(byte[], ClassPredicate)} but for a class stored in a buffer (between its position and
+	 * limit). The position of the buffer is not changed.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param predicate the predicate to evaluate
+	 * @return {@link ScanResult#MATCH} if the class satisfies the predicate
+	 */
+	public ScanResult evaluate(ByteBuffer classfilebytes, ClassPredicate predicate) {
+		return evaluate(wrap(classfilebytes), predicate);
+	}
+
+	/**
+	 * As {@link #evaluate(byte[], ClassPredicate)} but throws if the class cannot be parsed.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param predicate the predicate to evaluate
+	 * @return true if the class satisfies the predicate
+	 */
+	public boolean matches(byte[] classfilebytes, ClassPredicate predicate) {
+		ScanResult result = evaluate(classfilebytes, predicate);
+		checkParsed(0);
+		return result == ScanResult.MATCH;
+	}
+
+	ScanResult evaluate(ClassBytes classBytes, ClassPredicate predicate) {
+		reset(classBytes);
+		prepare(predicate.querySet());
+		boolean matched = false;
+		try {
+			matched = consumeClass(predicate);
+		} catch (IndexOutOfBoundsException e) {
+			truncated();
+		} finally {
+			this.data.clear();
+			this.querySet = null;
+		}
+		return result(matched);
+	}
+
+	private static int words(AnnotationQuerySet querySet) {
+		return (querySet.size() + 63) >>> 6;
+	}
+
+	/**
+	 * Scan the fields and methods of the class stored in the specified bytes for the annotation described by
+	 * the query. The members are only walked if the constant pool shows the annotation type (and the attribute
+	 * that would hold it) is present, and the scan stops at the first member found to have the annotation.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found on any field or method of the supplied class
+	 */
+	public boolean scanMembers(byte[] classfilebytes, AnnotationQuery query) {
+		return checkParsed(findMemberAnnotation(arrayData.reset(classfilebytes, 0, classfilebytes.length), query, null)) != 0;
+	}
+
+	/**
+	 * As {@link #scanMembers(byte[], AnnotationQuery)} but does not throw if the class cannot be parsed, it is
+	 * reported as {@link ScanResult#UNPARSEABLE} and {@link #getFailure()} says why.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return whether the annotation is found on any field or method of the supplied class
+	 */
+	public ScanResult evaluateMembers(byte[] classfilebytes, AnnotationQuery query) {
+		return result(findMemberAnnotation(arrayData.reset(classfilebytes, 0, classfilebytes.length), query, null) != 0);
+	}
+
+	/**
+	 * Scan the fields and methods of the class stored in the specified bytes for the annotation described by
+	 * the query, collecting every member that has it. As with {@link #scanMembers(byte[], AnnotationQuery)}
+	 * nothing beyond the constant pool is looked at if the annotation type is not present there.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @param result cleared and then filled in with the fields and methods that have the annotation, in the
+	 * order they occur in the class (fields first)
+	 * @return true if any members have the annotation
+	 */
+	public boolean findAnnotatedMembers(byte[] classfilebytes, AnnotationQuery query, List<AnnotatedMember> result) {
+		result.clear();
+		return checkParsed(findMemberAnnotation(arrayData.reset(classfilebytes, 0, classfilebytes.length), query, result)) != 0;
+	}
+
+	/**
+	 * Scan the methods of the class stored in the specified bytes for a parameter with the annotation described
+	 * by the query. The methods are only walked if the constant pool shows the annotation type (and the parameter
+	 * annotation attribute that would hold it) is present, and the scan stops at the first method found to have
+	 * an annotated parameter.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found on any parameter of any method of the supplied class
+	 */
+	public boolean scanParameters(byte[] classfilebytes, AnnotationQuery query) {
+		return checkParsed(findParameterAnnotation(arrayData.reset(classfilebytes, 0, classfilebytes.length), query, null)) != 0;
+	}
+
+	/**
+	 * As {@link #scanParameters(byte[], AnnotationQuery)} but does not throw if the class cannot be parsed, it is
+	 * reported as {@link ScanResult#UNPARSEABLE} and {@link #getFailure()} says why.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return whether the annotation is found on any parameter of any method of the supplied class
+	 */
+	public ScanResult evaluateParameters(byte[] classfilebytes, AnnotationQuery query) {
+		return result(findParameterAnnotation(arrayData.reset(classfilebytes, 0, classfilebytes.length), query, null) != 0);
+	}
+
+	/**
+	 * Scan the methods of the class stored in the specified bytes for parameters with the annotation described
+	 * by the query, collecting every method that has one.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @param result cleared and then filled in with the methods that have a parameter with the annotation, in the
+	 * order they occur in the class
+	 * @return true if any methods have a parameter with the annotation
+	 */
+	public boolean findMethodsWithAnnotatedParameters(byte[] classfilebytes, AnnotationQuery query,
+			List<AnnotatedMember> result) {
+		result.clear();
+		return checkParsed(findParameterAnnotation(arrayData.reset(classfilebytes, 0, classfilebytes.length), query, result)) != 0;
+	}
+
+	int findParameterAnnotation(ClassBytes classBytes, AnnotationQuery query, List<AnnotatedMember> result) {
+		searching = PARAMETER_ANNOTATIONS;
+		try {
+			return findMemberAnnotation(classBytes, query, result);
+		} finally {
+			searching = ANNOTATIONS;
+		}
+	}
+
+	/**
+	 * Scan the class stored in the specified bytes for a type annotation (JSR 308, held in the
+	 * Runtime(In)visibleTypeAnnotations attributes) described by the query. Those on the class (type parameters,
+	 * supertypes), its fields and its methods (signatures, throws clauses) are checked, those within method
+	 * bodies are not. As for annotations, if the constant pool shows the annotation cannot be present parsing
+	 * stops there, and the scan stops at the first occurrence.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the type annotation to search for
+	 * @return true if the type annotation is used anywhere in the declarations of the supplied class
+	 */
+	public boolean scanTypeUses(byte[] classfilebytes, AnnotationQuery query) {
+		return scanTypeUses(classfilebytes, query, false);
+	}
+
+	/**
+	 * As {@link #scanTypeUses(byte[], AnnotationQuery)} but optionally also checking the type annotations in
+	 * method bodies (on local variables, casts, <tt>new</tt> expressions, etc). Those are held in the Code
+	 * attributes, so checking them means walking (though not decoding) the bytecode of every method.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the type annotation to search for
+	 * @param includeCode true to also check type annotations within method bodies
+	 * @return true if the type annotation is used anywhere in the supplied class
+	 */
+	public boolean scanTypeUses(byte[] classfilebytes, AnnotationQuery query, boolean includeCode) {
+		return checkParsed(findTypeUseAnnotation(arrayData.reset(classfilebytes, 0, classfilebytes.length), query, includeCode)) != 0;
+	}
+
+	/**
+	 * As {@link #scanTypeUses(byte[], AnnotationQuery, boolean)} but does not throw if the class cannot be parsed,
+	 * it is reported as {@link ScanResult#UNPARSEABLE} and {@link #getFailure()} says why.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the type annotation to search for
+	 * @param includeCode true to also check type annotations within method bodies
+	 * @return whether the type annotation is used anywhere in the supplied class
+	 */
+	public ScanResult evaluateTypeUses(byte[] classfilebytes, AnnotationQuery query, boolean includeCode) {
+		return result(findTypeUseAnnotation(arrayData.reset(classfilebytes, 0, classfilebytes.length), query, includeCode) != 0);
+	}
+
+	int findTypeUseAnnotation(ClassBytes classBytes, AnnotationQuery query, boolean includeCode) {
+		searching = TYPE_ANNOTATIONS;
+		searchCode = includeCode;
+		try {
+			return findMemberAnnotation(classBytes, query, null);
+		} finally {
+			searching = ANNOTATIONS;
+			searchCode = false;
+		}
+	}
+
+	int findMemberAnnotation(ClassBytes classBytes, AnnotationQuery query, List<AnnotatedMember> result) {
+		reset(classBytes);
+		this.query = query;
+		try {
+			return consumeMembers(query, result);
+		} catch (IndexOutOfBoundsException e) {
+			truncated();
+			return 0;
+		} finally {
+			this.data.clear();
+			this.query = null;
+		}
+	}
+
+	/**
+	 * Scan a class held in a window of a <tt>java.lang.foreign.MemorySegment</tt> for the annotation described by
+	 * the query. The bytes are read in place, so a class held off-heap is scanned without being copied onto the
+	 * heap. The segment is only read, many threads (each using their own scanner) can scan the same segment at
+	 * once if it was allocated in an arena that allows access from those threads (e.g. a shared arena).
+	 * <b>Note:</b> Requires Java 22 or later, see {@link #isMemorySegmentSupported()}. The parameter type is
+	 * Object so that this API can exist on earlier Java versions.
+	 * 
+	 * @param segment a <tt>java.lang.foreign.MemorySegment</tt> containing the bytecode for the class
+	 * @param offset the offset of the class within the segment
+	 * @param length the length of the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found as a type level annotation on the class
+	 * @throws UnsupportedOperationException if running on a Java version before 22
+	 */
+	public boolean scanSegment(Object segment, long offset, long length, AnnotationQuery query) {
+		segmentData = MemorySegmentSupport.wrap(segmentData, segment, offset, length);
+		return checkParsed(findAnnotation(segmentData, query)) != 0;
+	}
+
+	/**
+	 * As {@link #scanSegment(Object, long, long, AnnotationQuery)} but searching for all the annotations in the
+	 * query set in a single pass.
+	 * 
+	 * @param segment a <tt>java.lang.foreign.MemorySegment</tt> containing the bytecode for the class
+	 * @param offset the offset of the class within the segment
+	 * @param length the length of the class
+	 * @param querySet the annotations to search for (at most 64)
+	 * @return a mask indicating which of the annotations were found as type level annotations
+	 * @throws UnsupportedOperationException if running on a Java version before 22
+	 */
+	public long scanSegmentForAnnotations(Object segment, long offset, long length, AnnotationQuerySet querySet) {
+		if (querySet.size() > 64) {
+			throw new IllegalArgumentException("Query set too large for a long result, use a BitSet");
+		}
+		segmentData = MemorySegmentSupport.wrap(segmentData, segment, offset, length);
+		scanQuerySet(segmentData, querySet);
+		checkParsed(0);
+		return foundQueries[0];
+	}
+
+	/**
+	 * @return true if classes held in a <tt>java.lang.foreign.MemorySegment</tt> can be scanned (Java 22 or later)
+	 */
+	public static boolean isMemorySegmentSupported() {
+		return MemorySegmentSupport.isAvailable();
+	}
+
+	/**
+	 * Read the header of the class stored in the specified bytes, stopping as soon as it has been read. The
+	 * bytes are retained (not copied) by the header so that the names can be decoded if asked for.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @return the header, or null if the class cannot be parsed ({@link #getFailure()} says why)
+	 */
+	public ClassHeader readHeader(byte[] classfilebytes) {
+		reset(arrayData.reset(classfilebytes, 0, classfilebytes.length));
+		try {
+			return consumeHeader(classfilebytes);
+		} catch (IndexOutOfBoundsException e) {
+			truncated();
+			return null;
+		} finally {
+			this.data.clear();
+		}
+	}
+
+	/**
+	 * Read the header of the class read from the stream. Only the bytes up to the end of the header are read
+	 * (or, for a stream from a jar, inflated) and the stream is closed on return.
+	 * 
+	 * @param stream the stream containing the bytecode for the class
+	 * @return the header, or null if the class cannot be parsed ({@link #getFailure()} says why)
+	 */
+	public ClassHeader readHeader(InputStream stream) {
+		byte[] headerBytes = streamScanner().readHeaderBytes(stream);
+		if (headerBytes == null) {
+			failure = streamScanner.getFailure();
+			return null;
+		}
+		return readHeader(headerBytes);
+	}
+
+	private ClassHeader consumeHeader(byte[] classfilebytes) {
+		if (readInt() != MAGIC) {
+			failure = ScanFailure.BAD_MAGIC;
+			return null;
+		}
+		int minor = readUnsignedShort();
+		int major = readUnsignedShort();
+		if (!consumeConstantPool()) {
+			return null;
+		}
+		int accessFlags = readUnsignedShort();
+		int classNameOffset = nameOffsetOfClass(readUnsignedShort());
+		int superClass = readUnsignedShort();
+		int superClassNameOffset = superClass == 0 ? 0 : nameOffsetOfClass(superClass);
+		if (failure != null) {
+			return null;
+		}
+		if (ptr > data.length()) {
+			truncated();
+			return null;
+		}
+		return new ClassHeader(classfilebytes, minor, major, accessFlags, classNameOffset, superClassNameOffset);
+	}
+
+	/**
+	 * Walk the whole class (rather than stopping as soon as some query is answered) recording its structure.
+	 * @param classfilebytes the bytecode for the class
+	 * @return the skeleton of the class
+	 * @throws IllegalStateException if the class cannot be parsed
+	 * @see ClassSkeleton#of(byte[])
+	 */
+	ClassSkeleton skeleton(byte[] classfilebytes) {
+		reset(arrayData.reset(classfilebytes, 0, classfilebytes.length));
+		try {
+			ClassSkeleton skeleton = consumeSkeleton(classfilebytes);
+			checkParsed(0);
+			return skeleton;
+		} catch (IndexOutOfBoundsException e) {
+			truncated();
+			checkParsed(0);
+			return null;
+		} finally {
+			this.data.clear();
+		}
+	}
+
+	/**
+	 * Collect the types of the type level annotations of the class stored in the specified bytes.
+	 * @param classfilebytes the bytecode for the class
+	 * @param attributes which annotation attributes to collect from ({@link #RUNTIME_VISIBLE} and/or
+	 * {@link #RUNTIME_INVISIBLE})
+	 * @param result filled in with the annotation type descriptors
+	 * @return false if the class cannot be parsed ({@link #getFailure()} says why)
+	 */
+	boolean collectAnnotationTypes(byte[] classfilebytes, int attributes, List<String> result) {
+		reset(arrayData.reset(classfilebytes, 0, classfilebytes.length));
+		try {
+			consumeAnnotationTypes(attributes, result);
+			if (failure == null && ptr > data.length()) {
+				truncated();
+			}
+		} catch (IndexOutOfBoundsException e) {
+			truncated();
+		} finally {
+			this.data.clear();
+		}
+		return failure == null;
+	}
+
+	private void consumeAnnotationTypes(int attributes, List<String> result) {
+		if (readInt() != MAGIC) {
+			failure = ScanFailure.BAD_MAGIC;
+			return;
+		}
+		ptr += 4; // jump minor:2, major:2
+		if (!consumeConstantPool()) {
+			return;
+		}
+		ptr += 6; // jump access_flags:2, this_class:2, super_class:2
+		int interfacesCount = readUnsignedShort();
+		ptr += 2 * interfacesCount;
+		consumeFields();
+		consumeMethods();
+		int num_attributes = readUnsignedShort();
+		for (int a = 0; a < num_attributes; a++) {
+			int nameIndex = readUnsignedShort();
+			int attributeEnd = ptr + 4 + readInt(ptr);
+			if ((attributes & RUNTIME_VISIBLE) != 0 && isAttribute(nameIndex, visibleAnnotationsIndex, RuntimeVisibleAnnotations)
+					|| (attributes & RUNTIME_INVISIBLE) != 0 && isAttribute(nameIndex, invisibleAnnotationsIndex, RuntimeInvisibleAnnotations)) {
+				ptr += 4;
+				int[] types = consumeAnnotationTypes();
+				for (int type : types) {
+					if (type != 0) {
+						result.add(decodeUtf8(type));
+					}
+				}
+			}
+			if (failure != null) {
+				return;
+			}
+			ptr = attributeEnd;
+		}
+	}
+
+	private ClassSkeleton consumeSkeleton(byte[] classfilebytes) {
+		if (readInt() != MAGIC) {
+			failure = ScanFailure.BAD_MAGIC;
+			return null;
+		}
+		ptr += 4; // jump minor:2, major:2
+		if (!consumeConstantPool()) {
+			return null;
+		}
+		int[] offsets = Arrays.copyOf(constantPool, constantPoolCount);
+		for (int i = 1; i < offsets.length; i++) {
+			// The skeleton only holds the Utf8 entries, drop the Class entries recorded for reading headers
+			if (offsets[i] != 0 && data.u1(offsets[i] - 1) != CONSTANT_Utf8) {
+				offsets[i] = 0;
+			}
+		}
+		ptr += 6; // jump access_flags:2, this_class:2, super_class:2
+		int interfacesCount = readUnsignedShort();
+		ptr += 2 * interfacesCount;
+		int fieldsOffset = ptr;
+		consumeFields();
+		int methodsOffset = ptr;
+		consumeMethods();
+		int attributesOffset = ptr;
+		int visibleOffset = -1, invisibleOffset = -1;
+		int[] visibleTypes = null, invisibleTypes = null;
+		int num_attributes = readUnsignedShort();
+		for (int a = 0; a < num_attributes; a++) {
+			int attributeOffset = ptr;
+			int nameIndex = readUnsignedShort();
+			int attributeLength = readInt();
+			int attributeEnd = ptr + attributeLength;
+			if (isAttribute(nameIndex, visibleAnnotationsIndex, RuntimeVisibleAnnotations)) {
+				visibleOffset = attributeOffset;
+				visibleTypes = consumeAnnotationTypes();
+			} else if (isAttribute(nameIndex, invisibleAnnotationsIndex, RuntimeInvisibleAnnotations)) {
+				invisibleOffset = attributeOffset;
+				invisibleTypes = consumeAnnotationTypes();
+			}
+			if (failure != null) {
+				return null;
+			}
+			ptr = attributeEnd;
+		}
+		if (ptr > data.length()) {
+			truncated();
+			return null;
+		}
+		return new ClassSkeleton(classfilebytes, offsets, fieldsOffset, methodsOffset,
+				attributesOffset, visibleOffset, visibleTypes, invisibleOffset, invisibleTypes);
+	}
+
+	/**
+	 * Consume the annotations in a runtime annotation attribute, collecting their types.
+	 * @return the constant pool indices of the annotation types (0 for any that are not Utf8 entries)
+	 */
+	private int[] consumeAnnotationTypes() {
+		// NOTE: Name and length already consumed
+		int num_annotations = readUnsignedShort();
+		int[] types = new int[num_annotations];
+		for (int a = 0; a < num_annotations && failure == null; a++) {
+			int typeIndex = readUnsignedShort();
+			types[a] = isUtf8(typeIndex) ? typeIndex : 0;
+			consumeElementValuePairs();
+		}
+		return types;
+	}
+
+	private ClassBytes wrap(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			return arrayData.reset(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		return bufferData.reset(buffer);
+	}
+
+	private void reset(ClassBytes data) {
+		this.data = data;
+		this.ptr = 0;
+		this.rejectedByConstantPool = false;
+		this.failure = null;
 	}
 	
 	/**
 	 * Scan the class stored in the specified bytes for the specified annotation type (name is of the form 
-	 * <tt>Ljava/lang/Foo;</tt>. <b>Note:</b> There is a current limitation that the type name should not
-	 * include characters that cannot be encoded in single chars.
+	 * <tt>Ljava/lang/Foo;</tt>. <b>Note:</b> This version has to encode the name on every call, if scanning
+	 * lots of classes for the same annotation prefer the {@link AnnotationQuery} variant.
 	 * 
 	 * @param classfilebytes the bytecode for the class
 	 * @param annotationType the type name of the annotation (form: <tt>Lorg/example/Foo;</tt>
@@ -67,126 +1126,494 @@ public class TypeAnnotationScanner {
 	 * @return true if the annotation is found as a type level annotation on the supplied class
 	 */
 	public static boolean scanClassBytesForAnnotation(byte[] classfilebytes,String annotationType, boolean hasRuntimeRetention) {
-		return new TypeAnnotationScanner(classfilebytes).consumeClass(annotationType,hasRuntimeRetention);
+		return scanClassBytesForAnnotation(classfilebytes, AnnotationQuery.of(annotationType, hasRuntimeRetention));
+	}
+
+	/**
+	 * As {@link #scanClassBytesForAnnotation(byte[], String, boolean)} but records the outcome of the scan
+	 * (including whether the constant pool alone was enough to reject the class) in the supplied statistics.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param annotationType the type name of the annotation (form: <tt>Lorg/example/Foo;</tt>
+	 * @param hasRuntimeRetention true if the supplied annotation has runtime retention
+	 * @param statistics where to record the outcome of the scan
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public static boolean scanClassBytesForAnnotation(byte[] classfilebytes, String annotationType,
+			boolean hasRuntimeRetention, ScanStatistics statistics) {
+		return scanClassBytesForAnnotation(classfilebytes, AnnotationQuery.of(annotationType, hasRuntimeRetention), statistics);
 	}
 	
 	/**
-	 * Scan the class stored in the specified bytes for the specified annotation type.  <b>Note:</b> There is a 
-	 * current limitation that the annotation type name should not include characters that cannot be encoded 
-	 * in single chars. <b>Note:</b> This version is slower than the alternate <tt>scanClassBytesForAnnotation</tt> if
-	 * calling it a lot, due to the string construction.
+	 * Scan the class stored in the specified bytes for the specified annotation type, without needing to know
+	 * its retention. Both the RuntimeVisibleAnnotations and RuntimeInvisibleAnnotations are checked.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param annotationType the type name of the annotation (form: <tt>Lorg/example/Foo;</tt>
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public static boolean scanClassBytesForAnnotation(byte[] classfilebytes, String annotationType) {
+		return scanClassBytesForAnnotation(classfilebytes, AnnotationQuery.of(annotationType));
+	}
+
+	/**
+	 * Scan the class stored in the specified bytes for the specified annotation type. The retention of the
+	 * annotation is determined from its <tt>@Retention</tt>.
 	 * 
 	 * @param classfilebytes the bytecode for the class
 	 * @param annotationType the type of the annotation to be searched for
 	 * @return true if the annotation is found as a type level annotation on the supplied class
 	 */
 	public static boolean scanClassBytesForAnnotation(byte[] classfilebytes, Class<?> annotationClass) {
-		boolean visible = (annotationClass.getAnnotation(Retention.class).value() == RetentionPolicy.RUNTIME);
-		String annotationTypeName = new StringBuilder("L").append(annotationClass.getName().replace(".","/")).append(";").toString();
-		return new TypeAnnotationScanner(classfilebytes).consumeClass(annotationTypeName, visible);
+		return scanClassBytesForAnnotation(classfilebytes, AnnotationQuery.of(annotationClass));
+	}
+
+	/**
+	 * Scan the class stored in the specified bytes for the annotation described by the query.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public static boolean scanClassBytesForAnnotation(byte[] classfilebytes, AnnotationQuery query) {
+		return forCurrentThread().scan(classfilebytes, query);
+	}
+
+	/**
+	 * As {@link #scanClassBytesForAnnotation(byte[], AnnotationQuery)} but records the outcome of the scan
+	 * (including whether the constant pool alone was enough to reject the class) in the supplied statistics.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @param statistics where to record the outcome of the scan
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public static boolean scanClassBytesForAnnotation(byte[] classfilebytes, AnnotationQuery query,
+			ScanStatistics statistics) {
+		return forCurrentThread().scan(classfilebytes, query, statistics);
+	}
+
+	/**
+	 * Scan the class stored in the specified bytes for all the annotations in the query set in a single pass.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param querySet the annotations to search for (at most 64)
+	 * @return a mask with bit <tt>n</tt> set if the query at position <tt>n</tt> in the set was found
+	 * @see #scanForAnnotations(byte[], AnnotationQuerySet)
+	 */
+	public static long scanClassBytesForAnnotations(byte[] classfilebytes, AnnotationQuerySet querySet) {
+		return forCurrentThread().scanForAnnotations(classfilebytes, querySet);
+	}
+
+	/**
+	 * Scan the class stored in the buffer (between its position and limit) for the annotation described by the
+	 * query. The buffer may be a heap, direct or memory mapped buffer and its position is not changed.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found as a type level annotation on the supplied class
+	 */
+	public static boolean scanClassBytesForAnnotation(ByteBuffer classfilebytes, AnnotationQuery query) {
+		return forCurrentThread().scan(classfilebytes, query);
+	}
+
+	/**
+	 * Scan the fields and methods of the class stored in the specified bytes for the annotation described by the
+	 * query, stopping at the first member that has it.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found on any field or method of the supplied class
+	 * @see #scanMembers(byte[], AnnotationQuery)
+	 */
+	public static boolean scanClassBytesForMemberAnnotation(byte[] classfilebytes, AnnotationQuery query) {
+		return forCurrentThread().scanMembers(classfilebytes, query);
+	}
+
+	/**
+	 * Scan the methods of the class stored in the specified bytes for a parameter with the annotation described
+	 * by the query, stopping at the first method that has one.
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found on any parameter of any method of the supplied class
+	 * @see #scanParameters(byte[], AnnotationQuery)
+	 */
+	public static boolean scanClassBytesForParameterAnnotation(byte[] classfilebytes, AnnotationQuery query) {
+		return forCurrentThread().scanParameters(classfilebytes, query);
+	}
+
+	/**
+	 * Scan the class stored in the specified bytes for a type annotation described by the query, on the class,
+	 * its fields or its methods (but not within method bodies).
+	 * 
+	 * @param classfilebytes the bytecode for the class
+	 * @param query the type annotation to search for
+	 * @return true if the type annotation is used anywhere in the declarations of the supplied class
+	 * @see #scanTypeUses(byte[], AnnotationQuery, boolean)
+	 */
+	public static boolean scanClassBytesForTypeUseAnnotation(byte[] classfilebytes, AnnotationQuery query) {
+		return forCurrentThread().scanTypeUses(classfilebytes, query);
 	}
 	
 	/**
-	 * Quick (crude) load of a byte array from the input stream. A helper method for caller that have the stream
-	 * but not the byte array.
+	 * Scan the class read from the stream for the annotation described by the query, reading no more of the
+	 * stream than necessary. The stream is closed on return.
+	 * 
+	 * @param stream the stream containing the bytecode for the class
+	 * @param query the annotation to search for
+	 * @return true if the annotation is found as a type level annotation on the class
+	 * @see #scan(InputStream, AnnotationQuery)
+	 */
+	public static boolean scanClassBytesForAnnotation(InputStream stream, AnnotationQuery query) {
+		return forCurrentThread().scan(stream, query);
+	}
+	
+	/**
+	 * Load a byte array from the input stream. A helper method for callers that have the stream but not the byte
+	 * array. The stream is closed on return. When loading many classes, reading them into a reused
+	 * {@link ClassBytesBuffer} avoids allocating an array for each.
 	 * @param stream the input stream containing the bytecode
 	 * @return a byte array containing the bytecode
 	 */
 	public static byte[] loadBytes(InputStream stream) {
-		try {
-			BufferedInputStream bis = new BufferedInputStream(stream);
-			byte[] theData = new byte[1000000];
-			int dataReadSoFar = 0;
-			byte[] buffer = new byte[1024];
-			int read = 0;
-			while ((read = bis.read(buffer)) != -1) {
-				System.arraycopy(buffer, 0, theData, dataReadSoFar, read);
-				dataReadSoFar += read;
-			}
-			bis.close();
-			// Resize to actual data read
-			byte[] returnData = new byte[dataReadSoFar];
-			System.arraycopy(theData, 0, returnData, 0, dataReadSoFar);
-			return returnData;
-		} catch (IOException e) {
-			throw new RuntimeException("Problem loading bytes from input stream",e);
-		}
+		return loadBytes(stream, -1);
+	}
+
+	/**
+	 * Load a byte array from the input stream, which is expected to contain the specified number of bytes (for
+	 * example from <tt>ZipEntry.getSize()</tt> or the length of a file). If it does, the bytes are read straight
+	 * into an array of that size. If it does not the array is grown (or trimmed) to fit what the stream contains.
+	 * The stream is closed on return.
+	 * @param stream the input stream containing the bytecode
+	 * @param size the expected number of bytes, or -1 if not known
+	 * @return a byte array containing the bytecode
+	 */
+	public static byte[] loadBytes(InputStream stream, long size) {
+		return ClassBytesBuffer.load(stream, size);
 	}
 
 	/**
 	 * @return an int constructed from the next four bytes to be processed
 	 */
 	private final int readInt() {
-		return ((bytes[ptr++] & 0xFF) << 24) + ((bytes[ptr++] & 0xFF) << 16) + ((bytes[ptr++] & 0xFF) << 8)
-				+ (bytes[ptr++] & 0xFF);
+		int i = data.u4(ptr);
+		ptr += 4;
+		return i;
+	}
+
+	/**
+	 * @param offset the offset into the class bytes where an int should be loaded from
+	 * @return an int constructed from four bytes to be found at the specified offset
+	 */
+	private final int readInt(int offset) {
+		return data.u4(offset);
 	}
 
 	/**
 	 * @return an unsigned short constructed from the next two bytes to be processed
 	 */
 	private final int readUnsignedShort() {
-		return ((bytes[ptr++] & 0xff) << 8) + (bytes[ptr++] & 0xff);
+		int s = data.u2(ptr);
+		ptr += 2;
+		return s;
+	}
+
+	/**
+	 * @param offset the offset into the class bytes where a short should be loaded from
+	 * @return an unsigned short constructed from two bytes to be found at the specified offset
+	 */
+	private final int readUnsignedShort(int offset) {
+		return data.u2(offset);
+	}
+
+	/**
+	 * Parse a class from the byte array, only touching what is necessary to locate the type annotations and
+	 * check them against the annotation/retention supplied.
+	 * @param query the annotation being searched for
+	 * @return {@link #RUNTIME_VISIBLE} or {@link #RUNTIME_INVISIBLE} if the annotation is found at the type level
+	 * (depending on the attribute it is found in), otherwise 0
+	 */
+	private final int consumeClass(AnnotationQuery query) {
+		// ClassFile {
+		//  u4 magic;
+		//  u2 minor_version;
+		//  u2 major_version;
+		//  u2 constant_pool_count;
+		//  cp_info constant_pool[constant_pool_count-1];
+		//  u2 access_flags;
+		//  u2 this_class;
+		//  u2 super_class;
+		//  u2 interfaces_count;
+		//  u2 interfaces[interfaces_count];
+		//  u2 fields_count;
+		//  field_info fields[fields_count];
+		//  u2 methods_count;
+		//  method_info methods[methods_count];
+		//  u2 attributes_count;
+		//  attribute_info attributes[attributes_count];
+		// }
+		if (readInt() != MAGIC) {
+			failure = ScanFailure.BAD_MAGIC;
+			return 0;
+		}
+		ptr += 4; // jump minor:2, major:2
+		if (!consumeConstantPool()) {
+			// No need to look at fields/methods/attributes, the class cannot have the annotation
+			rejectedByConstantPool = failure == null;
+			return 0;
+		}
+		byte[] annotationType = query.bytes();
+		int attributes = query.attributes();
+		ptr += 6; // jump access_flags:2, this_class:2, super_class:2
+		int interfacesCount = readUnsignedShort();
+		ptr += 2 * interfacesCount;
+		consumeFields();
+		consumeMethods();
+		int num_attributes = readUnsignedShort();
+		for (int a = 0; a < num_attributes; a++) {
+			int nameIndex = readUnsignedShort();
+			int attribute = 0;
+			if ((attributes & RUNTIME_VISIBLE) != 0 && isAttribute(nameIndex, visibleAnnotationsIndex, RuntimeVisibleAnnotations)) {
+				attribute = RUNTIME_VISIBLE;
+			} else if ((attributes & RUNTIME_INVISIBLE) != 0 && isAttribute(nameIndex, invisibleAnnotationsIndex, RuntimeInvisibleAnnotations)) {
+				attribute = RUNTIME_INVISIBLE;
+			}
+			if (attribute != 0) {
+				int attributeLength = readInt(ptr);
+				int attributeEnd = ptr + 4 + attributeLength;
+				if (consumeRuntimeAnnotation(annotationType)) {
+					return ptr <= data.length() ? attribute : truncated();
+				}
+				if (failure != null) {
+					return 0;
+				}
+				attributes &= ~attribute;
+				if (attributes == 0) {
+					return 0;
+				}
+				ptr = attributeEnd;
+			} else {
+				int bs = readInt();
+				ptr += bs; // skip rest of attribute
+			}
+		}
+		return ptr <= data.length() ? 0 : truncated();
 	}
 
 	/**
-	 * @param offset the offset into the byte array where a short should be loaded from
-	 * @return an unsigned short constructed from two bytes to be found at the specified offset
+	 * Record that the class ended before it should have, the bytes may be a window onto a larger array (in which
+	 * case reading beyond the end of the class does not fail) so this is checked whenever a result is reached.
+	 * @return 0, for convenience
 	 */
-	private final int readUnsignedShort(int offset) {
-		return ((bytes[offset++] & 0xff) << 8) + (bytes[offset] & 0xff);
+	private int truncated() {
+		if (failure == null) {
+			failure = ScanFailure.TRUNCATED;
+		}
+		return 0;
 	}
 
 	/**
 	 * Parse a class from the byte array, only touching what is necessary to locate the type annotations and
-	 * check them against the annotation/retention supplied.
-	 * @param annotationType the type name of the annotation (of the form <tt>Lorg/example/Foo;</tt>)
-	 * @param hasRuntimeRetention whether the annotation specified has runtime retention
-	 * @return true if the annotation is found at the type level
+	 * check them against all the annotations in the set. Once every annotation in the set that is present in
+	 * the constant pool has been found, parsing stops.
+	 * @param querySet the annotations being searched for
 	 */
-	private final boolean consumeClass(String annotationType, boolean hasRuntimeRetention) {
-		// ClassFile {
-		//  u4 magic;
-		//  u2 minor_version;
-		//  u2 major_version;
-		//  u2 constant_pool_count;
-		//  cp_info constant_pool[constant_pool_count-1];
-		//  u2 access_flags;
-		//  u2 this_class;
-		//  u2 super_class;
-		//  u2 interfaces_count;
-		//  u2 interfaces[interfaces_count];
-		//  u2 fields_count;
-		//  field_info fields[fields_count];
-		//  u2 methods_count;
-		//  method_info methods[methods_count];
-		//  u2 attributes_count;
-		//  attribute_info attributes[attributes_count];
-		// }
-		ptr += 8; // jump magic:4, minor:2, major:2
-		consumeConstantPool();
+	private final void consumeClass(AnnotationQuerySet querySet) {
+		if (readInt() != MAGIC) {
+			failure = ScanFailure.BAD_MAGIC;
+			return;
+		}
+		ptr += 4; // jump minor:2, major:2
+		if (!consumeConstantPool()) {
+			rejectedByConstantPool = failure == null;
+			return;
+		}
 		ptr += 6; // jump access_flags:2, this_class:2, super_class:2
 		int interfacesCount = readUnsignedShort();
 		ptr += 2 * interfacesCount;
 		consumeFields();
 		consumeMethods();
 		int num_attributes = readUnsignedShort();
-		if (num_attributes == 0) {
+		for (int a = 0; a < num_attributes; a++) {
+			int nameIndex = readUnsignedShort();
+			boolean visible = isAttribute(nameIndex, visibleAnnotationsIndex, RuntimeVisibleAnnotations);
+			if (visible || isAttribute(nameIndex, invisibleAnnotationsIndex, RuntimeInvisibleAnnotations)) {
+				int attributeLength = readInt();
+				int attributeEnd = ptr + attributeLength;
+				consumeRuntimeAnnotations(visible);
+				if (failure != null || unresolvedCandidates == 0) {
+					break;
+				}
+				ptr = attributeEnd;
+			} else {
+				int bs = readInt();
+				ptr += bs; // skip rest of attribute
+			}
+		}
+		if (ptr > data.length()) {
+			truncated();
+		}
+	}
+
+	/**
+	 * Parse a class from the byte array to evaluate a predicate. Whilst the constant pool is walked the
+	 * annotations the predicate involves are looked for, then the header is read. At that point the predicate is
+	 * evaluated and if the header and the annotation types present in the constant pool are enough to decide it,
+	 * parsing stops. Otherwise the annotation attributes are walked until the predicate is decided.
+	 * @param predicate the predicate being evaluated
+	 * @return true if the class satisfies the predicate
+	 */
+	private final boolean consumeClass(ClassPredicate predicate) {
+		if (readInt() != MAGIC) {
+			failure = ScanFailure.BAD_MAGIC;
+			return false;
+		}
+		ptr += 4; // jump minor:2, major:2
+		// If none of the annotations can be present they are all known to be absent
+		annotationsResolved = !consumeConstantPool();
+		if (failure != null) {
+			return false;
+		}
+		accessFlags = readUnsignedShort();
+		classNameOffset = nameOffsetOfClass(readUnsignedShort());
+		int superClass = readUnsignedShort();
+		superClassNameOffset = superClass == 0 ? 0 : nameOffsetOfClass(superClass);
+		if (failure != null) {
 			return false;
 		}
+		int value = predicate.evaluate(this);
+		if (value != ClassPredicate.UNKNOWN) {
+			rejectedByConstantPool = value == ClassPredicate.FALSE;
+			if (ptr > data.length()) {
+				truncated();
+				return false;
+			}
+			return value == ClassPredicate.TRUE;
+		}
+		int interfacesCount = readUnsignedShort();
+		ptr += 2 * interfacesCount;
+		consumeFields();
+		consumeMethods();
+		int num_attributes = readUnsignedShort();
 		for (int a = 0; a < num_attributes; a++) {
 			int nameIndex = readUnsignedShort();
-			if (hasRuntimeRetention && readUTF8(nameIndex, "RuntimeVisibleAnnotations") || 
-			    !hasRuntimeRetention && readUTF8(nameIndex,"RuntimeInvisibleAnnotations")) {
-				if (consumeRuntimeAnnotation(annotationType)) {
-					return true;
+			boolean visible = isAttribute(nameIndex, visibleAnnotationsIndex, RuntimeVisibleAnnotations);
+			if (visible || isAttribute(nameIndex, invisibleAnnotationsIndex, RuntimeInvisibleAnnotations)) {
+				int attributeLength = readInt();
+				int attributeEnd = ptr + attributeLength;
+				consumeRuntimeAnnotations(visible);
+				if (failure != null) {
+					return false;
 				}
-				return false;
+				value = predicate.evaluate(this);
+				if (value != ClassPredicate.UNKNOWN) {
+					return value == ClassPredicate.TRUE;
+				}
+				ptr = attributeEnd;
 			} else {
 				int bs = readInt();
 				ptr += bs; // skip rest of attribute
 			}
 		}
-		return false;
+		if (ptr > data.length()) {
+			truncated();
+			return false;
+		}
+		annotationsResolved = true;
+		return predicate.evaluate(this) == ClassPredicate.TRUE;
+	}
+
+	/**
+	 * @return the access flags of the class, during predicate evaluation
+	 */
+	int accessFlags() {
+		return accessFlags;
+	}
+
+	/**
+	 * @param prefix the encoded start of a class name
+	 * @return true if the name of the class (during predicate evaluation) starts with the prefix
+	 */
+	boolean classNameStartsWith(byte[] prefix) {
+		return data.u2(classNameOffset) >= prefix.length && data.regionEquals(classNameOffset + 2, prefix);
+	}
+
+	/**
+	 * @param superClassName the encoded name of a class
+	 * @return true if the superclass of the class (during predicate evaluation) is that class
+	 */
+	boolean superClassIs(byte[] superClassName) {
+		return superClassNameOffset != 0 && data.u2(superClassNameOffset) == superClassName.length
+				&& data.regionEquals(superClassNameOffset + 2, superClassName);
+	}
+
+	/**
+	 * @param query one of the annotations in the predicate being evaluated
+	 * @return {@link ClassPredicate#TRUE} if the class has been found to have the annotation,
+	 * {@link ClassPredicate#FALSE} if it cannot have it or {@link ClassPredicate#UNKNOWN} if that is not yet known
+	 */
+	int annotationState(AnnotationQuery query) {
+		int q = querySet.indexOf(query);
+		if ((foundQueries[q >>> 6] & (1L << q)) != 0) {
+			return ClassPredicate.TRUE;
+		}
+		if (annotationsResolved || (candidateQueries[q >>> 6] & (1L << q)) == 0) {
+			return ClassPredicate.FALSE;
+		}
+		int attributes = query.attributes();
+		if (((attributes & RUNTIME_VISIBLE) == 0 || visibleAnnotationsIndex == 0)
+				&& ((attributes & RUNTIME_INVISIBLE) == 0 || invisibleAnnotationsIndex == 0)) {
+			// The attribute that would hold it is not present
+			return ClassPredicate.FALSE;
+		}
+		return ClassPredicate.UNKNOWN;
+	}
+
+	/**
+	 * Consume the annotations in a runtime annotation attribute, recording which from the query set are found.
+	 * @param visible true if this is RuntimeVisibleAnnotations, false if RuntimeInvisibleAnnotations
+	 */
+	private void consumeRuntimeAnnotations(boolean visible) {
+		// NOTE: Name and length already consumed
+		int num_annotations = readUnsignedShort();
+		for (int a = 0; a < num_annotations; a++) {
+			int typeIndex = readUnsignedShort();
+			if (!isUtf8(typeIndex)) {
+				badConstantPoolIndex();
+				return;
+			}
+			int q = constantPoolQueries[typeIndex] - 1;
+			if (q >= 0 && (querySet.get(q).attributes() & (visible ? RUNTIME_VISIBLE : RUNTIME_INVISIBLE)) != 0) {
+				long bit = 1L << q;
+				if ((foundQueries[q >>> 6] & bit) == 0) {
+					foundQueries[q >>> 6] |= bit;
+					if (--unresolvedCandidates == 0) {
+						return;
+					}
+				}
+			}
+			consumeElementValuePairs();
+			if (failure != null) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param nameIndex the constant pool index of an attribute name
+	 * @param attributeIndex the constant pool index where the name of the attribute of interest was found
+	 * @param attributeName the name of the attribute of interest
+	 * @return true if the attribute name is the one of interest
+	 */
+	private boolean isAttribute(int nameIndex, int attributeIndex, byte[] attributeName) {
+		if (!isUtf8(nameIndex)) {
+			return badConstantPoolIndex();
+		}
+		if (matchByIndex) {
+			return nameIndex == attributeIndex;
+		}
+		return utf8Equals(nameIndex, attributeName);
 	}
 
 	/**
@@ -197,7 +1624,7 @@ public class TypeAnnotationScanner {
 	 * @param annotationType the annotation type being looked for
 	 * @return true if this annotation includes the specified annotation type.
 	 */
-	private boolean consumeRuntimeAnnotation(String annotationType) {
+	private boolean consumeRuntimeAnnotation(byte[] annotationType) {
 		// RuntimeVisibleAnnotations_attribute {
 		//  u2 attribute_name_index;
 		//  u4 attribute_length;
@@ -211,6 +1638,9 @@ public class TypeAnnotationScanner {
 			if (consumeAnnotation(annotationType)) {
 				return true;
 			}
+			if (failure != null) {
+				return false;
+			}
 		}
 		return false;
 	}
@@ -219,10 +1649,10 @@ public class TypeAnnotationScanner {
 	 * Consume an individual annotation. If this annotation does represent the one being searched for then
 	 * this method returns immediately. If it does not then we jump over the rest of the bytes to look at
 	 * any later annotations.
-	 * @param annotationType the annotation type being searched for
+	 * @param annotationType the annotation type being searched for (null if not interested in the type)
 	 * @return true if this annotation represents the annotation being looked for
 	 */
-	private boolean consumeAnnotation(String annotationType) {
+	private boolean consumeAnnotation(byte[] annotationType) {
 		// annotation {
 		//   u2 type_index;
 		//   u2 num_element_value_pairs;
@@ -230,15 +1660,38 @@ public class TypeAnnotationScanner {
 		//     element_value value;
 		//   } element_value_pairs[num_element_value_pairs];
 		// }
-		if (readUTF8(readUnsignedShort(), annotationType)) {
+		int typeIndex = readUnsignedShort();
+		if (annotationType != null && isAnnotationType(typeIndex, annotationType)) {
 			return true;
 		}
+		consumeElementValuePairs();
+		return false;
+	}
+
+	/**
+	 * Consume the element value pairs of an annotation whose type has already been consumed.
+	 */
+	private void consumeElementValuePairs() {
 		int num_element_value_pairs = readUnsignedShort();
-		for (int p = 0; p < num_element_value_pairs; p++) {
+		for (int p = 0; p < num_element_value_pairs && failure == null; p++) {
 			ptr += 2;
 			consumeElementValue();
 		}
-		return false;
+	}
+
+	/**
+	 * @param typeIndex the constant pool index of an annotation type name
+	 * @param annotationType the annotation type being searched for
+	 * @return true if the type name at that index is the annotation type being searched for
+	 */
+	private boolean isAnnotationType(int typeIndex, byte[] annotationType) {
+		if (!isUtf8(typeIndex)) {
+			return badConstantPoolIndex();
+		}
+		if (matchByIndex) {
+			return typeIndex == annotationTypeIndex;
+		}
+		return utf8Equals(typeIndex, annotationType);
 	}
 
 	/**
@@ -263,7 +1716,7 @@ public class TypeAnnotationScanner {
 		//   } array_value; // [
 		//  } value;
 		// }
-		byte type = bytes[ptr++];
+		int type = data.u1(ptr++);
 		switch (type) {
 		case 's':// String
 		case 'c':// Class
@@ -281,17 +1734,251 @@ public class TypeAnnotationScanner {
 			ptr += 4;
 			break;
 		case '@':// AnnotationType
-			consumeAnnotation("");
+			consumeAnnotation(null);
 			break;
 		case '[':// Array
 			int num_values = readUnsignedShort();
-			for (int v = 0; v < num_values; v++) {
+			for (int v = 0; v < num_values && failure == null; v++) {
 				consumeElementValue();
 			}
 			break;
+		default:
+			// Nothing after this can be located, the callers check for this failure as they unwind
+			failure = ScanFailure.UNKNOWN_ELEMENT_VALUE_TAG;
+			ptr = data.length();
+			break;
+		}
+	}
+
+
+	/**
+	 * Parse a class from the byte array looking for the annotation on its fields and methods (or, if searching
+	 * parameters, on the parameters of its methods, or if searching type annotations, on its fields, methods and
+	 * the class itself). As for type annotations, if the constant pool shows the annotation cannot be present,
+	 * parsing stops there.
+	 * @param query the annotation being searched for
+	 * @param result where to collect the annotated members, or null to stop at the first one
+	 * @return {@link #RUNTIME_VISIBLE} and/or {@link #RUNTIME_INVISIBLE} for the attributes the annotation was found
+	 * in on any member, otherwise 0
+	 */
+	private final int consumeMembers(AnnotationQuery query, List<AnnotatedMember> result) {
+		if (readInt() != MAGIC) {
+			failure = ScanFailure.BAD_MAGIC;
+			return 0;
+		}
+		ptr += 4; // jump minor:2, major:2
+		if (!consumeConstantPool()) {
+			rejectedByConstantPool = failure == null;
+			return 0;
+		}
+		ptr += 6; // jump access_flags:2, this_class:2, super_class:2
+		int interfacesCount = readUnsignedShort();
+		ptr += 2 * interfacesCount;
+		int found = 0;
+		for (int kind = 0; kind < 2; kind++) {
+			boolean methods = kind == 1;
+			// field_info/method_info {
+			//  u2 access_flags;
+			//  u2 name_index;
+			//  u2 descriptor_index;
+			//  u2 attributes_count;
+			//  attribute_info attributes[attributes_count];
+			// }
+			int count = readUnsignedShort();
+			for (int m = 0; m < count; m++) {
+				ptr += 2;
+				int nameIndex = readUnsignedShort();
+				int descriptorIndex = readUnsignedShort();
+				if (searching == PARAMETER_ANNOTATIONS && !methods) {
+					consumeAttributeInfos();
+					continue;
+				}
+				int attribute = consumeMemberAttributes(query);
+				if (failure != null) {
+					return 0;
+				}
+				if (attribute != 0) {
+					if (result == null) {
+						return ptr <= data.length() ? attribute : truncated();
+					}
+					found |= attribute;
+					if (!isUtf8(nameIndex) || !isUtf8(descriptorIndex)) {
+						badConstantPoolIndex();
+						return 0;
+					}
+					result.add(new AnnotatedMember(methods, decodeUtf8(nameIndex), decodeUtf8(descriptorIndex), attribute));
+				}
+			}
+		}
+		if (searching == TYPE_ANNOTATIONS && result == null) {
+			// Type annotations on the class itself (type parameters, supertypes)
+			found = consumeMemberAttributes(query);
+		}
+		return ptr <= data.length() ? found : truncated();
+	}
+
+	/**
+	 * Consume the attributes of a field, method or class, checking the annotation attributes (or the parameter
+	 * or type annotation attributes, if searching those) for the annotation.
+	 * @param query the annotation being searched for
+	 * @return the attribute the annotation was found in, or 0
+	 */
+	private int consumeMemberAttributes(AnnotationQuery query) {
+		byte[] annotationType = query.bytes();
+		int attributes = query.attributes();
+		int found = 0;
+		int acount = readUnsignedShort();
+		for (int a = 0; a < acount; a++) {
+			int nameIndex = readUnsignedShort();
+			int attributeEnd = ptr + 4 + readInt(ptr);
+			if (found == 0 && searching == TYPE_ANNOTATIONS) {
+				if ((attributes & RUNTIME_VISIBLE) != 0 && isAttribute(nameIndex, visibleTypeAnnotationsIndex, RuntimeVisibleTypeAnnotations)) {
+					found = consumeTypeAnnotations(annotationType) ? RUNTIME_VISIBLE : 0;
+				} else if ((attributes & RUNTIME_INVISIBLE) != 0 && isAttribute(nameIndex, invisibleTypeAnnotationsIndex, RuntimeInvisibleTypeAnnotations)) {
+					found = consumeTypeAnnotations(annotationType) ? RUNTIME_INVISIBLE : 0;
+				} else if (searchCode && isAttribute(nameIndex, codeIndex, Code)) {
+					found = consumeCode(query);
+				}
+			} else if (found == 0 && searching == PARAMETER_ANNOTATIONS) {
+				if ((attributes & RUNTIME_VISIBLE) != 0 && isAttribute(nameIndex, visibleParameterAnnotationsIndex, RuntimeVisibleParameterAnnotations)) {
+					found = consumeParameterAnnotations(annotationType) ? RUNTIME_VISIBLE : 0;
+				} else if ((attributes & RUNTIME_INVISIBLE) != 0 && isAttribute(nameIndex, invisibleParameterAnnotationsIndex, RuntimeInvisibleParameterAnnotations)) {
+					found = consumeParameterAnnotations(annotationType) ? RUNTIME_INVISIBLE : 0;
+				}
+			} else if (found == 0) {
+				if ((attributes & RUNTIME_VISIBLE) != 0 && isAttribute(nameIndex, visibleAnnotationsIndex, RuntimeVisibleAnnotations)) {
+					found = consumeRuntimeAnnotation(annotationType) ? RUNTIME_VISIBLE : 0;
+				} else if ((attributes & RUNTIME_INVISIBLE) != 0 && isAttribute(nameIndex, invisibleAnnotationsIndex, RuntimeInvisibleAnnotations)) {
+					found = consumeRuntimeAnnotation(annotationType) ? RUNTIME_INVISIBLE : 0;
+				}
+			}
+			ptr = attributeEnd;
+		}
+		return found;
+	}
+
+	/**
+	 * Consume a parameter annotation attribute (RuntimeVisibleParameterAnnotations or
+	 * RuntimeInvisibleParameterAnnotations).
+	 * @param annotationType the annotation type being looked for
+	 * @return true if some parameter has the specified annotation type
+	 */
+	private boolean consumeParameterAnnotations(byte[] annotationType) {
+		// RuntimeVisibleParameterAnnotations_attribute {
+		//  u2 attribute_name_index;
+		//  u4 attribute_length;
+		//  u1 num_parameters;
+		//  {   u2         num_annotations;
+		//      annotation annotations[num_annotations];
+		//  } parameter_annotations[num_parameters];
+		// }
+		// NOTE: Name already consumed
+		ptr += 4;
+		int num_parameters = data.u1(ptr++);
+		for (int p = 0; p < num_parameters; p++) {
+			int num_annotations = readUnsignedShort();
+			for (int a = 0; a < num_annotations; a++) {
+				if (consumeAnnotation(annotationType)) {
+					return true;
+				}
+				if (failure != null) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Consume a type annotation attribute (RuntimeVisibleTypeAnnotations or RuntimeInvisibleTypeAnnotations).
+	 * Only the target_info and type_path of each type annotation need stepping over to reach what has the same
+	 * layout as an annotation.
+	 * @param annotationType the annotation type being looked for
+	 * @return true if some type annotation has the specified annotation type
+	 */
+	private boolean consumeTypeAnnotations(byte[] annotationType) {
+		// RuntimeVisibleTypeAnnotations_attribute {
+		//  u2 attribute_name_index;
+		//  u4 attribute_length;
+		//  u2 num_annotations;
+		//  type_annotation annotations[num_annotations];
+		// }
+		// type_annotation {
+		//  u1 target_type;
+		//  union target_info;
+		//  type_path { u1 path_length; { u1 type_path_kind; u1 type_argument_index; } path[path_length]; };
+		//  u2 type_index;
+		//  u2 num_element_value_pairs;
+		//  { u2 element_name_index;
+		//    element_value value;
+		//  } element_value_pairs[num_element_value_pairs];
+		// }
+		// NOTE: Name already consumed
+		ptr += 4;
+		int num_annotations = readUnsignedShort();
+		for (int a = 0; a < num_annotations; a++) {
+			int targetInfoSize = targetInfoSizes[data.u1(ptr++)];
+			if (targetInfoSize == LOCALVAR_TARGET) {
+				// localvar_target { u2 table_length; { u2 start_pc; u2 length; u2 index; } table[table_length]; }
+				targetInfoSize = 2 + 6 * readUnsignedShort(ptr);
+			} else if (targetInfoSize < 0) {
+				failure = ScanFailure.UNKNOWN_TYPE_ANNOTATION_TARGET;
+				return false;
+			}
+			ptr += targetInfoSize;
+			int path_length = data.u1(ptr++);
+			ptr += 2 * path_length;
+			if (consumeAnnotation(annotationType)) {
+				return true;
+			}
+			if (failure != null) {
+				return false;
+			}
 		}
+		return false;
+	}
+
+	/**
+	 * Consume a Code attribute, stepping over the bytecode and exception table to check its attributes for type
+	 * annotations.
+	 * @param query the type annotation being searched for
+	 * @return the attribute the annotation was found in, or 0
+	 */
+	private int consumeCode(AnnotationQuery query) {
+		// Code_attribute {
+		//  u2 attribute_name_index;
+		//  u4 attribute_length;
+		//  u2 max_stack;
+		//  u2 max_locals;
+		//  u4 code_length;
+		//  u1 code[code_length];
+		//  u2 exception_table_length;
+		//  { u2 start_pc; u2 end_pc; u2 handler_pc; u2 catch_type; } exception_table[exception_table_length];
+		//  u2 attributes_count;
+		//  attribute_info attributes[attributes_count];
+		// }
+		// NOTE: Name already consumed
+		ptr += 8; // jump attribute_length:4, max_stack:2, max_locals:2
+		int code_length = readInt();
+		ptr += code_length;
+		int exception_table_length = readUnsignedShort();
+		ptr += 8 * exception_table_length;
+		return consumeMemberAttributes(query);
 	}
 
+	/**
+	 * @param index the constant pool index of a Utf8 entry
+	 * @return the decoded string
+	 */
+	private String decodeUtf8(int index) {
+		int p = constantPool[index];
+		int length = data.u2(p);
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) data.u1(p + 2 + i);
+		}
+		return AnnotationQuery.decode(bytes, 0, length);
+	}
 
 	/**
 	 * Consume all the fields as quickly as possible.
@@ -348,24 +2035,56 @@ public class TypeAnnotationScanner {
 
 	/**
 	 * Rapidly process the constant pool, the only thing to hold onto is the starting position
-	 * within the byte array of any Utf8 entries. With the starting position known, it can be unpacked
-	 * later on demand.
+	 * within the byte array of any Utf8 (and Class) entries. With the starting position known, it can be unpacked
+	 * later on demand. The array holding the positions is reused across scans, only growing if necessary.
+	 * Whilst walking the pool this also checks whether the annotation type(s) being searched for and the
+	 * attribute names that would hold them are present at all. If not the class cannot have the annotation
+	 * and nothing beyond the constant pool needs to be looked at. The indices of the entries found are
+	 * remembered so that later checks against them are just index comparisons.
+	 * 
+	 * @return true if the annotation type(s) and attribute name are present in the constant pool
 	 */
-	private void consumeConstantPool() {
+	private boolean consumeConstantPool() {
 		int i = 1;
 		int constantPoolSize = readUnsignedShort();
-		constantPool = new int[constantPoolSize];
+		if (constantPool.length < constantPoolSize) {
+			constantPool = new int[constantPoolSize];
+		}
+		if (querySet != null && constantPoolQueries.length < constantPoolSize) {
+			constantPoolQueries = new int[constantPool.length];
+		}
+		constantPoolCount = constantPoolSize;
+		annotationTypeIndex = 0;
+		visibleAnnotationsIndex = 0;
+		invisibleAnnotationsIndex = 0;
+		visibleParameterAnnotationsIndex = 0;
+		invisibleParameterAnnotationsIndex = 0;
+		visibleTypeAnnotationsIndex = 0;
+		invisibleTypeAnnotationsIndex = 0;
+		codeIndex = 0;
+		matchByIndex = true;
 		while (i < constantPoolSize) {
-			byte b = (byte) bytes[ptr++];
+			int b = data.u1(ptr++);
+			// Entries left over from earlier classes must not be mistaken for ones of this class
+			constantPool[i] = 0;
+			if (querySet != null) {
+				constantPoolQueries[i] = 0;
+			}
 			switch (b) {
 			case CONSTANT_Utf8: // Utf8_info { u1 tag; u2 length; u1 bytes[length]; }
 				constantPool[i] = ptr;
 				int utf8len = readUnsignedShort();
+				matchUtf8(i, utf8len);
 				ptr += utf8len;
 				break;
 			case CONSTANT_Class:      // Class_info { u1 tag; u2 name_index; }
+				constantPool[i] = ptr;
+				ptr += 2;
+				break;
 			case CONSTANT_String:     // String_info { u1 tag; u2 string_index; }
 			case CONSTANT_MethodType: // MethodType_info { u1 tag; u2 descriptor_index; }
+			case CONSTANT_Module:     // Module_info { u1 tag; u2 name_index; }
+			case CONSTANT_Package:    // Package_info { u1 tag; u2 name_index; }
 				ptr += 2;
 				break;
 			case CONSTANT_Integer:       // Integer_info { u1 tag; u4 bytes; }
@@ -374,79 +2093,166 @@ public class TypeAnnotationScanner {
 			case CONSTANT_Methodref:     // Methodref_info { u1 tag; u2 class_index; u2 name_and_type_index; }
 			case CONSTANT_InterfaceMethodref: // InterfaceMethodref_info { u1 tag; u2 class_index; u2 name_and_type_index; }
 			case CONSTANT_NameAndType:   // NameAndType_info { u1 tag; u2 name_index; u2 descriptor_index; }
+			case CONSTANT_Dynamic:       // Dynamic_info { u1 tag; u2 bootstrap_method_attr_index; u2 name_and_type_index; }
 			case CONSTANT_InvokeDynamic: // InvokeDynamic_info { u1 tag; u2 bootstrap_method_attr_index; u2 name_and_type_index; }
 				ptr += 4;
 				break;
 			case CONSTANT_Long:   // Long_info { u1 tag; u4 high_bytes; u4 low_bytes; }
 			case CONSTANT_Double: // Double_info { u1 tag; u4 high_bytes; u4 low_bytes; }
+				if (i + 1 >= constantPoolSize) {
+					// Takes two entries but there is only room for one
+					failure = ScanFailure.BAD_CONSTANT_POOL_INDEX;
+					return false;
+				}
 				ptr += 8;
 				i++; // double size
+				constantPool[i] = 0;
+				if (querySet != null) {
+					constantPoolQueries[i] = 0;
+				}
 				break;
 			case CONSTANT_MethodHandle: // MethodHandle_info { u1 tag; u1 reference_kind; u2 reference_index; }
 				ptr += 3;
 				break;
 			default:
-				throw new IllegalStateException("???: " + b);
+				failure = ScanFailure.UNKNOWN_CONSTANT_POOL_TAG;
+				return false;
 			}
 			i++;
 		}
+		if (ptr > data.length()) {
+			failure = ScanFailure.TRUNCATED;
+			return false;
+		}
+		if (querySet != null) {
+			return unresolvedCandidates != 0 && (visibleAnnotationsIndex != 0 && querySet.anyRuntimeRetention()
+					|| invisibleAnnotationsIndex != 0 && querySet.anyClassRetention());
+		}
+		if (query == null) {
+			// Building a skeleton or reading the header, everything is of interest
+			return true;
+		}
+		int attributes = query.attributes();
+		if (searching == PARAMETER_ANNOTATIONS) {
+			return annotationTypeIndex != 0 && ((attributes & RUNTIME_VISIBLE) != 0 && visibleParameterAnnotationsIndex != 0
+					|| (attributes & RUNTIME_INVISIBLE) != 0 && invisibleParameterAnnotationsIndex != 0);
+		}
+		if (searching == TYPE_ANNOTATIONS) {
+			return annotationTypeIndex != 0 && ((attributes & RUNTIME_VISIBLE) != 0 && visibleTypeAnnotationsIndex != 0
+					|| (attributes & RUNTIME_INVISIBLE) != 0 && invisibleTypeAnnotationsIndex != 0);
+		}
+		return annotationTypeIndex != 0 && ((attributes & RUNTIME_VISIBLE) != 0 && visibleAnnotationsIndex != 0
+				|| (attributes & RUNTIME_INVISIBLE) != 0 && invisibleAnnotationsIndex != 0);
 	}
-	
+
 	/**
-	 * Read a UTF8 at the specified constant pool index. Since the value the code is looking for is also passed in
-	 * this code can terminate very early if the characters being unpacked from UTF8 encoding can't possibly match.
-	 *
-	 * @param idx the constant pool index
-	 * @param desiredValue the value trying to be found
-	 * @return true if the UTF8 parsed string matches the desired value
+	 * Check a Utf8 constant pool entry against the annotation type(s) being searched for and the names of the
+	 * annotation attributes, recording the index if it matches.
+	 * @param i the constant pool index of the entry
+	 * @param utf8len the length of the UTF8 data (which starts at <tt>ptr</tt>)
 	 */
-	public final boolean readUTF8(int idx, String desiredValue) {
-		int p = constantPool[idx];
-		int utflen = readUnsignedShort(p);
-		int desiredValueLen = desiredValue.length();
-		if (utflen != desiredValueLen) {
-			// only a valid check if *not* using 'real' unicode chars in desiredValue
-			return false;
+	private void matchUtf8(int i, int utf8len) {
+		if (querySet != null) {
+			int q = querySet.lookup(data, ptr, utf8len);
+			constantPoolQueries[i] = q + 1;
+			if (q >= 0) {
+				long bit = 1L << q;
+				if ((candidateQueries[q >>> 6] & bit) == 0) {
+					candidateQueries[q >>> 6] |= bit;
+					unresolvedCandidates++;
+				}
+				return;
+			}
+		} else if (query != null && utf8Equals(i, query.bytes())) {
+			annotationTypeIndex = recordIndex(annotationTypeIndex, i);
+			return;
 		}
-		p += 2;
-		int stop = p+utflen;
-		int c;
-		int count = 0;
-		byte[] varbytes = bytes;
-		while (p < stop) {
-			c = (int) varbytes[p] & 0xff;
-			if (c > 127)
-				break;
-			if (count < desiredValueLen && c != desiredValue.charAt(count)) {
-				return false;
+		if (searching == TYPE_ANNOTATIONS) {
+			if (utf8Equals(i, RuntimeVisibleTypeAnnotations)) {
+				visibleTypeAnnotationsIndex = recordIndex(visibleTypeAnnotationsIndex, i);
+			} else if (utf8Equals(i, RuntimeInvisibleTypeAnnotations)) {
+				invisibleTypeAnnotationsIndex = recordIndex(invisibleTypeAnnotationsIndex, i);
+			} else if (searchCode && utf8Equals(i, Code)) {
+				codeIndex = recordIndex(codeIndex, i);
 			}
-			count++;
-			p++;
+		} else if (searching == PARAMETER_ANNOTATIONS) {
+			if (utf8Equals(i, RuntimeVisibleParameterAnnotations)) {
+				visibleParameterAnnotationsIndex = recordIndex(visibleParameterAnnotationsIndex, i);
+			} else if (utf8Equals(i, RuntimeInvisibleParameterAnnotations)) {
+				invisibleParameterAnnotationsIndex = recordIndex(invisibleParameterAnnotationsIndex, i);
+			}
+		} else if (utf8Equals(i, RuntimeVisibleAnnotations)) {
+			visibleAnnotationsIndex = recordIndex(visibleAnnotationsIndex, i);
+		} else if (utf8Equals(i, RuntimeInvisibleAnnotations)) {
+			invisibleAnnotationsIndex = recordIndex(invisibleAnnotationsIndex, i);
 		}
-		// TODO condition not valid if looking for a more complex (utf chars in it) desiredValue
-		if (count == desiredValueLen) {
-			return true;
+	}
+
+	private int recordIndex(int previousIndex, int index) {
+		if (previousIndex != 0) {
+			// Duplicate entry, some other index could be used to refer to the same name
+			matchByIndex = false;
 		}
-		
-		// This block just jumps through more complex UTF8 encoded chars. If desiredValue includes
-		// characters that don't encode in 1 byte then this code really ought to be unpacking the
-		// more complex chars and comparing them to each desiredValue.charAt(...)
-		while (p < stop) {
-			c = (int) varbytes[p] & 0xff;
-			switch (c & 0xf0) {
-			case 0x00: case 0x10: case 0x20: case 0x30: case 0x40: case 0x50: case 0x60: case 0x70: // 0xxx xxxx
-				p++;
-				break;
-			case 0xc0: case 0xd0: // 110x xxxx   10xx xxxx
-				p += 2;
-				break;
-			case 0xe0: // 1110 xxxx   10xx xxxx   10xx xxxx
-				p += 3;
-				break;
-			default: // 10xx xxxx   1111 xxxx which are 0x80 and 0xf0
-				throw new RuntimeException("unexpected byte in UTF8 encoded byte stream at position " + (p-constantPool[idx]+2));
+		return index;
+	}
+	
+	/**
+	 * @param index a constant pool index
+	 * @return true if it is the index of a Utf8 entry of the class being scanned
+	 */
+	private boolean isUtf8(int index) {
+		if (index >= constantPoolCount) {
+			return false;
+		}
+		int p = constantPool[index];
+		return p != 0 && data.u1(p - 1) == CONSTANT_Utf8;
+	}
+
+	/**
+	 * @param classIndex the constant pool index of a Class entry
+	 * @return the offset of the Utf8 entry holding the name of the class, or 0 if either entry is not there (in
+	 * which case the failure is recorded)
+	 */
+	private int nameOffsetOfClass(int classIndex) {
+		if (classIndex < constantPoolCount) {
+			int p = constantPool[classIndex];
+			if (p != 0 && data.u1(p - 1) == CONSTANT_Class) {
+				int nameIndex = data.u2(p);
+				if (isUtf8(nameIndex)) {
+					return constantPool[nameIndex];
+				}
 			}
 		}
+		badConstantPoolIndex();
+		return 0;
+	}
+
+	/**
+	 * Record that the class refers to a constant pool entry that it does not have (or that is of the wrong kind).
+	 * @return false, for convenience
+	 */
+	private boolean badConstantPoolIndex() {
+		if (failure == null) {
+			failure = ScanFailure.BAD_CONSTANT_POOL_INDEX;
+		}
 		return false;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Check the UTF8 at the specified constant pool index against some expected modified UTF-8 encoded data. As
+	 * both are in the same encoding this is a plain comparison of the bytes, with no decoding. The check starts
+	 * at the end as type names commonly share long package prefixes and differ in the last few characters.
+	 *
+	 * @param idx the constant pool index
+	 * @param expected the encoded value trying to be found
+	 * @return true if the UTF8 data matches the expected value
+	 */
+	private final boolean utf8Equals(int idx, byte[] expected) {
+		int p = constantPool[idx];
+		int len = expected.length;
+		if (readUnsignedShort(p) != len) {
+			return false;
+		}
+		return data.regionEquals(p + 2, expected);
+	}
+}
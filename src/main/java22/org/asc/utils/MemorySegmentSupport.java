@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * Access to class bytes held in a {@link MemorySegment}, this is the Java 22 version of this class from the
+ * multi-release jar.
+ *
+ * @author Andy Clement
+ */
+final class MemorySegmentSupport {
+
+	private MemorySegmentSupport() {
+	}
+
+	/**
+	 * @return true if memory segments can be scanned on this JVM
+	 */
+	static boolean isAvailable() {
+		return true;
+	}
+
+	/**
+	 * Prepare to read class bytes from a window of a memory segment.
+	 * @param reusable class bytes previously returned by this method (to be reset with the new segment), or null
+	 * @param segment the memory segment
+	 * @param offset the offset of the class within the segment
+	 * @param length the length of the class
+	 * @return class bytes reading from the segment
+	 */
+	static ClassBytes wrap(ClassBytes reusable, Object segment, long offset, long length) {
+		if (!(segment instanceof MemorySegment memorySegment)) {
+			throw new IllegalArgumentException("Not a MemorySegment: " + (segment == null ? null : segment.getClass()));
+		}
+		SegmentClassBytes data = reusable instanceof SegmentClassBytes segmentClassBytes ? segmentClassBytes
+				: new SegmentClassBytes();
+		return data.reset(memorySegment, offset, length);
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Class bytes held in a window of a {@link MemorySegment}, typically memory outside of the Java heap. The bytes
+ * are read in place, nothing is copied onto the heap. Reading does not modify the segment so any number of
+ * threads (each with their own scanner) can scan the same segment at once, provided it was allocated in an arena
+ * that permits access from those threads (for example a shared or global arena, not a confined one).
+ *
+ * @author Andy Clement
+ */
+final class SegmentClassBytes extends ClassBytes {
+
+	private static final ValueLayout.OfShort U2 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+	private static final ValueLayout.OfInt U4 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	private MemorySegment segment;
+	private long segmentBase;
+
+	SegmentClassBytes reset(MemorySegment segment, long offset, long length) {
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Class too large: " + length);
+		}
+		this.segment = segment;
+		this.segmentBase = offset;
+		this.length = (int) length;
+		return this;
+	}
+
+	@Override
+	int readU1(int offset) {
+		return segment.get(ValueLayout.JAVA_BYTE, segmentBase + offset) & 0xff;
+	}
+
+	@Override
+	int readU2(int offset) {
+		return segment.get(U2, segmentBase + offset) & 0xffff;
+	}
+
+	@Override
+	int readU4(int offset) {
+		return segment.get(U4, segmentBase + offset);
+	}
+
+	@Override
+	boolean readRegionEquals(int offset, byte[] expected) {
+		MemorySegment segment = this.segment;
+		long p = segmentBase + offset;
+		for (int i = expected.length - 1; i >= 0; i--) {
+			if (segment.get(ValueLayout.JAVA_BYTE, p + i) != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	void clear() {
+		segment = null;
+	}
+}
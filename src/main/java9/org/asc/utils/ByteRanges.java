@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.util.Arrays;
+
+/**
+ * Comparison of a range of a byte array against some expected bytes, this is the Java 9 version of this class from
+ * the multi-release jar. {@link Arrays#equals(byte[], int, int, byte[], int, int)} is intrinsified to compare many
+ * bytes at a time (a word or vector at a time rather than the byte at a time of the Java 8 loop). That has a
+ * fixed setup cost, so the cheap single byte check that rejects most non-matching entries is done first.
+ *
+ * @author Andy Clement
+ */
+final class ByteRanges {
+
+	private ByteRanges() {
+	}
+
+	/**
+	 * Compare a range of a byte array against some expected bytes.
+	 * @param bytes the bytes containing the range
+	 * @param offset where the range starts
+	 * @param expected the expected bytes, the length of which is the length of the range
+	 * @return true if the range holds exactly the expected bytes
+	 */
+	static boolean equals(byte[] bytes, int offset, byte[] expected) {
+		int len = expected.length;
+		// Most calls are for entries that do not match. Descriptors sharing a package prefix typically differ
+		// at the end, so check the byte before the ';' before comparing everything.
+		if (len > 1 && bytes[offset + len - 2] != expected[len - 2]) {
+			return false;
+		}
+		return Arrays.equals(bytes, offset, offset + len, expected, 0, len);
+	}
+}
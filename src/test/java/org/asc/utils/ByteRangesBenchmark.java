@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark comparing the ways of checking a constant pool Utf8 entry against an encoded descriptor: the
+ * byte at a time loop (the Java 8 {@link ByteRanges}) against the Java 9 <tt>Arrays</tt> range methods, as used by
+ * the Java 9 layer of the multi-release jar. Those are reached through method handles so this still compiles
+ * for Java 8. Run the main method (needs Java 9+ for the Arrays variants).
+ *
+ * @author Andy Clement
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteRangesBenchmark {
+
+	private static final MethodHandle arraysEquals = find("equals", boolean.class);
+	private static final MethodHandle arraysMismatch = find("mismatch", int.class);
+
+	@Param({ "match", "lateMismatch", "earlyMismatch" })
+	public String kind;
+
+	private byte[] classBytes;
+	private int offset;
+	private byte[] expected;
+
+	@Setup
+	public void setup() {
+		expected = AnnotationQuery.encode("Lorg/springframework/stereotype/Repository;");
+		String entry;
+		if (kind.equals("match")) {
+			entry = "Lorg/springframework/stereotype/Repository;";
+		} else if (kind.equals("lateMismatch")) {
+			entry = "Lorg/springframework/stereotype/Controller;";
+		} else {
+			entry = "Ljavax/persistence/annotations/Embeddable;;";
+		}
+		byte[] entryBytes = AnnotationQuery.encode(entry);
+		// Put the entry part way into a larger array, as it would be in a class file
+		offset = 37;
+		classBytes = new byte[offset + entryBytes.length + 100];
+		System.arraycopy(entryBytes, 0, classBytes, offset, entryBytes.length);
+	}
+
+	@Benchmark
+	public boolean byteLoop() {
+		return ByteRanges.equals(classBytes, offset, expected);
+	}
+
+	@Benchmark
+	public boolean byteLoopForwards() {
+		byte[] bytes = classBytes;
+		for (int i = 0, p = offset; i < expected.length; i++, p++) {
+			if (bytes[p] != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Benchmark
+	public boolean arraysEquals() throws Throwable {
+		return (boolean) arraysEquals.invokeExact(classBytes, offset, offset + expected.length, expected, 0,
+				expected.length);
+	}
+
+	@Benchmark
+	public boolean tailByteThenArraysEquals() throws Throwable {
+		// What the Java 9 version of ByteRanges does
+		int len = expected.length;
+		if (classBytes[offset + len - 2] != expected[len - 2]) {
+			return false;
+		}
+		return (boolean) arraysEquals.invokeExact(classBytes, offset, offset + len, expected, 0, len);
+	}
+
+	@Benchmark
+	public boolean arraysMismatch() throws Throwable {
+		return (int) arraysMismatch.invokeExact(classBytes, offset, offset + expected.length, expected, 0,
+				expected.length) < 0;
+	}
+
+	private static MethodHandle find(String name, Class<?> returnType) {
+		try {
+			return MethodHandles.lookup().findStatic(Arrays.class, name, MethodType.methodType(returnType,
+					byte[].class, int.class, int.class, byte[].class, int.class, int.class));
+		} catch (ReflectiveOperationException e) {
+			// Java 8, only the byte loops can be run
+			return null;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(ByteRangesBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.asc.utils;
+
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark of scanning classes held in byte arrays, when the scanner has only ever seen byte arrays
+ * (<tt>array</tt>), has also been used for classes in ByteBuffers (<tt>arrayAndBuffer</tt>, as when mapped jar
+ * entries or large files are scanned too) and has also seen a third kind of {@link ClassBytes}
+ * (<tt>threeKinds</tt>, standing in for the MemorySegment support of the Java 22 layer). Each runs in its own
+ * fork so that the profile the JIT compiles the parsing code with only includes the kinds of class bytes warmed.
+ * Run the main method.
+ *
+ * @author Andy Clement
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassBytesBenchmark {
+
+	private static final String[] CLASSES = { "java/lang/String", "java/lang/Thread", "java/lang/Runnable",
+			"java/lang/Integer", "java/lang/Object", "java/lang/Class", "java/lang/ClassLoader", "java/lang/System",
+			"java/lang/Math", "java/lang/StringBuilder", "java/lang/Character", "java/lang/Enum", "java/util/HashMap",
+			"java/util/ArrayList", "java/util/Collections", "java/util/Arrays", "java/util/Optional",
+			"java/util/function/Function", "java/util/function/Supplier", "java/util/concurrent/ConcurrentHashMap",
+			"java/util/concurrent/ForkJoinPool", "java/util/stream/Collectors", "java/io/File",
+			"java/io/InputStream", "java/nio/ByteBuffer", "java/net/URL", "java/lang/reflect/Method",
+			"java/lang/invoke/MethodHandles", "java/lang/Deprecated", "java/lang/FunctionalInterface" };
+
+	@Param({ "array", "arrayAndBuffer", "threeKinds" })
+	public String warmed;
+
+	private final TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+
+	private final AnnotationQuery functionalInterface = AnnotationQuery.of(FunctionalInterface.class);
+
+	private final AnnotationQuery deprecated = AnnotationQuery.of(Deprecated.class);
+
+	private final List<byte[]> classes = new ArrayList<byte[]>();
+
+	@Setup
+	public void setup() throws Exception {
+		for (String name : CLASSES) {
+			InputStream stream = ClassLoader.getSystemResourceAsStream(name + ".class");
+			if (stream != null) {
+				classes.add(TypeAnnotationScanner.loadBytes(stream));
+			}
+		}
+		if (warmed.equals("array")) {
+			return;
+		}
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		for (byte[] bytes : classes) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+			buffer.put(bytes);
+			((Buffer) buffer).flip();
+			buffers.add(buffer);
+		}
+		// Each kind of class bytes is scanned as often as the others
+		OtherClassBytes other = new OtherClassBytes();
+		for (int i = 0; i < 5000; i++) {
+			scanArrays();
+			for (int c = 0; c < classes.size(); c++) {
+				scanner.evaluate(buffers.get(c), functionalInterface);
+				scanner.evaluate(buffers.get(c), deprecated);
+				if (warmed.equals("threeKinds")) {
+					scanner.findAnnotation(other.reset(classes.get(c)), functionalInterface);
+					scanner.findAnnotation(other.reset(classes.get(c)), deprecated);
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public int scanArrays() {
+		int found = 0;
+		for (int c = 0; c < classes.size(); c++) {
+			byte[] bytes = classes.get(c);
+			if (scanner.evaluate(bytes, functionalInterface) == ScanResult.MATCH) {
+				found++;
+			}
+			if (scanner.evaluate(bytes, deprecated) == ScanResult.MATCH) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * A third kind of class bytes, reading from an array like {@link ArrayClassBytes} but a different class.
+	 */
+	static final class OtherClassBytes extends ClassBytes {
+
+		private byte[] bytes;
+
+		OtherClassBytes reset(byte[] bytes) {
+			this.bytes = bytes;
+			this.length = bytes.length;
+			return this;
+		}
+
+		@Override
+		int readU1(int offset) {
+			return bytes[offset] & 0xff;
+		}
+
+		@Override
+		int readU2(int offset) {
+			return ((bytes[offset] & 0xff) << 8) + (bytes[offset + 1] & 0xff);
+		}
+
+		@Override
+		int readU4(int offset) {
+			return (readU2(offset) << 16) + readU2(offset + 2);
+		}
+
+		@Override
+		boolean readRegionEquals(int offset, byte[] expected) {
+			for (int i = expected.length - 1; i >= 0; i--) {
+				if (bytes[offset + i] != expected[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		void clear() {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(ClassBytesBenchmark.class.getSimpleName()).build()).run();
+	}
+}
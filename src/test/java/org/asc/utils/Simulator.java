@@ -17,7 +17,9 @@ package org.asc.utils;
 
 import java.io.File;
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -36,6 +38,8 @@ public class Simulator {
 
 	public static void main(String[] args) throws Exception {
 		loadLotsOfClasses();
+		scanMappedJars();
+		scanDirectories();
 		time("oracle/jrockit/jfr/VMJFR.class",1000000);
 		time("oracle/jrockit/jfr/VMJFR.class",1000000);
 		time("java/lang/Runnable.class",1000000);
@@ -81,7 +85,11 @@ public class Simulator {
 	public static void loadLotsOfClasses() throws Exception {
 		long classCount = 0;
 		long trueCount = 0;
+		ScanStatistics stats = new ScanStatistics();
 		String[] cp = getClasspath();
+		ClassBytesBuffer buffer = ClassBytesBuffer.forCurrentThread();
+		TypeAnnotationScanner scanner = TypeAnnotationScanner.forCurrentThread();
+		AnnotationQuery query = AnnotationQuery.of("Ljava/lang/FunctionalInterface;", true);
 		long stime = System.currentTimeMillis();
 		for (String element : cp) {
 			if (element.endsWith(".jar")) {
@@ -93,10 +101,9 @@ public class Simulator {
 						JarEntry je = entries.nextElement();
 						if (je.getName().endsWith("class")) {
 							classCount++;
-							InputStream is = jf.getInputStream(je);
-							byte[] bs = TypeAnnotationScanner.loadBytes(is);
-							boolean b1 = checkStreamASM(bs);
-							boolean b2 = checkStreamTAS(bs);
+							int length = buffer.read(jf, je);
+							boolean b1 = checkStreamASM(new ClassReader(buffer.array(), 0, length));
+							boolean b2 = scanner.scan(buffer.array(), 0, length, query, stats);
 							if (b1 != b2) {
 								System.out.println("Differing results for " + je.getName() + " b1=" + b1 + " b2=" + b2);
 							}
@@ -112,10 +119,67 @@ public class Simulator {
 		System.out.println("Classes loaded = #" + classCount);
 		System.out.println("How many have FunctionalInterface = " + trueCount);
 		System.out.println("Time taken = " + (etime - stime) + "ms");
+		System.out.println(stats);
+	}
+
+	/**
+	 * Go through all the jars on a classpath scanning all the classes in each, straight from the memory mapped
+	 * jars (stored entries in place, deflated ones inflated only as far as needed).
+	 */
+	public static void scanMappedJars() throws Exception {
+		long classCount = 0;
+		long trueCount = 0;
+		TypeAnnotationScanner scanner = TypeAnnotationScanner.forCurrentThread();
+		AnnotationQuery query = AnnotationQuery.of("Ljava/lang/FunctionalInterface;", true);
+		long stime = System.currentTimeMillis();
+		for (String element : getClasspath()) {
+			if (element.endsWith(".jar") && new File(element).exists()) {
+				MappedJar jar = MappedJar.open(new File(element).toPath());
+				for (int i = 0; i < jar.size(); i++) {
+					if (jar.isClass(i)) {
+						classCount++;
+						if (scanner.evaluate(jar, i, query) == ScanResult.MATCH) {
+							trueCount++;
+						}
+					}
+				}
+			}
+		}
+		long etime = System.currentTimeMillis();
+		System.out.println("Classes scanned from mapped jars = #" + classCount);
+		System.out.println("How many have FunctionalInterface = " + trueCount);
+		System.out.println("Time taken = " + (etime - stime) + "ms");
+	}
+
+	public static void scanDirectories() throws Exception {
+		final AtomicLong trueCount = new AtomicLong();
+		long classCount = 0;
+		DirectoryScanner directoryScanner = new DirectoryScanner();
+		AnnotationQuery query = AnnotationQuery.of("Ljava/lang/FunctionalInterface;", true);
+		long stime = System.currentTimeMillis();
+		for (String element : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			if (new File(element).isDirectory()) {
+				classCount += directoryScanner.scan(new File(element).toPath(), query, new ClassFileCallback() {
+					@Override
+					public void scanned(Path file, ScanResult result) {
+						if (result == ScanResult.MATCH) {
+							trueCount.incrementAndGet();
+						}
+					}
+				});
+			}
+		}
+		long etime = System.currentTimeMillis();
+		System.out.println("Classes scanned from directories = #" + classCount);
+		System.out.println("How many have FunctionalInterface = " + trueCount);
+		System.out.println("Time taken = " + (etime - stime) + "ms");
 	}
 
 	private static boolean checkStreamASM(byte[] bs) throws Exception {
-		ClassReader cr = new ClassReader(bs);
+		return checkStreamASM(new ClassReader(bs));
+	}
+
+	private static boolean checkStreamASM(ClassReader cr) throws Exception {
 		cv.reset();
 		cr.accept(cv, ClassReader.SKIP_CODE);
 		return cv.retval;
@@ -15,7 +15,61 @@
  */
 package org.asc.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.TypePath;
+import org.objectweb.asm.TypeReference;
 
 import junit.framework.TestCase;
 
@@ -41,9 +95,1398 @@ public class TypeAnnotationScannerTests extends TestCase {
 		assertFalse(TypeAnnotationScanner.scanClassBytesForAnnotation(stringBytes, "Ljava/lang/FunctionalInterface;", false));
 	}
 	
+	public void testConstantPoolRejection() {
+		byte[] runnableBytes = loadBytes("java/lang/Runnable.class");
+		byte[] stringBytes = loadBytes("java/lang/String.class");
+		byte[] fieldOnlyBytes = loadBytes("org/asc/utils/TypeAnnotationScannerTests$FieldOfAnnotationType.class");
+		ScanStatistics stats = new ScanStatistics();
+
+		assertTrue(TypeAnnotationScanner.scanClassBytesForAnnotation(runnableBytes, "Ljava/lang/FunctionalInterface;", true, stats));
+		assertFalse(TypeAnnotationScanner.scanClassBytesForAnnotation(stringBytes, "Ljava/lang/FunctionalInterface;", true, stats));
+		// Descriptor is in the constant pool (field type) but it is not a type annotation
+		assertFalse(TypeAnnotationScanner.scanClassBytesForAnnotation(fieldOnlyBytes, "Ljava/lang/FunctionalInterface;", true, stats));
+		assertFalse(TypeAnnotationScanner.scanClassBytesForAnnotation(fieldOnlyBytes, "Ljava/lang/Deprecated;", false, stats));
+		assertTrue(TypeAnnotationScanner.scanClassBytesForAnnotation(fieldOnlyBytes, "Ljava/lang/Deprecated;", true, stats));
+
+		assertEquals(5, stats.getClassesScanned());
+		assertEquals(2, stats.getMatched());
+		// String and the invisible search on FieldOfAnnotationType are rejected from the constant pool
+		assertEquals(2, stats.getRejectedByConstantPool());
+	}
+
+	public void testNestedAnnotationsAreNotTypeAnnotations() {
+		byte[] bytes = loadBytes("org/asc/utils/TypeAnnotationScannerTests$OnlyNested.class");
+		assertTrue(TypeAnnotationScanner.scanClassBytesForAnnotation(bytes, "Lorg/asc/utils/TypeAnnotationScannerTests$Holder;", true));
+		assertTrue(TypeAnnotationScanner.scanClassBytesForAnnotation(bytes, "Ljava/lang/Deprecated;", true));
+		assertFalse(TypeAnnotationScanner.scanClassBytesForAnnotation(bytes, "Lorg/asc/utils/TypeAnnotationScannerTests$Marker;", true));
+	}
+
+	public void testAnnotationQuery() {
+		byte[] runnableBytes = loadBytes("java/lang/Runnable.class");
+		byte[] stringBytes = loadBytes("java/lang/String.class");
+		AnnotationQuery query = AnnotationQuery.of("Ljava/lang/FunctionalInterface;", true);
+		assertTrue(TypeAnnotationScanner.scanClassBytesForAnnotation(runnableBytes, query));
+		assertFalse(TypeAnnotationScanner.scanClassBytesForAnnotation(stringBytes, query));
+		assertSame(AnnotationQuery.of(FunctionalInterface.class), AnnotationQuery.of(FunctionalInterface.class));
+		assertTrue(AnnotationQuery.of(FunctionalInterface.class).hasRuntimeRetention());
+	}
+
+	public void testNonAsciiAnnotationName() {
+		String annotationType = "Lorg/example/Caf\u00e9\u0394\u4e2d\ud83d\ude00;";
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "org/example/NonAscii", null, "java/lang/Object", null);
+		cw.visitAnnotation(annotationType, true).visitEnd();
+		cw.visitEnd();
+		byte[] bytes = cw.toByteArray();
+		assertTrue(TypeAnnotationScanner.scanClassBytesForAnnotation(bytes, annotationType, true));
+		assertFalse(TypeAnnotationScanner.scanClassBytesForAnnotation(bytes, annotationType, false));
+		assertFalse(TypeAnnotationScanner.scanClassBytesForAnnotation(bytes,
+				"Lorg/example/Caf\u00e9\u0394\u4e2e\ud83d\ude00;", true));
+		assertFalse(TypeAnnotationScanner.scanClassBytesForAnnotation(bytes, "Lorg/example/Cafe\u0394\u4e2d\ud83d\ude00;", true));
+	}
+
+	public void testReusableScanner() {
+		byte[] runnableBytes = loadBytes("java/lang/Runnable.class");
+		byte[] stringBytes = loadBytes("java/lang/String.class");
+		AnnotationQuery query = AnnotationQuery.of(FunctionalInterface.class);
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		ScanStatistics stats = new ScanStatistics();
+		// Alternate between a small and large constant pool to check the offset table is handled properly
+		for (int i = 0; i < 3; i++) {
+			assertTrue(scanner.scan(runnableBytes, query, stats));
+			assertFalse(scanner.scan(stringBytes, query, stats));
+		}
+		assertEquals(6, stats.getClassesScanned());
+		assertEquals(3, stats.getRejectedByConstantPool());
+		assertSame(TypeAnnotationScanner.forCurrentThread(), TypeAnnotationScanner.forCurrentThread());
+	}
+
+	public void testQuerySet() {
+		AnnotationQuerySet querySet = AnnotationQuerySet.of(
+				AnnotationQuery.of("Ljava/lang/FunctionalInterface;", true),
+				AnnotationQuery.of("Ljava/lang/Deprecated;", true),
+				AnnotationQuery.of("Lorg/asc/utils/TypeAnnotationScannerTests$Marker;", true),
+				AnnotationQuery.of("Lorg/asc/utils/TypeAnnotationScannerTests$Holder;", true),
+				AnnotationQuery.of("Ljdk/internal/ValueBased;", false));
+		String[] resources = { "java/lang/Runnable.class", "java/lang/String.class", "java/lang/Integer.class",
+				"java/lang/Thread.class", "org/asc/utils/TypeAnnotationScannerTests$OnlyNested.class",
+				"org/asc/utils/TypeAnnotationScannerTests$FieldOfAnnotationType.class" };
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		BitSet bits = new BitSet();
+		for (String resource : resources) {
+			byte[] bytes = loadBytes(resource);
+			long expected = 0;
+			for (int q = 0; q < querySet.size(); q++) {
+				if (scanner.scan(bytes, querySet.get(q))) {
+					expected |= 1L << q;
+				}
+			}
+			assertEquals(resource, expected, scanner.scanForAnnotations(bytes, querySet));
+			assertEquals(resource, expected != 0, scanner.scanForAnnotations(bytes, querySet, bits));
+			assertEquals(resource, expected, bits.isEmpty() ? 0 : bits.toLongArray()[0]);
+		}
+		assertEquals(0b1010, TypeAnnotationScanner.scanClassBytesForAnnotations(
+				loadBytes("org/asc/utils/TypeAnnotationScannerTests$OnlyNested.class"), querySet));
+	}
+
+	public void testLargeQuerySet() {
+		List<AnnotationQuery> queries = new ArrayList<AnnotationQuery>();
+		for (int i = 0; i < 100; i++) {
+			queries.add(AnnotationQuery.of("Lorg/example/Annotation" + i + ";", true));
+		}
+		queries.add(AnnotationQuery.of("Ljava/lang/FunctionalInterface;", true));
+		AnnotationQuerySet querySet = AnnotationQuerySet.of(queries);
+		BitSet bits = new BitSet();
+		assertTrue(new TypeAnnotationScanner().scanForAnnotations(loadBytes("java/lang/Runnable.class"), querySet, bits));
+		assertEquals(1, bits.cardinality());
+		assertTrue(bits.get(100));
+		try {
+			TypeAnnotationScanner.scanClassBytesForAnnotations(loadBytes("java/lang/Runnable.class"), querySet);
+			fail();
+		} catch (IllegalArgumentException iae) {
+			// expected, too many queries for a long result
+		}
+		try {
+			queries.add(AnnotationQuery.of("Ljava/lang/FunctionalInterface;", false));
+			AnnotationQuerySet.of(queries);
+			fail();
+		} catch (IllegalArgumentException iae) {
+			// expected, duplicate
+		}
+	}
+
+	public void testRetentionAgnostic() {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "org/example/Both", null, "java/lang/Object", null);
+		cw.visitAnnotation("Lorg/example/Visible;", true).visitEnd();
+		cw.visitAnnotation("Lorg/example/Invisible;", false).visitEnd();
+		cw.visitEnd();
+		byte[] bytes = cw.toByteArray();
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		assertEquals(TypeAnnotationScanner.RUNTIME_VISIBLE, scanner.findAnnotation(bytes, AnnotationQuery.of("Lorg/example/Visible;")));
+		assertEquals(TypeAnnotationScanner.RUNTIME_INVISIBLE, scanner.findAnnotation(bytes, AnnotationQuery.of("Lorg/example/Invisible;")));
+		assertEquals(0, scanner.findAnnotation(bytes, AnnotationQuery.of("Lorg/example/Neither;")));
+		assertEquals(0, scanner.findAnnotation(bytes, AnnotationQuery.of("Lorg/example/Invisible;", true)));
+		assertTrue(TypeAnnotationScanner.scanClassBytesForAnnotation(bytes, "Lorg/example/Invisible;"));
+		assertTrue(TypeAnnotationScanner.scanClassBytesForAnnotation(loadBytes("java/lang/Runnable.class"), "Ljava/lang/FunctionalInterface;"));
+
+		AnnotationQuerySet querySet = AnnotationQuerySet.of(AnnotationQuery.of("Lorg/example/Invisible;"),
+				AnnotationQuery.of("Lorg/example/Visible;"), AnnotationQuery.of("Lorg/example/Neither;"));
+		assertEquals(0b11, scanner.scanForAnnotations(bytes, querySet));
+	}
+
+	public void testAutomaton() {
+		List<AnnotationQuery> queries = new ArrayList<AnnotationQuery>();
+		for (int i = 0; i < 300; i++) {
+			queries.add(AnnotationQuery.of("Lorg/example/stereotype/Annotation" + i + ";"));
+		}
+		queries.add(AnnotationQuery.of("Lorg/example/stereotype/Annotation;"));
+		queries.add(AnnotationQuery.of("Lorg/example/stereotype/Annotation1;;"));
+		AnnotationAutomaton automaton = new AnnotationAutomaton(queries.toArray(new AnnotationQuery[queries.size()]));
+		// Shared prefixes should share states
+		assertTrue(automaton.stateCount() < 300 * 4);
+		for (int i = 0; i < queries.size(); i++) {
+			byte[] bytes = queries.get(i).bytes();
+			assertEquals(i, automaton.lookup(new ArrayClassBytes().reset(bytes, 0, bytes.length), 0, bytes.length));
+		}
+		byte[] bytes = AnnotationQuery.encode("xxLorg/example/stereotype/Annotation300;");
+		ClassBytes data = new ArrayClassBytes().reset(bytes, 0, bytes.length);
+		assertEquals(-1, automaton.lookup(data, 2, bytes.length - 2));
+		assertEquals(-1, automaton.lookup(data, 2, 10));
+		assertEquals(-1, automaton.lookup(data, 0, bytes.length));
+
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "org/example/Many", null, "java/lang/Object", null);
+		cw.visitAnnotation("Lorg/example/stereotype/Annotation42;", true).visitEnd();
+		cw.visitAnnotation("Lorg/example/stereotype/Annotation;", false).visitEnd();
+		cw.visitAnnotation("Lorg/example/stereotype/Annotation300;", false).visitEnd();
+		cw.visitEnd();
+		BitSet bits = new BitSet();
+		assertTrue(new TypeAnnotationScanner().scanForAnnotations(cw.toByteArray(), AnnotationQuerySet.of(queries), bits));
+		assertEquals("{42, 300}", bits.toString());
+	}
+
+	public void testByteBuffers() {
+		byte[] runnableBytes = loadBytes("java/lang/Runnable.class");
+		byte[] stringBytes = loadBytes("java/lang/String.class");
+		AnnotationQuery query = AnnotationQuery.of(FunctionalInterface.class);
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		for (byte[] bytes : new byte[][] { runnableBytes, stringBytes }) {
+			boolean expected = scanner.scan(bytes, query);
+			// Heap buffer over a window of a larger array
+			byte[] padded = new byte[bytes.length + 20];
+			System.arraycopy(bytes, 0, padded, 10, bytes.length);
+			ByteBuffer heap = ByteBuffer.wrap(padded, 10, bytes.length);
+			assertEquals(expected, scanner.scan(heap, query));
+			assertEquals(expected, scanner.scan(heap.slice(), query));
+			assertEquals(expected, scanner.scan(heap.asReadOnlyBuffer(), query));
+			// Direct buffer, positioned part way in and with a little endian order
+			ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 20);
+			((Buffer) direct).position(7);
+			direct.put(bytes);
+			((Buffer) direct).flip();
+			((Buffer) direct).position(7);
+			direct.order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(expected, scanner.scan(direct, query));
+			assertEquals(expected, TypeAnnotationScanner.scanClassBytesForAnnotation(direct, query));
+			assertEquals(7, direct.position());
+			assertEquals(expected ? 1L : 0L, scanner.scanForAnnotations(direct, AnnotationQuerySet.of(query)));
+		}
+	}
+
+	public void testMemorySegmentsNeedJava22() {
+		if (!TypeAnnotationScanner.isMemorySegmentSupported()) {
+			try {
+				new TypeAnnotationScanner().scanSegment(new Object(), 0, 0, AnnotationQuery.of(FunctionalInterface.class));
+				fail();
+			} catch (UnsupportedOperationException uoe) {
+				// expected
+			}
+		}
+	}
+
+	public void testMemorySegmentsOnJava22() throws Exception {
+		// The Java 22 layer is only used when loading from the multi-release jar, the tests otherwise run
+		// against the base classes
+		if (javaVersion() < 22) {
+			return;
+		}
+		File jar = multiReleaseJar();
+		URLClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+		try {
+			Class<?> scannerClass = loader.loadClass(TypeAnnotationScanner.class.getName());
+			Class<?> queryClass = loader.loadClass(AnnotationQuery.class.getName());
+			assertTrue("No Java 22 layer, build on JDK 22+ or with -Pjava22-toolchain",
+					(Boolean) scannerClass.getMethod("isMemorySegmentSupported").invoke(null));
+			Object query = queryClass.getMethod("of", String.class, boolean.class).invoke(null, "Ljava/lang/FunctionalInterface;", true);
+			Method scanSegment = scannerClass.getMethod("scanSegment", Object.class, long.class, long.class, queryClass);
+			Method ofArray = Class.forName("java.lang.foreign.MemorySegment").getMethod("ofArray", byte[].class);
+			Object scanner = scannerClass.getDeclaredConstructor().newInstance();
+			byte[] runnableBytes = loadBytes("java/lang/Runnable.class");
+			byte[] stringBytes = loadBytes("java/lang/String.class");
+			// Each class in a window of a larger segment
+			byte[] both = new byte[7 + runnableBytes.length + stringBytes.length];
+			System.arraycopy(runnableBytes, 0, both, 7, runnableBytes.length);
+			System.arraycopy(stringBytes, 0, both, 7 + runnableBytes.length, stringBytes.length);
+			Object segment = ofArray.invoke(null, (Object) both);
+			assertTrue((Boolean) scanSegment.invoke(scanner, segment, 7L, (long) runnableBytes.length, query));
+			assertFalse((Boolean) scanSegment.invoke(scanner, segment, 7L + runnableBytes.length, (long) stringBytes.length, query));
+		} finally {
+			loader.close();
+			jar.delete();
+		}
+	}
+
+	public void testByteRangesJava9Layer() throws Exception {
+		// The Java 9 layer is only used when loading from the multi-release jar, check it against the base version
+		if (javaVersion() < 9) {
+			return;
+		}
+		File jar = multiReleaseJar();
+		URLClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+		try {
+			ZipFile zipFile = new ZipFile(jar);
+			try {
+				ZipEntry layer = zipFile.getEntry("META-INF/versions/9/org/asc/utils/ByteRanges.class");
+				assertNotNull("No Java 9 layer", layer);
+				assertTrue(Arrays.equals(TypeAnnotationScanner.loadBytes(zipFile.getInputStream(layer)),
+						TypeAnnotationScanner.loadBytes(loader.getResourceAsStream("org/asc/utils/ByteRanges.class"))));
+			} finally {
+				zipFile.close();
+			}
+			Method java9Equals = loader.loadClass(ByteRanges.class.getName()).getDeclaredMethod("equals", byte[].class, int.class, byte[].class);
+			java9Equals.setAccessible(true);
+			byte[] bytes = "Ljava/lang/FunctionalInterface;Ljava/lang/Deprecated;Lorg/example/Marker;".getBytes("UTF-8");
+			for (int length = 0; length <= 40; length++) {
+				for (int offset = 0; offset + length <= bytes.length; offset++) {
+					byte[] expected = Arrays.copyOfRange(bytes, offset, offset + length);
+					assertTrue((Boolean) java9Equals.invoke(null, bytes, offset, expected));
+					// A difference at each position in turn
+					for (int i = 0; i < length; i++) {
+						byte[] different = expected.clone();
+						different[i] ^= 1;
+						assertFalse((Boolean) java9Equals.invoke(null, bytes, offset, different));
+						assertFalse(ByteRanges.equals(bytes, offset, different));
+					}
+					// Ranges elsewhere in the array
+					for (int other = 0; other + length <= bytes.length; other += 7) {
+						assertEquals(ByteRanges.equals(bytes, other, expected), java9Equals.invoke(null, bytes, other, expected));
+					}
+				}
+			}
+		} finally {
+			loader.close();
+			jar.delete();
+		}
+	}
+
+	/**
+	 * Package the compiled classes (including the layers under <tt>META-INF/versions</tt>) as a multi-release jar,
+	 * as the build does, so that classes loaded from it get the layer for the running Java version.
+	 */
+	private File multiReleaseJar() throws IOException {
+		Path classes;
+		try {
+			classes = new File(TypeAnnotationScanner.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toPath();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+		File jar = File.createTempFile("scanner", ".jar");
+		if (!Files.isDirectory(classes)) {
+			// Already running from the jar
+			Files.copy(classes, jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return jar;
+		}
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().putValue("Multi-Release", "true");
+		JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar), manifest);
+		try {
+			addToJar(jos, classes, classes);
+		} finally {
+			jos.close();
+		}
+		return jar;
+	}
+
+	private void addToJar(JarOutputStream jos, Path root, Path path) throws IOException {
+		if (Files.isDirectory(path)) {
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+				for (Path entry : entries) {
+					addToJar(jos, root, entry);
+				}
+			}
+		} else {
+			String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+			if (!name.equals("META-INF/MANIFEST.MF")) {
+				jos.putNextEntry(new JarEntry(name));
+				jos.write(Files.readAllBytes(path));
+			}
+		}
+	}
+
+	/**
+	 * @return the feature version of the running Java (8 for 1.8)
+	 */
+	private static int javaVersion() {
+		String version = System.getProperty("java.specification.version");
+		return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+	}
+
+	public void testIncremental() {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "org/example/Both", null, "java/lang/Object", null);
+		cw.visitAnnotation("Lorg/example/Visible;", true).visitEnd();
+		cw.visitAnnotation("Lorg/example/Invisible;", false).visitEnd();
+		cw.visitEnd();
+		byte[][] classes = { loadBytes("java/lang/Runnable.class"), loadBytes("java/lang/String.class"),
+				loadBytes("java/lang/Thread.class"), loadBytes("org/asc/utils/TypeAnnotationScannerTests$OnlyNested.class"),
+				loadBytes("org/asc/utils/TypeAnnotationScannerTests$FieldOfAnnotationType.class"), cw.toByteArray() };
+		AnnotationQuery[] queries = { AnnotationQuery.of(FunctionalInterface.class), AnnotationQuery.of(Deprecated.class),
+				AnnotationQuery.of(Holder.class), AnnotationQuery.of(Marker.class), AnnotationQuery.of("Lorg/example/Visible;"),
+				AnnotationQuery.of("Lorg/example/Invisible;"), AnnotationQuery.of("Lorg/example/Invisible;", true) };
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		IncrementalAnnotationScanner incremental = new IncrementalAnnotationScanner();
+		for (byte[] bytes : classes) {
+			for (AnnotationQuery query : queries) {
+				boolean expected = scanner.scan(bytes, query);
+				for (int chunkSize : new int[] { 1, 2, 3, 7, 64, bytes.length }) {
+					incremental.reset(query);
+					for (int p = 0; p < bytes.length && !incremental.feed(bytes, p, Math.min(chunkSize, bytes.length - p)); p += chunkSize) {
+					}
+					assertEquals(query + " chunk " + chunkSize, expected, incremental.finish());
+				}
+				// Direct buffer, fed through the transfer array
+				ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+				direct.put(bytes);
+				((Buffer) direct).flip();
+				incremental.reset(query);
+				assertTrue(incremental.feed(direct));
+				assertEquals(expected, incremental.isMatch());
+			}
+		}
+		// The result is known as soon as the constant pool is seen to lack the annotation
+		byte[] stringBytes = classes[1];
+		incremental.reset(queries[0]);
+		assertTrue(incremental.feed(ByteBuffer.wrap(stringBytes)) && !incremental.isMatch());
+		assertTrue(incremental.consumed() < stringBytes.length / 2);
+		// Running out of bytes before the result is known
+		incremental.reset(queries[0]);
+		assertFalse(incremental.feed(classes[0], 0, 20));
+		try {
+			incremental.finish();
+			fail();
+		} catch (IllegalStateException ise) {
+			// expected
+		}
+	}
+
+	public void testStreams() throws Exception {
+		AnnotationQuery query = AnnotationQuery.of(FunctionalInterface.class);
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		ScanStatistics statistics = new ScanStatistics();
+		// Big enough that the constant pool ends well before the class does
+		byte[] threadBytes = loadBytes("java/lang/Thread.class");
+		CountingInputStream stream = new CountingInputStream(threadBytes);
+		assertFalse(scanner.scan(stream, query, statistics));
+		assertTrue(stream.closed);
+		assertTrue(stream.count < threadBytes.length);
+		assertEquals(1, statistics.getRejectedByConstantPool());
+
+		stream = new CountingInputStream(loadBytes("java/lang/Runnable.class"));
+		assertTrue(TypeAnnotationScanner.scanClassBytesForAnnotation(stream, query));
+		assertTrue(stream.closed);
+		assertTrue(scanner.scan(new CountingInputStream(loadBytes("org/asc/utils/TypeAnnotationScannerTests$OnlyNested.class")),
+				AnnotationQuery.of(Holder.class), statistics));
+		assertEquals(2, statistics.getClassesScanned());
+		assertEquals(1, statistics.getMatched());
+	}
+
+	static class CountingInputStream extends ByteArrayInputStream {
+		int count;
+		boolean closed;
+
+		CountingInputStream(byte[] bytes) {
+			super(bytes);
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			// Hand out small reads, like an inflating stream would
+			int read = super.read(b, off, Math.min(len, 256));
+			count += Math.max(read, 0);
+			return read;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	public void testModernConstantPoolTags() throws Exception {
+		byte[] bytes = moduleInfo(19);
+		AnnotationQuery query = AnnotationQuery.of(Deprecated.class);
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		assertTrue(scanner.scan(bytes, query));
+		assertEquals(ScanResult.MATCH, scanner.evaluate(bytes, query));
+		assertNull(scanner.getFailure());
+		assertEquals(ScanResult.NO_MATCH, scanner.evaluate(bytes, AnnotationQuery.of(FunctionalInterface.class)));
+		assertEquals(ScanResult.MATCH, scanner.evaluate(new ByteArrayInputStream(bytes), query));
+		BitSet result = new BitSet();
+		assertEquals(ScanResult.MATCH, scanner.evaluate(bytes, AnnotationQuerySet.of(query), result));
+	}
+
+	public void testUnparseable() throws Exception {
+		AnnotationQuery query = AnnotationQuery.of(Deprecated.class);
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		byte[] bytes = moduleInfo(19);
+		// Ends part way through the annotation, both at the end of an array and within a larger one
+		byte[] truncated = new byte[bytes.length - 3];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(truncated, query));
+		assertEquals(ScanFailure.TRUNCATED, scanner.getFailure());
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(ByteBuffer.wrap(bytes, 0, bytes.length - 3), query));
+		assertEquals(ScanFailure.TRUNCATED, scanner.getFailure());
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(new ByteArrayInputStream(truncated), query));
+		assertEquals(ScanFailure.TRUNCATED, scanner.getFailure());
+		try {
+			scanner.scan(truncated, query);
+			fail();
+		} catch (IllegalStateException ise) {
+			// expected
+		}
+
+		byte[] unknownTag = moduleInfo(42);
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(unknownTag, query));
+		assertEquals(ScanFailure.UNKNOWN_CONSTANT_POOL_TAG, scanner.getFailure());
+		IncrementalAnnotationScanner incremental = new IncrementalAnnotationScanner();
+		incremental.reset(query);
+		assertTrue(incremental.feed(unknownTag, 0, unknownTag.length));
+		assertEquals(ScanResult.UNPARSEABLE, incremental.end());
+		assertEquals(ScanFailure.UNKNOWN_CONSTANT_POOL_TAG, incremental.getFailure());
+
+		byte[] badMagic = bytes.clone();
+		badMagic[0] = 0;
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(badMagic, query));
+		assertEquals(ScanFailure.BAD_MAGIC, scanner.getFailure());
+		incremental.reset(query);
+		assertTrue(incremental.feed(badMagic, 0, badMagic.length));
+		assertEquals(ScanFailure.BAD_MAGIC, incremental.getFailure());
+		// A good scan clears the failure
+		assertEquals(ScanResult.MATCH, scanner.evaluate(bytes, query));
+		assertNull(scanner.getFailure());
+
+		// The last constant pool entry is a long, which needs one more entry than the count allows
+		byte[] longAtEnd = longAsLastConstant();
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(longAtEnd, query));
+		assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, scanner.getFailure());
+		for (int chunkSize : new int[] { 1, 5, longAtEnd.length }) {
+			incremental.reset(query);
+			for (int p = 0; p < longAtEnd.length && !incremental.feed(longAtEnd, p, Math.min(chunkSize, longAtEnd.length - p)); p += chunkSize) {
+			}
+			assertEquals(ScanResult.UNPARSEABLE, incremental.end());
+			assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, incremental.getFailure());
+		}
+
+		// Indices beyond the constant pool of the class, scanning a class with a larger constant pool first
+		// means the reused offsets table has stale entries there
+		byte[] badTypeIndex = bytes.clone();
+		badTypeIndex[badTypeIndex.length - 3] = 40; // type_index of the annotation
+		byte[] stringBytes = loadBytes("java/lang/String.class");
+		assertEquals(ScanResult.NO_MATCH, scanner.evaluate(stringBytes, AnnotationQuery.of(FunctionalInterface.class)));
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(badTypeIndex, query));
+		assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, scanner.getFailure());
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(badTypeIndex, AnnotationQuerySet.of(query), new BitSet()));
+		assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, scanner.getFailure());
+		// The same whichever way the class is supplied, including a chunk at a time and inflated from a jar
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(new ByteArrayInputStream(badTypeIndex), query));
+		assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, scanner.getFailure());
+		for (int chunkSize : new int[] { 1, 5, badTypeIndex.length }) {
+			incremental.reset(query);
+			for (int p = 0; p < badTypeIndex.length && !incremental.feed(badTypeIndex, p, Math.min(chunkSize, badTypeIndex.length - p)); p += chunkSize) {
+			}
+			assertEquals(ScanResult.UNPARSEABLE, incremental.end());
+			assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, incremental.getFailure());
+		}
+		File file = jar(loadBytes("java/lang/Runnable.class"), badTypeIndex);
+		try {
+			MappedJar jar = MappedJar.open(file.toPath());
+			assertEquals(MappedJar.DEFLATED, jar.getMethod(2));
+			assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(jar, 2, query));
+			assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, scanner.getFailure());
+		} finally {
+			file.delete();
+		}
+		// type_index refers to a Class entry rather than a Utf8 entry
+		byte[] classTypeIndex = bytes.clone();
+		classTypeIndex[classTypeIndex.length - 3] = 2;
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(classTypeIndex, query));
+		assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, scanner.getFailure());
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(classTypeIndex, AnnotationQuerySet.of(query), new BitSet()));
+		assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, scanner.getFailure());
+		assertEquals(ScanResult.UNPARSEABLE, incremental.evaluate(new ByteArrayInputStream(classTypeIndex), query));
+		assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, incremental.getFailure());
+		// this_class refers to a Utf8 entry rather than a Class entry
+		byte[] badThisClass = bytes.clone();
+		badThisClass[badThisClass.length - 23] = 1;
+		assertNull(scanner.readHeader(badThisClass));
+		assertEquals(ScanFailure.BAD_CONSTANT_POOL_INDEX, scanner.getFailure());
+		assertNotNull(scanner.readHeader(bytes));
+	}
+
+	public void testDuplicateConstantPoolEntries() throws Exception {
+		// The annotation type and attribute name are both in the constant pool twice and the first of each is
+		// used, so they cannot be matched by comparing against the index of the (last) entry that matched
+		byte[] bytes = duplicatedEntries();
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		AnnotationQuery deprecated = AnnotationQuery.of(Deprecated.class);
+		assertTrue(scanner.scan(bytes, deprecated));
+		assertEquals(ScanResult.MATCH, scanner.evaluate(bytes, deprecated));
+		assertEquals(TypeAnnotationScanner.RUNTIME_VISIBLE, scanner.findAnnotation(bytes, deprecated));
+		assertFalse(scanner.scan(bytes, AnnotationQuery.of(FunctionalInterface.class)));
+		assertEquals(1L, scanner.scanForAnnotations(bytes, AnnotationQuerySet.of(deprecated, AnnotationQuery.of(FunctionalInterface.class))));
+		assertTrue(ClassSkeleton.of(bytes).hasAnnotation(deprecated));
+		IncrementalAnnotationScanner incremental = new IncrementalAnnotationScanner();
+		incremental.reset(deprecated);
+		assertTrue(incremental.feed(bytes, 0, bytes.length));
+		assertTrue(incremental.isMatch());
+	}
+
+	public void testClassSkeleton() throws Exception {
+		AnnotationQuery[] queries = { AnnotationQuery.of(FunctionalInterface.class), AnnotationQuery.of(Deprecated.class),
+				AnnotationQuery.of(Holder.class), AnnotationQuery.of(Marker.class), AnnotationQuery.of("Ljava/lang/Deprecated;", false),
+				AnnotationQuery.of("Ljdk/internal/ValueBased;") };
+		AnnotationQuerySet querySet = AnnotationQuerySet.of(queries[0], queries[1], queries[2], queries[3], queries[5]);
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		// Thread first so that the scanner's constant pool table is full of offsets when the smaller classes are done
+		byte[][] classes = { loadBytes("java/lang/Thread.class"), loadBytes("java/lang/Runnable.class"),
+				loadBytes("java/lang/Integer.class"), loadBytes("org/asc/utils/TypeAnnotationScannerTests$OnlyNested.class"),
+				moduleInfo(19) };
+		for (byte[] bytes : classes) {
+			ClassSkeleton skeleton = scanner.skeleton(bytes);
+			for (AnnotationQuery query : queries) {
+				assertEquals(query.toString(), scanner.findAnnotation(bytes, query), skeleton.findAnnotation(query));
+			}
+			assertEquals(scanner.scanForAnnotations(bytes, querySet), skeleton.findAnnotations(querySet));
+		}
+		ClassSkeleton skeleton = ClassSkeleton.of(classes[3]);
+		assertEquals(2, skeleton.getAnnotationCount());
+		assertTrue(skeleton.hasAnnotation(AnnotationQuery.of(Holder.class)));
+		assertTrue(skeleton.visibleAnnotationsOffset() > skeleton.attributesOffset());
+		assertEquals(-1, skeleton.invisibleAnnotationsOffset());
+		assertTrue(skeleton.fieldsOffset() < skeleton.methodsOffset() && skeleton.methodsOffset() < skeleton.attributesOffset());
+		// Only Utf8 entries have offsets: in the module-info class #1 is a Utf8 entry, #2 the Class entry using it
+		skeleton = ClassSkeleton.of(classes[4]);
+		assertEquals(11, skeleton.utf8Offset(1));
+		assertEquals(0, skeleton.utf8Offset(2));
+		assertEquals(0, skeleton.utf8Offset(4));
+		try {
+			ClassSkeleton.of(new byte[] { (byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe, 0, 0 });
+			fail();
+		} catch (IllegalStateException ise) {
+			// expected
+		}
+	}
+
+	public void testClassHeader() throws Exception {
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		ClassHeader header = scanner.readHeader(loadBytes("java/lang/String.class"));
+		assertEquals("java/lang/String", header.getClassName());
+		assertEquals("java/lang/Object", header.getSuperClassName());
+		assertTrue(header.isPublic() && header.isFinal() && !header.isInterface());
+		assertTrue(header.getJavaVersion() >= 8);
+		header = scanner.readHeader(loadBytes("java/lang/Object.class"));
+		assertNull(header.getSuperClassName());
+		header = scanner.readHeader(loadBytes("org/asc/utils/TypeAnnotationScannerTests$Holder.class"));
+		assertTrue(header.isAnnotation() && header.isInterface() && header.isAbstract());
+		assertEquals(52, header.getMajorVersion());
+		header = scanner.readHeader(moduleInfo(19));
+		assertTrue(header.isModule());
+		assertEquals("module-info", header.getClassName());
+
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(65, Opcodes.ACC_PUBLIC | Opcodes.ACC_ENUM, "org/example/Caf\u00e9\u4e2d", null, "java/lang/Enum", null);
+		cw.visitEnd();
+		header = scanner.readHeader(cw.toByteArray());
+		assertEquals("org/example/Caf\u00e9\u4e2d", header.getClassName());
+		assertTrue(header.isEnum());
+		assertEquals(21, header.getJavaVersion());
+
+		// Only the header is read from a stream
+		byte[] threadBytes = loadBytes("java/lang/Thread.class");
+		CountingInputStream stream = new CountingInputStream(threadBytes);
+		header = scanner.readHeader(stream);
+		assertEquals("java/lang/Thread", header.getClassName());
+		assertTrue(stream.closed);
+		assertTrue(stream.count < threadBytes.length);
+
+		assertNull(scanner.readHeader(new byte[] { (byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe, 0, 0, 0, 52, 0 }));
+		assertEquals(ScanFailure.TRUNCATED, scanner.getFailure());
+		assertNull(scanner.readHeader(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 })));
+		assertEquals(ScanFailure.BAD_MAGIC, scanner.getFailure());
+	}
+
+	public void testPredicates() throws Exception {
+		AnnotationQuery functional = AnnotationQuery.of(FunctionalInterface.class);
+		AnnotationQuery deprecated = AnnotationQuery.of(Deprecated.class);
+		AnnotationQuery holder = AnnotationQuery.of(Holder.class);
+		ClassPredicate isFunctional = ClassPredicate.annotatedWith(functional);
+		ClassPredicate isDeprecated = ClassPredicate.annotatedWith(deprecated);
+		ClassPredicate isHolder = ClassPredicate.annotatedWith(holder);
+		ClassPredicate isPublic = ClassPredicate.hasAccess(ClassHeader.ACC_PUBLIC);
+		ClassPredicate isInterface = ClassPredicate.hasAccess(ClassHeader.ACC_INTERFACE);
+		ClassPredicate inLang = ClassPredicate.nameStartsWith("java/lang/");
+		ClassPredicate extendsObject = ClassPredicate.extendsClass("java/lang/Object");
+		ClassPredicate[] predicates = {
+				isPublic.and(isInterface).and(isFunctional),
+				isDeprecated.and(isHolder.negate()),
+				isHolder.or(inLang.and(isInterface.negate())),
+				ClassPredicate.not(ClassPredicate.or(isFunctional, isDeprecated, extendsObject)),
+				ClassPredicate.and(inLang, isDeprecated.negate(), isPublic),
+				inLang.negate().and(isDeprecated) };
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		String[] resources = { "java/lang/Runnable.class", "java/lang/String.class", "java/lang/Thread.class",
+				"java/lang/Object.class", "org/asc/utils/TypeAnnotationScannerTests$OnlyNested.class",
+				"org/asc/utils/TypeAnnotationScannerTests$FieldOfAnnotationType.class" };
+		for (String resource : resources) {
+			byte[] bytes = loadBytes(resource);
+			ClassHeader header = scanner.readHeader(bytes);
+			boolean functionalFound = scanner.scan(bytes, functional);
+			boolean deprecatedFound = scanner.scan(bytes, deprecated);
+			boolean holderFound = scanner.scan(bytes, holder);
+			boolean lang = header.getClassName().startsWith("java/lang/");
+			boolean[] expected = {
+					header.isPublic() && header.isInterface() && functionalFound,
+					deprecatedFound && !holderFound,
+					holderFound || lang && !header.isInterface(),
+					!(functionalFound || deprecatedFound || "java/lang/Object".equals(header.getSuperClassName())),
+					lang && !deprecatedFound && header.isPublic(),
+					!lang && deprecatedFound };
+			for (int i = 0; i < predicates.length; i++) {
+				assertEquals(resource + " " + predicates[i], expected[i], scanner.matches(bytes, predicates[i]));
+				assertEquals(expected[i] ? ScanResult.MATCH : ScanResult.NO_MATCH, scanner.evaluate(ByteBuffer.wrap(bytes), predicates[i]));
+			}
+		}
+		// Decided from the header alone
+		assertFalse(scanner.matches(loadBytes("java/lang/String.class"), isInterface.and(isDeprecated)));
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(new byte[] { 1, 2, 3, 4 }, isPublic));
+		try {
+			ClassPredicate.and(isDeprecated, ClassPredicate.annotatedWith(AnnotationQuery.of("Ljava/lang/Deprecated;", false))).querySet();
+			fail();
+		} catch (IllegalArgumentException iae) {
+			// expected
+		}
+	}
+
+	public void testMemberAnnotations() throws Exception {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "org/example/Members", null, "java/lang/Object", null);
+		cw.visitAnnotation("Lorg/example/TypeLevel;", true).visitEnd();
+		cw.visitField(Opcodes.ACC_PRIVATE, "plain", "I", null, null).visitEnd();
+		FieldVisitor fv = cw.visitField(Opcodes.ACC_PRIVATE, "injected", "Ljava/lang/String;", null, null);
+		fv.visitAnnotation("Lorg/example/Inject;", true).visitEnd();
+		fv.visitEnd();
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "testSomething", "()V", null, null);
+		AnnotationVisitor av = mv.visitAnnotation("Lorg/example/Other;", true);
+		av.visitAnnotation("value", "Lorg/example/Test;").visitEnd();
+		av.visitEnd();
+		mv.visitAnnotation("Lorg/example/Test;", true).visitEnd();
+		mv.visitEnd();
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(Ljava/lang/String;)V", null, null);
+		mv.visitAnnotation("Lorg/example/Inject;", false).visitEnd();
+		mv.visitEnd();
+		cw.visitEnd();
+		byte[] bytes = cw.toByteArray();
+
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		AnnotationQuery inject = AnnotationQuery.of("Lorg/example/Inject;");
+		assertTrue(scanner.scanMembers(bytes, AnnotationQuery.of("Lorg/example/Test;", true)));
+		assertTrue(scanner.scanMembers(bytes, inject));
+		assertFalse(scanner.scanMembers(bytes, AnnotationQuery.of("Lorg/example/TypeLevel;", true)));
+		assertFalse(scanner.scan(bytes, inject));
+		List<AnnotatedMember> members = new ArrayList<AnnotatedMember>();
+		assertTrue(scanner.findAnnotatedMembers(bytes, inject, members));
+		assertEquals("[field injectedLjava/lang/String;, method <init>(Ljava/lang/String;)V]", members.toString());
+		assertEquals(TypeAnnotationScanner.RUNTIME_VISIBLE, members.get(0).getAttribute());
+		assertEquals(TypeAnnotationScanner.RUNTIME_INVISIBLE, members.get(1).getAttribute());
+		assertTrue(scanner.findAnnotatedMembers(bytes, AnnotationQuery.of("Lorg/example/Inject;", false), members));
+		assertEquals(1, members.size());
+		assertTrue(members.get(0).isMethod());
+		assertFalse(scanner.findAnnotatedMembers(bytes, AnnotationQuery.of("Lorg/example/Missing;"), members));
+		assertTrue(members.isEmpty());
+		assertEquals(ScanResult.NO_MATCH, scanner.evaluateMembers(loadBytes("java/lang/String.class"), AnnotationQuery.of("Lorg/example/Test;", true)));
+
+		assertTrue(TypeAnnotationScanner.scanClassBytesForMemberAnnotation(loadBytes("java/lang/Thread.class"), AnnotationQuery.of(Deprecated.class)));
+		assertTrue(scanner.findAnnotatedMembers(loadBytes("java/lang/Thread.class"), AnnotationQuery.of(Deprecated.class), members));
+		boolean stop = false;
+		for (AnnotatedMember member : members) {
+			stop |= member.isMethod() && member.getName().equals("stop") && member.getDescriptor().equals("()V");
+		}
+		assertTrue(members.toString(), stop);
+	}
+
+	public void testParameterAnnotations() throws Exception {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "org/example/Controller", null, "java/lang/Object", null);
+		FieldVisitor fv = cw.visitField(Opcodes.ACC_PRIVATE, "id", "Ljava/lang/String;", null, null);
+		fv.visitAnnotation("Lorg/example/PathVariable;", true).visitEnd();
+		fv.visitEnd();
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "list", "()V", null, null);
+		mv.visitAnnotation("Lorg/example/RequestBody;", true).visitEnd();
+		mv.visitEnd();
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "get", "(ILjava/lang/String;)V", null, null);
+		mv.visitParameterAnnotation(0, "Lorg/example/Valid;", false).visitEnd();
+		mv.visitParameterAnnotation(1, "Lorg/example/Valid;", true).visitEnd();
+		mv.visitParameterAnnotation(1, "Lorg/example/PathVariable;", true).visitEnd();
+		mv.visitEnd();
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "put", "(Ljava/lang/Object;)V", null, null);
+		mv.visitParameterAnnotation(0, "Lorg/example/RequestBody;", false).visitEnd();
+		mv.visitEnd();
+		cw.visitEnd();
+		byte[] bytes = cw.toByteArray();
+
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		assertTrue(scanner.scanParameters(bytes, AnnotationQuery.of("Lorg/example/PathVariable;", true)));
+		assertFalse(scanner.scanParameters(bytes, AnnotationQuery.of("Lorg/example/PathVariable;", false)));
+		assertTrue(scanner.scanParameters(bytes, AnnotationQuery.of("Lorg/example/RequestBody;")));
+		assertFalse(scanner.scanParameters(bytes, AnnotationQuery.of("Lorg/example/RequestBody;", true)));
+		assertTrue(scanner.scanMembers(bytes, AnnotationQuery.of("Lorg/example/RequestBody;", true)));
+		assertFalse(scanner.scanMembers(bytes, AnnotationQuery.of("Lorg/example/Valid;")));
+		List<AnnotatedMember> members = new ArrayList<AnnotatedMember>();
+		assertTrue(scanner.findMethodsWithAnnotatedParameters(bytes, AnnotationQuery.of("Lorg/example/Valid;"), members));
+		assertEquals("[method get(ILjava/lang/String;)V]", members.toString());
+		assertEquals(TypeAnnotationScanner.RUNTIME_VISIBLE, members.get(0).getAttribute());
+		assertTrue(scanner.findMethodsWithAnnotatedParameters(bytes, AnnotationQuery.of("Lorg/example/Valid;", false), members));
+		assertEquals(TypeAnnotationScanner.RUNTIME_INVISIBLE, members.get(0).getAttribute());
+		assertFalse(scanner.findMethodsWithAnnotatedParameters(bytes, AnnotationQuery.of("Lorg/example/Missing;"), members));
+		assertTrue(members.isEmpty());
+		assertEquals(ScanResult.NO_MATCH, scanner.evaluateParameters(loadBytes("java/lang/String.class"), AnnotationQuery.of("Lorg/example/Valid;")));
+		assertFalse(TypeAnnotationScanner.scanClassBytesForParameterAnnotation(loadBytes("java/lang/Thread.class"), AnnotationQuery.of(Deprecated.class)));
+	}
+
+	public void testTypeUseAnnotations() throws Exception {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "org/example/Repository", "<T:Ljava/lang/Object;>Ljava/lang/Object;", "java/lang/Object", null);
+		cw.visitTypeAnnotation(TypeReference.newTypeParameterReference(TypeReference.CLASS_TYPE_PARAMETER, 0).getValue(), null, "Lorg/example/Immutable;", true).visitEnd();
+		cw.visitAnnotation("Lorg/example/NonNull;", true).visitEnd();
+		FieldVisitor fv = cw.visitField(Opcodes.ACC_PRIVATE, "names", "Ljava/util/List;", "Ljava/util/List<Ljava/lang/String;>;", null);
+		fv.visitTypeAnnotation(TypeReference.newTypeReference(TypeReference.FIELD).getValue(), TypePath.fromString("0;"), "Lorg/example/NonNull;", true).visitEnd();
+		fv.visitEnd();
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "find", "(Ljava/lang/String;)Ljava/lang/Object;", null, new String[] { "java/io/IOException" });
+		mv.visitTypeAnnotation(TypeReference.newFormalParameterReference(0).getValue(), null, "Lorg/example/Trimmed;", false).visitEnd();
+		mv.visitTypeAnnotation(TypeReference.newExceptionReference(0).getValue(), null, "Lorg/example/Checked;", true).visitEnd();
+		mv.visitCode();
+		Label start = new Label();
+		Label end = new Label();
+		mv.visitLabel(start);
+		mv.visitTypeInsn(Opcodes.NEW, "java/lang/Object");
+		mv.visitInsnAnnotation(TypeReference.newTypeReference(TypeReference.NEW).getValue(), null, "Lorg/example/Fresh;", true).visitEnd();
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitVarInsn(Opcodes.ASTORE, 2);
+		mv.visitVarInsn(Opcodes.ALOAD, 2);
+		mv.visitLabel(end);
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitLocalVariable("result", "Ljava/lang/Object;", null, start, end, 2);
+		mv.visitLocalVariableAnnotation(TypeReference.newTypeReference(TypeReference.LOCAL_VARIABLE).getValue(), null,
+				new Label[] { start }, new Label[] { end }, new int[] { 2 }, "Lorg/example/Local;", false).visitEnd();
+		mv.visitMaxs(2, 3);
+		mv.visitEnd();
+		cw.visitEnd();
+		byte[] bytes = cw.toByteArray();
+
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		assertTrue(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/Immutable;", true)));
+		assertTrue(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/NonNull;", true)));
+		assertFalse(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/NonNull;", false)));
+		assertTrue(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/Trimmed;", false)));
+		assertFalse(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/Trimmed;", true)));
+		assertTrue(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/Checked;")));
+		assertFalse(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/Fresh;")));
+		assertTrue(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/Fresh;"), true));
+		assertFalse(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/Local;")));
+		assertTrue(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/Local;", false), true));
+		assertFalse(scanner.scanTypeUses(bytes, AnnotationQuery.of("Lorg/example/Missing;"), true));
+		assertFalse(scanner.scan(bytes, AnnotationQuery.of("Lorg/example/Immutable;", true)));
+		assertFalse(scanner.scanMembers(bytes, AnnotationQuery.of("Lorg/example/NonNull;", true)));
+		assertTrue(TypeAnnotationScanner.scanClassBytesForTypeUseAnnotation(bytes, AnnotationQuery.of("Lorg/example/NonNull;", true)));
+
+		// Make the field's type annotation (target 0x13, type path [type argument 0]) have an undefined target
+		byte[] broken = bytes.clone();
+		for (int i = 0; i < broken.length - 4; i++) {
+			if (broken[i] == 0x13 && broken[i + 1] == 1 && broken[i + 2] == 3 && broken[i + 3] == 0) {
+				broken[i] = 0x30;
+				break;
+			}
+		}
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluateTypeUses(broken, AnnotationQuery.of("Lorg/example/Local;", true), false));
+		assertEquals(ScanFailure.UNKNOWN_TYPE_ANNOTATION_TARGET, scanner.getFailure());
+		assertEquals(ScanResult.NO_MATCH, scanner.evaluateTypeUses(loadBytes("java/lang/String.class"), AnnotationQuery.of("Lorg/example/NonNull;"), true));
+	}
+
+	public void testMetaAnnotations() {
+		final Map<String, byte[]> types = new HashMap<String, byte[]>();
+		types.put("org/example/Component", annotated("org/example/Component", true));
+		types.put("org/example/Service", annotated("org/example/Service", true, "Lorg/example/Component;", "Ljava/lang/annotation/Documented;"));
+		types.put("org/example/Special", annotated("org/example/Special", true, "Lorg/example/Service;"));
+		types.put("org/example/Loop1", annotated("org/example/Loop1", true, "Lorg/example/Loop2;"));
+		types.put("org/example/Loop2", annotated("org/example/Loop2", true, "Lorg/example/Loop1;", "Lorg/example/Unknown;"));
+		types.put("org/example/CycleA", annotated("org/example/CycleA", true, "Lorg/example/CycleB;"));
+		types.put("org/example/CycleB", annotated("org/example/CycleB", true, "Lorg/example/CycleA;", "Lorg/example/Component;"));
+		final List<String> lookups = new ArrayList<String>();
+		MetaAnnotationResolver resolver = new MetaAnnotationResolver(AnnotationQuery.of("Lorg/example/Component;", true),
+				new AnnotationTypeLookup() {
+					@Override
+					public byte[] lookup(String internalName) {
+						lookups.add(internalName);
+						return types.get(internalName);
+					}
+				});
+		assertTrue(resolver.isAnnotated(annotated("org/example/A", true, "Lorg/example/Component;")));
+		assertTrue(lookups.isEmpty());
+		assertTrue(resolver.isAnnotated(annotated("org/example/B", true, "Lorg/example/Special;")));
+		assertEquals("[org/example/Special, org/example/Service]", lookups.toString());
+		assertTrue(resolver.isAnnotated(annotated("org/example/C", true, "Lorg/example/Loop1;", "Lorg/example/Service;")));
+		assertFalse(resolver.implies("Lorg/example/Loop2;"));
+		assertEquals(ScanResult.NO_MATCH, resolver.evaluate(annotated("org/example/D", true, "Lorg/example/Loop2;", "Lorg/example/Missing;")));
+		assertTrue(resolver.isAnnotated(annotated("org/example/E", true, "Lorg/example/CycleB;")));
+		assertTrue(resolver.implies("Lorg/example/CycleA;"));
+		assertFalse(resolver.isAnnotated(annotated("org/example/F", true)));
+		// Each annotation type is only looked up once, and only if its answer is needed (Service implies Component
+		// without looking at Documented, C is annotated with Service so Loop1 need not be resolved for it)
+		assertEquals("[org/example/Special, org/example/Service, org/example/Loop2, org/example/Loop1, "
+				+ "org/example/Unknown, org/example/Missing, org/example/CycleB, org/example/CycleA]",
+				lookups.toString());
+		// Only runtime visible annotations are followed for a runtime retention target
+		types.put("org/example/Hidden", annotated("org/example/Hidden", false, "Lorg/example/Component;"));
+		assertFalse(resolver.isAnnotated(annotated("org/example/G", true, "Lorg/example/Hidden;")));
+		assertEquals(ScanResult.UNPARSEABLE, resolver.evaluate(new byte[] { 1, 2, 3, 4 }));
+
+		// FunctionalInterface is annotated with Documented
+		MetaAnnotationResolver documented = new MetaAnnotationResolver(AnnotationQuery.of(Documented.class),
+				AnnotationTypeLookup.of(TypeAnnotationScannerTests.class.getClassLoader()));
+		assertTrue(documented.isAnnotated(loadBytes("java/lang/Runnable.class")));
+		assertFalse(documented.isAnnotated(loadBytes("java/lang/String.class")));
+	}
+
+	/**
+	 * Build a class (or annotation type) with the specified type level annotations.
+	 * @param visible true for runtime visible annotations, false for runtime invisible
+	 */
+	private byte[] annotated(String name, boolean visible, String... annotationTypes) {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_ANNOTATION | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT,
+				name, null, "java/lang/Object", new String[] { "java/lang/annotation/Annotation" });
+		for (String annotationType : annotationTypes) {
+			cw.visitAnnotation(annotationType, visible).visitEnd();
+		}
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	public void testClassBytesBuffer() throws Exception {
+		byte[] runnableBytes = loadBytes("java/lang/Runnable.class");
+		AnnotationQuery functionalInterface = AnnotationQuery.of(FunctionalInterface.class);
+		ClassBytesBuffer buffer = new ClassBytesBuffer(16);
+		// Unknown size, and the expected size being right, too small or too large
+		for (long size : new long[] { -1, runnableBytes.length, 10, runnableBytes.length * 3 }) {
+			CountingInputStream stream = new CountingInputStream(runnableBytes);
+			assertEquals(runnableBytes.length, buffer.read(stream, size));
+			assertTrue(stream.closed);
+			assertEquals(runnableBytes.length, buffer.length());
+			assertTrue(Arrays.equals(runnableBytes, buffer.toByteArray()));
+			byte[] loaded = TypeAnnotationScanner.loadBytes(new ByteArrayInputStream(runnableBytes), size);
+			assertTrue(Arrays.equals(runnableBytes, loaded));
+		}
+		assertEquals(0, buffer.read(new ByteArrayInputStream(new byte[0])));
+
+		// Scanning in place, after a shorter class has been read the rest of the buffer is stale
+		byte[] stringBytes = loadBytes("java/lang/String.class");
+		TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+		buffer.read(new ByteArrayInputStream(stringBytes));
+		assertFalse(scanner.scan(buffer.array(), 0, buffer.length(), functionalInterface));
+		buffer.read(new ByteArrayInputStream(runnableBytes), runnableBytes.length);
+		assertTrue(buffer.array().length >= stringBytes.length);
+		assertTrue(scanner.scan(buffer.array(), 0, buffer.length(), functionalInterface));
+		assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(buffer.array(), 0, 40, functionalInterface));
+		assertEquals(ScanFailure.TRUNCATED, scanner.getFailure());
+		byte[] padded = new byte[runnableBytes.length + 20];
+		System.arraycopy(runnableBytes, 0, padded, 7, runnableBytes.length);
+		assertTrue(scanner.scan(padded, 7, runnableBytes.length, functionalInterface));
+		assertEquals(1L, scanner.scanForAnnotations(padded, 7, runnableBytes.length, AnnotationQuerySet.of(functionalInterface)));
+		try {
+			scanner.scan(padded, 7, padded.length, functionalInterface);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+
+		// No limit on the class size, and the buffer does not stay that large
+		byte[] huge = new byte[3 * 1024 * 1024];
+		System.arraycopy(runnableBytes, 0, huge, 0, runnableBytes.length);
+		assertEquals(huge.length, buffer.read(new ByteArrayInputStream(huge)));
+		assertTrue(buffer.array().length >= huge.length);
+		buffer.read(new ByteArrayInputStream(runnableBytes), runnableBytes.length);
+		assertTrue(buffer.array().length < huge.length);
+		assertTrue(Arrays.equals(huge, TypeAnnotationScanner.loadBytes(new ByteArrayInputStream(huge))));
+	}
+
+	public void testMappedJar() throws Exception {
+		byte[] runnableBytes = loadBytes("java/lang/Runnable.class");
+		byte[] stringBytes = loadBytes("java/lang/String.class");
+		File file = jar(runnableBytes, stringBytes);
+		try {
+			MappedJar jar = MappedJar.open(file.toPath());
+			ZipFile zipFile = new ZipFile(file);
+			try {
+				assertEquals(zipFile.size(), jar.size());
+				Enumeration<? extends ZipEntry> entries = zipFile.entries();
+				for (int i = 0; i < jar.size(); i++) {
+					ZipEntry entry = entries.nextElement();
+					assertEquals(entry.getName(), jar.getName(i));
+					assertEquals(entry.getName().endsWith(".class"), jar.isClass(i));
+					assertEquals(entry.getMethod(), jar.getMethod(i));
+					assertEquals(entry.getSize(), jar.getSize(i));
+					assertEquals(entry.getCompressedSize(), jar.getCompressedSize(i));
+					byte[] data = new byte[jar.getCompressedSize(i)];
+					ByteBuffer buffer = jar.getBuffer();
+					((Buffer) buffer).position(jar.getDataOffset(i));
+					buffer.get(data);
+					if (jar.getMethod(i) == MappedJar.DEFLATED) {
+						Inflater inflater = new Inflater(true);
+						inflater.setInput(data);
+						byte[] inflated = new byte[jar.getSize(i)];
+						assertEquals(inflated.length, inflater.inflate(inflated));
+						inflater.end();
+						data = inflated;
+					}
+					assertTrue(entry.getName(), Arrays.equals(TypeAnnotationScanner.loadBytes(zipFile.getInputStream(entry)), data));
+				}
+			} finally {
+				zipFile.close();
+			}
+			assertEquals("java/lang/Runnable.class", jar.getName(1));
+			assertEquals(MappedJar.STORED, jar.getMethod(1));
+			assertEquals(MappedJar.DEFLATED, jar.getMethod(2));
+			assertFalse(jar.isClass(0));
+			assertTrue(Arrays.equals(stringBytes, TypeAnnotationScanner.loadBytes(jar.getInputStream(2))));
+			// A stream holds the inflater of the thread until it is closed, anything else inflating meanwhile
+			// (here a scan of the same entry) does not disturb it
+			InputStream stream = jar.getInputStream(2);
+			assertNotSame(EntryInflater.forCurrentThread(), EntryInflater.forCurrentThread());
+			byte[] streamed = new byte[stringBytes.length];
+			assertEquals(100, stream.read(streamed, 0, 100));
+			assertFalse(new TypeAnnotationScanner().scan(jar, 2, AnnotationQuery.of(FunctionalInterface.class)));
+			assertEquals(stringBytes.length - 100, stream.available());
+			int n = 100;
+			for (int read; (read = stream.read(streamed, n, streamed.length - n)) > 0;) {
+				n += read;
+			}
+			assertEquals(stringBytes.length, n);
+			assertEquals(-1, stream.read());
+			assertTrue(Arrays.equals(stringBytes, streamed));
+			assertSame(EntryInflater.forCurrentThread(), EntryInflater.forCurrentThread());
+			// Closing a stream that has ended leaves alone a later stream using the same inflater
+			InputStream later = jar.getInputStream(2);
+			stream.close();
+			assertTrue(Arrays.equals(stringBytes, TypeAnnotationScanner.loadBytes(later)));
+			ClassBytesBuffer buffer = new ClassBytesBuffer(16);
+			assertEquals(stringBytes.length, buffer.read(jar, 2));
+			assertTrue(Arrays.equals(stringBytes, buffer.toByteArray()));
+			assertEquals(runnableBytes.length, buffer.read(jar, 1));
+			assertTrue(Arrays.equals(runnableBytes, buffer.toByteArray()));
+			assertEquals(stringBytes.length, buffer.read(jar, 2));
+			assertTrue(Arrays.equals(stringBytes, buffer.toByteArray()));
+
+			// Stored classes are scanned in place, deflated ones inflated as they are scanned
+			TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+			AnnotationQuery functionalInterface = AnnotationQuery.of(FunctionalInterface.class);
+			assertTrue(scanner.scan(jar, 1, functionalInterface));
+			assertFalse(scanner.scan(jar, 2, functionalInterface));
+			assertEquals(ScanResult.MATCH, scanner.evaluate(jar, 1, functionalInterface));
+			assertEquals(ScanResult.UNPARSEABLE, scanner.evaluate(jar, 0, functionalInterface));
+			assertEquals(ScanFailure.BAD_MAGIC, scanner.getFailure());
+			assertEquals(ScanResult.NO_MATCH, scanner.evaluate(jar, 2, AnnotationQuery.of(Deprecated.class)));
+		} finally {
+			file.delete();
+		}
+
+		File notAJar = File.createTempFile("notajar", ".jar");
+		try {
+			Files.write(notAJar.toPath(), runnableBytes);
+			MappedJar.open(notAJar.toPath());
+			fail();
+		} catch (ZipException e) {
+			// expected
+		} finally {
+			notAJar.delete();
+		}
+
+		// A zip64 archive, then corrupt versions of it whose structures point outside the file or the directory
+		byte[] zip64 = zip64("java/lang/Runnable.class", runnableBytes);
+		MappedJar jar64 = open(zip64);
+		assertEquals(1, jar64.size());
+		assertEquals("java/lang/Runnable.class", jar64.getName(0));
+		assertEquals(runnableBytes.length, jar64.getSize(0));
+		assertTrue(Arrays.equals(runnableBytes, TypeAnnotationScanner.loadBytes(jar64.getInputStream(0))));
+		int directory = 30 + 24 + runnableBytes.length;
+		// The zip64 end record is at the very end of the file
+		ByteBuffer corrupt = ByteBuffer.wrap(zip64.clone()).order(ByteOrder.LITTLE_ENDIAN);
+		corrupt.putLong(zip64.length - 34, zip64.length);
+		assertNotZip(corrupt.array());
+		// The zip64 extra field is too short for the two sizes
+		corrupt = ByteBuffer.wrap(zip64.clone()).order(ByteOrder.LITTLE_ENDIAN);
+		corrupt.putShort(directory + 46 + 24 + 2, (short) 8);
+		assertNotZip(corrupt.array());
+		// The zip64 extra field runs past the extra fields
+		corrupt = ByteBuffer.wrap(zip64.clone()).order(ByteOrder.LITTLE_ENDIAN);
+		corrupt.putShort(directory + 46 + 24 + 2, (short) 100);
+		assertNotZip(corrupt.array());
+		// The name runs past the central directory
+		corrupt = ByteBuffer.wrap(zip64.clone()).order(ByteOrder.LITTLE_ENDIAN);
+		corrupt.putShort(directory + 28, (short) 0xffff);
+		assertNotZip(corrupt.array());
+	}
+
+	public void testDeflatedScanStopsEarly() throws Exception {
+		byte[] paddedBytes = padded(64 * 1024);
+		File file = jar(loadBytes("java/lang/Runnable.class"), paddedBytes);
+		try {
+			MappedJar jar = MappedJar.open(file.toPath());
+			assertEquals(MappedJar.DEFLATED, jar.getMethod(2));
+			assertTrue(jar.getCompressedSize(2) > 32 * 1024);
+			TypeAnnotationScanner scanner = new TypeAnnotationScanner();
+
+			// The annotation follows the padding so the whole entry is inflated to find it
+			assertEquals(ScanResult.MATCH, scanner.evaluate(jar, 2, AnnotationQuery.of(Deprecated.class)));
+			assertEquals(jar.getCompressedSize(2), EntryInflater.forCurrentThread().bytesRead());
+
+			// Rejected by the constant pool, inflation stops long before the padding has been read
+			assertEquals(ScanResult.NO_MATCH, scanner.evaluate(jar, 2, AnnotationQuery.of(FunctionalInterface.class)));
+			assertTrue(EntryInflater.forCurrentThread().bytesRead() < jar.getCompressedSize(2) / 4);
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testDirectoryScanner() throws Exception {
+		byte[] runnableBytes = loadBytes("java/lang/Runnable.class");
+		byte[] stringBytes = loadBytes("java/lang/String.class");
+		Path root = Files.createTempDirectory("scanner");
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			List<Path> expected = new ArrayList<Path>();
+			// Enough classes in one directory for several batches
+			Path many = Files.createDirectories(root.resolve("org/example/many"));
+			for (int i = 0; i < 100; i++) {
+				expected.add(Files.write(many.resolve("Runnable" + i + ".class"), runnableBytes));
+			}
+			Files.write(root.resolve("org/example/String.class"), stringBytes);
+			Files.write(root.resolve("org/example/readme.txt"), runnableBytes);
+			Path broken = Files.write(root.resolve("Broken.class"), new byte[] { 1, 2, 3 });
+			// Large enough to be mapped
+			byte[] big = Arrays.copyOf(runnableBytes, DirectoryScanner.MAP_THRESHOLD + 1);
+			expected.add(Files.write(root.resolve("org/Big.class"), big));
+			Files.createDirectories(root.resolve("empty"));
+			Collections.sort(expected);
+
+			DirectoryScanner directoryScanner = new DirectoryScanner(pool);
+			AnnotationQuery functionalInterface = AnnotationQuery.of(FunctionalInterface.class);
+			assertEquals(expected, directoryScanner.findAnnotated(root, functionalInterface));
+
+			final Map<Path, ScanResult> results = new ConcurrentHashMap<Path, ScanResult>();
+			final Map<Path, ScanFailure> failures = new ConcurrentHashMap<Path, ScanFailure>();
+			ClassFileCallback callback = new ClassFileCallback() {
+				@Override
+				public void scanned(Path file, ScanResult result) {
+					results.put(file, result);
+					if (result == ScanResult.UNPARSEABLE) {
+						failures.put(file, TypeAnnotationScanner.forCurrentThread().getFailure());
+					}
+				}
+			};
+			assertEquals(103, directoryScanner.scan(root, functionalInterface, callback));
+			assertEquals(103, results.size());
+			assertEquals(ScanResult.NO_MATCH, results.get(root.resolve("org/example/String.class")));
+			assertEquals(ScanResult.MATCH, results.get(root.resolve("org/Big.class")));
+			assertEquals(Collections.singletonMap(broken, ScanFailure.BAD_MAGIC), failures);
+
+			// A directory named like a class file cannot be read as one
+			final Path notAClass = Files.createDirectories(root.resolve("org/NotA.class"));
+			try {
+				directoryScanner.findAnnotated(root, functionalInterface);
+				fail();
+			} catch (UncheckedIOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("NotA.class"));
+			}
+			final List<Path> failed = new ArrayList<Path>();
+			assertEquals(102, directoryScanner.scan(root.resolve("org"), functionalInterface, new ClassFileCallback() {
+				@Override
+				public void scanned(Path file, ScanResult result) {
+				}
+
+				@Override
+				public void failed(Path path, IOException e) {
+					synchronized (failed) {
+						failed.add(path);
+					}
+				}
+			}));
+			assertEquals(Collections.singletonList(notAClass), failed);
+
+			// Reading files and channels into the buffer
+			ClassBytesBuffer buffer = new ClassBytesBuffer(16);
+			assertEquals(stringBytes.length, buffer.read(root.resolve("org/example/String.class")));
+			assertTrue(Arrays.equals(stringBytes, buffer.toByteArray()));
+			assertEquals(stringBytes.length, buffer.read(Channels.newChannel(new ByteArrayInputStream(stringBytes)), -1));
+			assertTrue(Arrays.equals(stringBytes, buffer.toByteArray()));
+			assertEquals(16, buffer.read(Channels.newChannel(new ByteArrayInputStream(stringBytes)), 16));
+			assertEquals(3, buffer.read(Channels.newChannel(new ByteArrayInputStream(new byte[3])), 16));
+		} finally {
+			pool.shutdown();
+			delete(root);
+		}
+	}
+
+	private void delete(Path path) throws IOException {
+		if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+				for (Path entry : entries) {
+					delete(entry);
+				}
+			}
+		}
+		Files.delete(path);
+	}
+
+	/**
+	 * Build a zip64 archive holding one stored entry: the sizes of the entry are in a zip64 extra field and the
+	 * central directory is found through the zip64 end of central directory record.
+	 */
+	private byte[] zip64(String name, byte[] data) {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		int directory = 30 + nameBytes.length + data.length;
+		int directorySize = 46 + nameBytes.length + 20;
+		ByteBuffer zip = ByteBuffer.allocate(directory + directorySize + 56 + 20 + 22).order(ByteOrder.LITTLE_ENDIAN);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		zip.putInt(0x04034b50).putShort((short) 45).putShort((short) 0).putShort((short) 0).putInt(0);
+		zip.putInt((int) crc.getValue()).putInt(data.length).putInt(data.length);
+		zip.putShort((short) nameBytes.length).putShort((short) 0).put(nameBytes).put(data);
+		zip.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0).putShort((short) 0).putInt(0);
+		zip.putInt((int) crc.getValue()).putInt(0xffffffff).putInt(0xffffffff);
+		zip.putShort((short) nameBytes.length).putShort((short) 20).putShort((short) 0);
+		zip.putShort((short) 0).putShort((short) 0).putInt(0).putInt(0).put(nameBytes);
+		zip.putShort((short) 1).putShort((short) 16).putLong(data.length).putLong(data.length);
+		zip.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0);
+		zip.putLong(1).putLong(1).putLong(directorySize).putLong(directory);
+		zip.putInt(0x07064b50).putInt(0).putLong(directory + directorySize).putInt(1);
+		zip.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) 0xffff).putShort((short) 0xffff);
+		zip.putInt(0xffffffff).putInt(0xffffffff).putShort((short) 0);
+		return zip.array();
+	}
+
+	private MappedJar open(byte[] zip) throws IOException {
+		File file = File.createTempFile("scanner", ".zip");
+		try {
+			Files.write(file.toPath(), zip);
+			return MappedJar.open(file.toPath());
+		} finally {
+			file.delete();
+		}
+	}
+
+	private void assertNotZip(byte[] zip) throws IOException {
+		try {
+			open(zip);
+			fail();
+		} catch (ZipException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Build a jar containing a manifest (deflated), the first class stored and the second deflated.
+	 */
+	private File jar(byte[] storedClass, byte[] deflatedClass) throws IOException {
+		File file = File.createTempFile("scanner", ".jar");
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+		zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+		zos.write("Manifest-Version: 1.0\n".getBytes("UTF-8"));
+		ZipEntry stored = new ZipEntry("java/lang/Runnable.class");
+		stored.setMethod(ZipEntry.STORED);
+		stored.setSize(storedClass.length);
+		CRC32 crc = new CRC32();
+		crc.update(storedClass);
+		stored.setCrc(crc.getValue());
+		zos.putNextEntry(stored);
+		zos.write(storedClass);
+		zos.putNextEntry(new ZipEntry("java/lang/String.class"));
+		zos.write(deflatedClass);
+		zos.setComment("A comment that the end of central directory record must be found before");
+		zos.close();
+		return file;
+	}
+
+	/**
+	 * Build a module-info style class using the constant pool entries javac (or ASM 5) will not produce for a
+	 * plain class: CONSTANT_Module, CONSTANT_Package and CONSTANT_Dynamic. It is annotated with @Deprecated.
+	 * @param moduleTag the tag to use for the module entry, to allow an invalid one
+	 */
+	private byte[] moduleInfo(int moduleTag) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0xCAFEBABE);
+		dos.writeShort(0);
+		dos.writeShort(55);
+		dos.writeShort(13);
+		dos.writeByte(1); dos.writeUTF("module-info");                   // 1
+		dos.writeByte(7); dos.writeShort(1);                             // 2
+		dos.writeByte(1); dos.writeUTF("java.base");                     // 3
+		dos.writeByte(moduleTag); dos.writeShort(3);                     // 4
+		dos.writeByte(1); dos.writeUTF("java/lang");                     // 5
+		dos.writeByte(20); dos.writeShort(5);                            // 6
+		dos.writeByte(12); dos.writeShort(8); dos.writeShort(9);         // 7
+		dos.writeByte(1); dos.writeUTF("x");                             // 8
+		dos.writeByte(1); dos.writeUTF("I");                             // 9
+		dos.writeByte(17); dos.writeShort(0); dos.writeShort(7);         // 10
+		dos.writeByte(1); dos.writeUTF("RuntimeVisibleAnnotations");     // 11
+		dos.writeByte(1); dos.writeUTF("Ljava/lang/Deprecated;");        // 12
+		dos.writeShort(0x8000); // ACC_MODULE
+		dos.writeShort(2);
+		dos.writeShort(0);
+		dos.writeShort(0); // interfaces
+		dos.writeShort(0); // fields
+		dos.writeShort(0); // methods
+		dos.writeShort(1); // attributes
+		dos.writeShort(11);
+		dos.writeInt(6);
+		dos.writeShort(1);
+		dos.writeShort(12);
+		dos.writeShort(0);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Build a class annotated with @Deprecated whose constant pool has two entries for the annotation type and for
+	 * the attribute name, javac (and ASM) never produce these. The first of each is the one used.
+	 */
+	private byte[] duplicatedEntries() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0xCAFEBABE);
+		dos.writeShort(0);
+		dos.writeShort(52);
+		dos.writeShort(9);
+		dos.writeByte(1); dos.writeUTF("org/example/Duplicates");        // 1
+		dos.writeByte(7); dos.writeShort(1);                             // 2
+		dos.writeByte(1); dos.writeUTF("java/lang/Object");              // 3
+		dos.writeByte(7); dos.writeShort(3);                             // 4
+		dos.writeByte(1); dos.writeUTF("RuntimeVisibleAnnotations");     // 5
+		dos.writeByte(1); dos.writeUTF("Ljava/lang/Deprecated;");        // 6
+		dos.writeByte(1); dos.writeUTF("Ljava/lang/Deprecated;");        // 7
+		dos.writeByte(1); dos.writeUTF("RuntimeVisibleAnnotations");     // 8
+		dos.writeShort(0x21); // ACC_PUBLIC | ACC_SUPER
+		dos.writeShort(2);
+		dos.writeShort(4);
+		dos.writeShort(0); // interfaces
+		dos.writeShort(0); // fields
+		dos.writeShort(0); // methods
+		dos.writeShort(1); // attributes
+		dos.writeShort(5);
+		dos.writeInt(6);
+		dos.writeShort(1);
+		dos.writeShort(6);
+		dos.writeShort(0);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Build a class annotated with @Deprecated whose RuntimeVisibleAnnotations attribute follows an unknown attribute
+	 * holding the specified number of random (so incompressible) bytes.
+	 */
+	private byte[] padded(int padding) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0xCAFEBABE);
+		dos.writeShort(0);
+		dos.writeShort(52);
+		dos.writeShort(8);
+		dos.writeByte(1); dos.writeUTF("org/example/Padded");            // 1
+		dos.writeByte(7); dos.writeShort(1);                             // 2
+		dos.writeByte(1); dos.writeUTF("java/lang/Object");              // 3
+		dos.writeByte(7); dos.writeShort(3);                             // 4
+		dos.writeByte(1); dos.writeUTF("Padding");                       // 5
+		dos.writeByte(1); dos.writeUTF("RuntimeVisibleAnnotations");     // 6
+		dos.writeByte(1); dos.writeUTF("Ljava/lang/Deprecated;");        // 7
+		dos.writeShort(0x21); // ACC_PUBLIC | ACC_SUPER
+		dos.writeShort(2);
+		dos.writeShort(4);
+		dos.writeShort(0); // interfaces
+		dos.writeShort(0); // fields
+		dos.writeShort(0); // methods
+		dos.writeShort(2); // attributes
+		byte[] randomBytes = new byte[padding];
+		new Random(42).nextBytes(randomBytes);
+		dos.writeShort(5);
+		dos.writeInt(padding);
+		dos.write(randomBytes);
+		dos.writeShort(6);
+		dos.writeInt(6);
+		dos.writeShort(1);
+		dos.writeShort(7);
+		dos.writeShort(0);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Build a class whose last constant pool entry is a long, with no room left in the constant pool count for the
+	 * second entry a long takes.
+	 */
+	private byte[] longAsLastConstant() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0xCAFEBABE);
+		dos.writeShort(0);
+		dos.writeShort(52);
+		dos.writeShort(5);
+		dos.writeByte(1); dos.writeUTF("RuntimeVisibleAnnotations");     // 1
+		dos.writeByte(1); dos.writeUTF("Ljava/lang/Deprecated;");        // 2
+		dos.writeByte(1); dos.writeUTF("x");                             // 3
+		dos.writeByte(5); dos.writeLong(42L);                            // 4 (and 5)
+		dos.writeShort(0); // access_flags
+		dos.writeShort(0);
+		dos.writeShort(0);
+		dos.writeShort(0); // interfaces
+		dos.writeShort(0); // fields
+		dos.writeShort(0); // methods
+		dos.writeShort(0); // attributes
+		return baos.toByteArray();
+	}
+
 	private byte[] loadBytes(String resourceName) {
 		InputStream stream = TypeAnnotationScannerTests.class.getClassLoader().getResourceAsStream(resourceName);
 		return TypeAnnotationScanner.loadBytes(stream);
 	}
-	
+
+	@Deprecated
+	static class FieldOfAnnotationType {
+		FunctionalInterface fi;
+	}
+
+	@Retention(RetentionPolicy.RUNTIME)
+	@interface Marker {
+	}
+
+	@Retention(RetentionPolicy.RUNTIME)
+	@interface Holder {
+		Marker[] value();
+	}
+
+	@Holder(@Marker)
+	@Deprecated
+	static class OnlyNested {
+	}
+
 }